@@ -18,7 +18,7 @@ public class MainActivity extends AppCompatActivity implements
         RecordingAudioView.OnNewActionListener, RecordingAudioView.OnTimeTickListener,
         RecordingAudioView.CanRecordValidator, RecordingAudioView.OnReachMaxTimeListener {
 
-    private static final String OUTPUT_FILE_PATH = "/sdcard/HelloWorld.3gp";
+    private static final String OUTPUT_FILE_PATH = "HelloWorld";
 
     private RecordingAudioView mRecordingAudioView;
     private TextView mTimeTextView;
@@ -85,7 +85,7 @@ public class MainActivity extends AppCompatActivity implements
     }
 
     @Override
-    public void onReachMaxTime() {
-        Toast.makeText(this, mRecordingAudioView.getMaxRecordingTimeMs() + "ms reached", Toast.LENGTH_SHORT).show();
+    public void onReachMaxTime(long durationOfRecording) {
+        Toast.makeText(this, mRecordingAudioView.getMaxRecordingTimeMs() + "ms reached, recorded " + durationOfRecording + "ms", Toast.LENGTH_SHORT).show();
     }
 }
@@ -0,0 +1,19 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Intent;
+
+/**
+ * An empty window for the benchmarks drawing on screen, the content is set by each benchmark
+ */
+public class BenchmarkActivity extends Activity {
+
+    static BenchmarkActivity launch(Instrumentation instrumentation) {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.setClassName(instrumentation.getTargetContext(), BenchmarkActivity.class.getName());
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+
+        return (BenchmarkActivity) instrumentation.startActivitySync(intent);
+    }
+}
@@ -0,0 +1,129 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.app.Instrumentation;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cost of creating a {@link RecordingAudioView} and laying it out in a list row, what a RecyclerView
+ * pays for every new row. The reveal Views are deferred to the first reveal: the benchmark checks
+ * they are not built, and compares with building them right away.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConstructionBenchmark {
+
+    private static final String TAG = "ConstructionBenchmark";
+
+    private static final int WARM_UP_ITERATIONS = 20;
+    private static final int ITERATIONS = 200;
+
+    private static final int ROW_HEIGHT_DP = 72;
+
+    private final Instrumentation mInstrumentation = InstrumentationRegistry.getInstrumentation();
+
+    private BenchmarkActivity mActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        mActivity = BenchmarkActivity.launch(mInstrumentation);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mActivity.finish();
+    }
+
+    @Test
+    public void construct_addsNoRevealViews() throws Exception {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                RecordingAudioView view = new RecordingAudioView(mActivity);
+                int childCount = view.getChildCount();
+
+                assertFalse(view.hasRevealViews());
+
+                // Added by the first reveal
+                view.getRevealRenderer();
+                assertTrue(view.hasRevealViews());
+                assertTrue(view.getChildCount() > childCount);
+            }
+        });
+    }
+
+    @Test
+    public void construct_isFasterThanWithRevealViews() throws Exception {
+        long deferredNs = measure("construct", false, false);
+        long eagerNs = measure("construct with reveal Views", false, true);
+
+        assertTrue("Deferred " + deferredNs + " ns, eager " + eagerNs + " ns", deferredNs < eagerNs);
+    }
+
+    @Test
+    public void constructAndLayOut_isFasterThanWithRevealViews() throws Exception {
+        long deferredNs = measure("construct and lay out", true, false);
+        long eagerNs = measure("construct and lay out with reveal Views", true, true);
+
+        assertTrue("Deferred " + deferredNs + " ns, eager " + eagerNs + " ns", deferredNs < eagerNs);
+    }
+
+    /**
+     * @param revealViews true to build the reveal Views right after the construction, like before they were deferred
+     * @return the median time, in ns
+     */
+    private long measure(final String name, final boolean layOut, final boolean revealViews) {
+        final long[] median = new long[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                int width = mActivity.getResources().getDisplayMetrics().widthPixels;
+                int height = (int) (ROW_HEIGHT_DP * mActivity.getResources().getDisplayMetrics().density);
+                int widthSpec = View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY);
+                int heightSpec = View.MeasureSpec.makeMeasureSpec(height, View.MeasureSpec.EXACTLY);
+
+                for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+                    create(layOut, revealViews, widthSpec, heightSpec);
+                }
+
+                long[] durations = new long[ITERATIONS];
+                for (int i = 0; i < ITERATIONS; i++) {
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    create(layOut, revealViews, widthSpec, heightSpec);
+                    durations[i] = SystemClock.elapsedRealtimeNanos() - start;
+                }
+
+                Arrays.sort(durations);
+                median[0] = durations[ITERATIONS / 2];
+
+                Log.i(TAG, name + ": median " + durations[ITERATIONS / 2] / 1000
+                        + " us, 90th percentile " + durations[ITERATIONS * 9 / 10] / 1000 + " us");
+            }
+        });
+        return median[0];
+    }
+
+    private void create(boolean layOut, boolean revealViews, int widthSpec, int heightSpec) {
+        RecordingAudioView view = new RecordingAudioView(mActivity);
+        if (revealViews) {
+            view.getRevealRenderer();
+        }
+
+        if (layOut) {
+            view.measure(widthSpec, heightSpec);
+            view.layout(0, 0, view.getMeasuredWidth(), view.getMeasuredHeight());
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.Manifest;
+import android.app.Instrumentation;
+import android.os.Build;
+import android.os.Debug;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Gravity;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Objects allocated by the ACTION_MOVE events of a drag of the mic, dispatched to its touch listener
+ * like the input of a finger: one event per frame, each one with the samples batched since the last one.
+ * The allocations of the main thread are counted for the whole dispatch, which runs the drag math,
+ * the collision check and posts the position to the next frame, after the warm up events.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("deprecation")
+public class DragAllocationBenchmark {
+
+    private static final String TAG = "DragAllocation";
+
+    private static final int WARM_UP_EVENTS = 60;
+    private static final int MEASURED_EVENTS = 300;
+
+    /**
+     * Samples batched in each event, a 240Hz touch screen shown at 60Hz
+     */
+    private static final int HISTORY_SIZE = 3;
+
+    private static final long FRAME_MS = 16;
+
+    private final Instrumentation mInstrumentation = InstrumentationRegistry.getInstrumentation();
+
+    private BenchmarkActivity mActivity;
+    private RecordingAudioView mRecordingAudioView;
+    private View mMicrophoneView;
+
+    private final MotionEvent[] mMoveEvents = new MotionEvent[WARM_UP_EVENTS + MEASURED_EVENTS];
+    private long mDownTime;
+    private float mStartMicX;
+
+    /**
+     * Written on the main thread only
+     */
+    private int mEvent;
+    private int mAllocations;
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /**
+     * Dispatches a move event on every frame
+     */
+    private final Choreographer.FrameCallback mFinger = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mEvent == mMoveEvents.length) {
+                mDone.countDown();
+                return;
+            }
+
+            int before = Debug.getThreadAllocCount();
+            mMicrophoneView.dispatchTouchEvent(mMoveEvents[mEvent]);
+            if (mEvent >= WARM_UP_EVENTS) {
+                mAllocations += Debug.getThreadAllocCount() - before;
+            }
+
+            mEvent++;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mActivity = BenchmarkActivity.launch(mInstrumentation);
+
+        // The press starts a real recording
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            runShellCommand("pm grant " + mActivity.getPackageName() + " " + Manifest.permission.RECORD_AUDIO);
+        }
+
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                FrameLayout root = new FrameLayout(mActivity);
+
+                mRecordingAudioView = new RecordingAudioView(mActivity);
+                mRecordingAudioView.setFileName("DragAllocationBenchmark");
+                root.addView(mRecordingAudioView, new FrameLayout.LayoutParams(
+                        FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.WRAP_CONTENT, Gravity.BOTTOM));
+
+                mActivity.setContentView(root);
+                mMicrophoneView = mRecordingAudioView.findViewById(R.id.microphone_icon);
+            }
+        });
+        mInstrumentation.waitForIdleSync();
+
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                createEvents();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                MotionEvent up = MotionEvent.obtain(mDownTime, SystemClock.uptimeMillis(),
+                        MotionEvent.ACTION_UP, mStartMicX, 0, 0);
+                mMicrophoneView.dispatchTouchEvent(up);
+                up.recycle();
+
+                for (MotionEvent event : mMoveEvents) {
+                    if (event != null) {
+                        event.recycle();
+                    }
+                }
+            }
+        });
+
+        mActivity.finish();
+    }
+
+    @Test
+    public void moveEvents_allocateNothing() throws Exception {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                MotionEvent down = MotionEvent.obtain(mDownTime, mDownTime, MotionEvent.ACTION_DOWN, mStartMicX, 0, 0);
+                mMicrophoneView.dispatchTouchEvent(down);
+                down.recycle();
+
+                Debug.startAllocCounting();
+                Choreographer.getInstance().postFrameCallback(mFinger);
+            }
+        });
+
+        assertTrue("Events not dispatched in time", mDone.await(30, TimeUnit.SECONDS));
+        mInstrumentation.waitForIdleSync();
+
+        final float[] micX = new float[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Debug.stopAllocCounting();
+                micX[0] = mMicrophoneView.getX();
+            }
+        });
+
+        Log.i(TAG, mAllocations + " objects allocated over " + MEASURED_EVENTS + " move events");
+
+        // The drag must have been applied for the count to mean anything
+        assertTrue("The mic has not been dragged", micX[0] < mStartMicX);
+        assertEquals(0, mAllocations);
+    }
+
+    /**
+     * Create the events before counting, a drag left and back which stays between
+     * the center and the destroy icon, with the finger on the mic
+     */
+    private void createEvents() {
+        mStartMicX = mMicrophoneView.getX();
+        float span = mStartMicX / 3;
+
+        mDownTime = SystemClock.uptimeMillis();
+        for (int i = 0; i < mMoveEvents.length; i++) {
+            long eventTime = mDownTime + (i + 1) * FRAME_MS;
+            long sampleTime = eventTime - HISTORY_SIZE * FRAME_MS / (HISTORY_SIZE + 1);
+
+            MotionEvent event = MotionEvent.obtain(mDownTime, sampleTime, MotionEvent.ACTION_MOVE,
+                    fingerX(sampleTime, span), 0, 0);
+            for (int sample = 1; sample <= HISTORY_SIZE; sample++) {
+                sampleTime = eventTime - (HISTORY_SIZE - sample) * FRAME_MS / (HISTORY_SIZE + 1);
+                event.addBatch(sampleTime, fingerX(sampleTime, span), 0, 1, 1, 0);
+            }
+
+            mMoveEvents[i] = event;
+        }
+    }
+
+    /**
+     * A triangle wave from the start position to span pixels on its left, over 80 frames
+     */
+    private float fingerX(long eventTime, float span) {
+        long period = 80 * FRAME_MS;
+        float phase = ((eventTime - mDownTime) % period) / (float) period * 2;
+        if (phase > 1) {
+            phase = 2 - phase;
+        }
+
+        return mStartMicX - phase * span;
+    }
+
+    private void runShellCommand(String command) throws Exception {
+        ParcelFileDescriptor output = mInstrumentation.getUiAutomation().executeShellCommand(command);
+        InputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(output);
+        try {
+            // Done once the output is closed
+            byte[] buffer = new byte[1024];
+            while (inputStream.read(buffer) != -1) {
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes a tone with {@link ParallelAacPcmEncoder} and {@link AacPcmEncoder}. The segments have to
+ * join without adding frames at the seams, and the time taken by stop() is logged for several lengths:
+ * it should not grow with the length of the take.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParallelAacPcmEncoderBenchmark {
+
+    private static final String TAG = "ParallelAacBenchmark";
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int BIT_RATE = 64000;
+
+    /**
+     * Short segments, to get many seams
+     */
+    private static final int SEGMENT_MS = 1000;
+
+    /**
+     * About the size of the reads of the capture
+     */
+    private static final int BLOCK_SIZE = 2048;
+
+    private File mOutputFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mOutputFile = File.createTempFile("parallel", ".aac",
+                InstrumentationRegistry.getTargetContext().getCacheDir());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mOutputFile.delete();
+    }
+
+    @Test
+    public void seams_addNoFrames() throws Exception {
+        int seconds = 10;
+
+        encode(new AacPcmEncoder(BIT_RATE), seconds);
+        int frameCount = countAdtsFrames(mOutputFile);
+
+        encode(new ParallelAacPcmEncoder(BIT_RATE, SEGMENT_MS), seconds);
+        int parallelFrameCount = countAdtsFrames(mOutputFile);
+
+        // Each seam used to add the priming and the padding of an encoder, a few frames
+        assertEquals(frameCount, parallelFrameCount, 1);
+        assertTrue(parallelFrameCount >= seconds * SAMPLE_RATE / 1024);
+    }
+
+    @Test
+    public void stop_doesNotGrowWithTheLength() throws Exception {
+        int[] lengths = {5, 30, 120};
+        for (int seconds : lengths) {
+            long singleStopMs = encode(new AacPcmEncoder(BIT_RATE), seconds);
+            long parallelStopMs = encode(new ParallelAacPcmEncoder(), seconds);
+
+            Log.i(TAG, seconds + " s: stop() took " + singleStopMs + " ms with one encoder, "
+                    + parallelStopMs + " ms with the parallel encoder");
+        }
+    }
+
+    /**
+     * Encode a 440Hz tone to the output file, as fast as the encoder takes it
+     *
+     * @return how long stop() took, in ms
+     */
+    private long encode(PcmEncoder encoder, int seconds) throws IOException {
+        ByteBuffer pcm = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long sampleCount = (long) seconds * SAMPLE_RATE;
+        long sample = 0;
+
+        encoder.start(OutputSink.toFile(mOutputFile), SAMPLE_RATE, 1);
+        while (sample < sampleCount) {
+            pcm.clear();
+            while (pcm.hasRemaining() && sample < sampleCount) {
+                pcm.putShort((short) (8000 * Math.sin(2 * Math.PI * 440 * sample / SAMPLE_RATE)));
+                sample++;
+            }
+            pcm.flip();
+
+            encoder.encode(pcm);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        encoder.stop();
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private static int countAdtsFrames(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = inputStream.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new IOException("Truncated output: " + file);
+                }
+                read += count;
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        int frameCount = 0;
+        int position = 0;
+        while (position < bytes.length) {
+            assertTrue("No ADTS sync at " + position, position + AacPcmEncoder.ADTS_HEADER_SIZE <= bytes.length
+                    && (bytes[position] & 0xFF) == 0xFF && (bytes[position + 1] & 0xF0) == 0xF0);
+
+            int frameLength = ((bytes[position + 3] & 0x03) << 11)
+                    | ((bytes[position + 4] & 0xFF) << 3)
+                    | ((bytes[position + 5] & 0xE0) >> 5);
+            position += frameLength;
+            frameCount++;
+        }
+
+        assertEquals(bytes.length, position);
+        return frameCount;
+    }
+}
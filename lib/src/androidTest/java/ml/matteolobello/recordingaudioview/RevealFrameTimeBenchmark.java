@@ -0,0 +1,272 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.animation.ValueAnimator;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Path;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Gravity;
+import android.view.View;
+import android.view.animation.AccelerateDecelerateInterpolator;
+import android.widget.FrameLayout;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frame times of the reveal and hide animations of {@link RevealRenderer}, on a full screen View
+ * like the one of a {@link RecordingAudioView} filling its row. Run it on API 17-20 for the fade
+ * fallback and on API 21+ for the platform reveal. The intervals between the frames of the main thread
+ * during the animations are measured, a long one is a frame the animation has dropped.
+ * <p>
+ * The baseline is the reveal as the CircularReveal library drew it before API 21, which was the slow path:
+ * a circle clip on a software layer, with a new animator and interpolator for every press.
+ * The renderer must not drop more frames than it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RevealFrameTimeBenchmark {
+
+    private static final String TAG = "RevealFrameTime";
+
+    private static final int ITERATIONS = 10;
+
+    /**
+     * Slack of the comparison with the baseline, the frame times are multiples of the display refresh
+     */
+    private static final long TOLERANCE_NS = 4000000;
+
+    private final Instrumentation mInstrumentation = InstrumentationRegistry.getInstrumentation();
+
+    private BenchmarkActivity mActivity;
+    private RevealRenderer mRevealRenderer;
+    private SoftwareClipRevealView mBaselineView;
+    private View mOrigin;
+
+    /**
+     * Frame times, in ns, written on the main thread only
+     */
+    private final long[] mFrameTimes = new long[1024];
+    private int mFrameCount;
+    private boolean mRecordingFrames;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mRecordingFrames) {
+                return;
+            }
+
+            if (mFrameCount < mFrameTimes.length) {
+                mFrameTimes[mFrameCount++] = frameTimeNanos;
+            }
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mActivity = BenchmarkActivity.launch(mInstrumentation);
+
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                FrameLayout root = new FrameLayout(mActivity);
+
+                mBaselineView = new SoftwareClipRevealView(mActivity);
+                mBaselineView.setVisibility(View.INVISIBLE);
+                root.addView(mBaselineView, new FrameLayout.LayoutParams(
+                        FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT));
+
+                FrameLayout revealViewWrapper = new FrameLayout(mActivity);
+                View revealView = new View(mActivity);
+                revealView.setVisibility(View.INVISIBLE);
+                revealViewWrapper.addView(revealView, new FrameLayout.LayoutParams(
+                        FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT));
+                root.addView(revealViewWrapper, new FrameLayout.LayoutParams(
+                        FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT));
+
+                mOrigin = new View(mActivity);
+                int size = (int) (48 * mActivity.getResources().getDisplayMetrics().density);
+                root.addView(mOrigin, new FrameLayout.LayoutParams(size, size, Gravity.BOTTOM | Gravity.END));
+
+                mActivity.setContentView(root);
+                mRevealRenderer = new RevealRenderer(revealView, revealViewWrapper);
+            }
+        });
+        mInstrumentation.waitForIdleSync();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mActivity.finish();
+    }
+
+    @Test
+    public void reveal_dropsNoMoreFramesThanSoftwareClip() throws Exception {
+        long baselineNs = measure("software clip reveal", RevealRenderer.REVEAL_DURATION_MS, new Runnable() {
+            @Override
+            public void run() {
+                mBaselineView.reveal(mOrigin, Color.RED);
+            }
+        }, null);
+
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mBaselineView.setVisibility(View.INVISIBLE);
+            }
+        });
+
+        long revealNs = measure("reveal", RevealRenderer.REVEAL_DURATION_MS, new Runnable() {
+            @Override
+            public void run() {
+                mRevealRenderer.reveal(mOrigin, Color.RED, Color.TRANSPARENT, false);
+            }
+        }, null);
+
+        assertTrue("90th percentile " + revealNs + " ns, software clip " + baselineNs + " ns",
+                revealNs <= baselineNs + TOLERANCE_NS);
+    }
+
+    @Test
+    public void revealWithFade() throws Exception {
+        measure("reveal and fade", RevealRenderer.REVEAL_DURATION_MS + RevealRenderer.FADE_DURATION_MS, new Runnable() {
+            @Override
+            public void run() {
+                mRevealRenderer.reveal(mOrigin, Color.BLUE, Color.RED, true);
+            }
+        }, null);
+    }
+
+    @Test
+    public void hide() throws Exception {
+        measure("hide", RevealRenderer.REVEAL_DURATION_MS, new Runnable() {
+            @Override
+            public void run() {
+                mRevealRenderer.hide(mOrigin, Color.RED);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                mRevealRenderer.show(Color.RED);
+            }
+        });
+    }
+
+    /**
+     * Run the animation started by the given Runnable, and log the intervals between its frames
+     *
+     * @param reset puts the renderer back in the state before the animation, may be null
+     * @return the 90th percentile of the intervals, in ns
+     */
+    private long measure(String name, long durationMs, final Runnable animation, final Runnable reset) {
+        long[] intervals = new long[ITERATIONS * mFrameTimes.length];
+        int intervalCount = 0;
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (reset != null) {
+                mInstrumentation.runOnMainSync(reset);
+                mInstrumentation.waitForIdleSync();
+            }
+
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mFrameCount = 0;
+                    mRecordingFrames = true;
+                    Choreographer.getInstance().postFrameCallback(mFrameCallback);
+
+                    animation.run();
+                }
+            });
+
+            SystemClock.sleep(durationMs);
+
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mRecordingFrames = false;
+                }
+            });
+
+            for (int frame = 1; frame < mFrameCount; frame++) {
+                intervals[intervalCount++] = mFrameTimes[frame] - mFrameTimes[frame - 1];
+            }
+        }
+
+        assertTrue("No frame drawn", intervalCount > 0);
+
+        Arrays.sort(intervals, 0, intervalCount);
+        long percentile90 = intervals[intervalCount * 9 / 10];
+        Log.i(TAG, name + ": " + intervalCount + " frames"
+                + ", median " + toMs(intervals[intervalCount / 2])
+                + " ms, 90th percentile " + toMs(percentile90)
+                + " ms, max " + toMs(intervals[intervalCount - 1]) + " ms");
+
+        return percentile90;
+    }
+
+    private static String toMs(long ns) {
+        return String.valueOf(ns / 10000 / 100.0);
+    }
+
+    /**
+     * A circular reveal clipped in software on every frame
+     */
+    private static class SoftwareClipRevealView extends View {
+
+        private final Path mClipPath = new Path();
+        private final int[] mOriginLocation = new int[2];
+        private final int[] mLocation = new int[2];
+
+        SoftwareClipRevealView(Context context) {
+            super(context);
+            setLayerType(LAYER_TYPE_SOFTWARE, null);
+        }
+
+        void reveal(View origin, int color) {
+            origin.getLocationInWindow(mOriginLocation);
+            getLocationInWindow(mLocation);
+            final float centerX = mOriginLocation[0] + origin.getWidth() / 2 - mLocation[0];
+            final float centerY = mOriginLocation[1] + origin.getHeight() / 2 - mLocation[1];
+            float endRadius = (float) Math.hypot(Math.max(centerX, getWidth() - centerX),
+                    Math.max(centerY, getHeight() - centerY));
+
+            setBackgroundColor(color);
+            setVisibility(VISIBLE);
+
+            ValueAnimator animator = ValueAnimator.ofFloat(0, endRadius);
+            animator.setInterpolator(new AccelerateDecelerateInterpolator());
+            animator.setDuration(RevealRenderer.REVEAL_DURATION_MS);
+            animator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+                @Override
+                public void onAnimationUpdate(ValueAnimator animation) {
+                    mClipPath.reset();
+                    mClipPath.addCircle(centerX, centerY, (float) animation.getAnimatedValue(), Path.Direction.CW);
+                    invalidate();
+                }
+            });
+            animator.start();
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            int saveCount = canvas.save();
+            canvas.clipPath(mClipPath);
+            super.draw(canvas);
+            canvas.restoreToCount(saveCount);
+        }
+    }
+}
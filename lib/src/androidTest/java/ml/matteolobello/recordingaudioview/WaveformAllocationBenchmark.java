@@ -0,0 +1,165 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.ViewGroup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Objects allocated by a {@link WaveformView} fed with a sample on every frame, like during a
+ * recording with a short amplitude interval. The allocations of the main thread are counted
+ * in addSample(), in the frame callback invalidating the View and in onDraw(), on a real
+ * window, after the warm up frames.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("deprecation")
+public class WaveformAllocationBenchmark {
+
+    private static final String TAG = "WaveformAllocation";
+
+    private static final int WARM_UP_FRAMES = 60;
+    private static final int MEASURED_FRAMES = 300;
+
+    private final Instrumentation mInstrumentation = InstrumentationRegistry.getInstrumentation();
+
+    private BenchmarkActivity mActivity;
+    private CountingWaveformView mWaveformView;
+
+    /**
+     * Written on the main thread only
+     */
+    private int mFrame;
+    private boolean mCounting;
+    private int mAllocations;
+    private int mDrawnFrames;
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /**
+     * Adds a sample on every frame, then lets the last one be drawn
+     */
+    private final Choreographer.FrameCallback mFeeder = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mFrame == WARM_UP_FRAMES + MEASURED_FRAMES + 1) {
+                mCounting = false;
+                mDone.countDown();
+                return;
+            }
+
+            mCounting = mFrame >= WARM_UP_FRAMES;
+
+            if (mFrame < WARM_UP_FRAMES + MEASURED_FRAMES) {
+                // A triangle wave, so every frame draws a different Path
+                float amplitude = (mFrame % 40) / 20f;
+                if (amplitude > 1) {
+                    amplitude = 2 - amplitude;
+                }
+
+                int before = Debug.getThreadAllocCount();
+                mWaveformView.addSample(amplitude);
+                countSince(before);
+            }
+
+            mFrame++;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mActivity = BenchmarkActivity.launch(mInstrumentation);
+
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mWaveformView = new CountingWaveformView(mActivity);
+                mActivity.setContentView(mWaveformView, new ViewGroup.LayoutParams(
+                        ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+            }
+        });
+        mInstrumentation.waitForIdleSync();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mActivity.finish();
+    }
+
+    @Test
+    public void addSampleAndDraw_allocateNothing() throws Exception {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Debug.startAllocCounting();
+                Choreographer.getInstance().postFrameCallback(mFeeder);
+            }
+        });
+
+        assertTrue("Frames not drawn in time", mDone.await(30, TimeUnit.SECONDS));
+
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Debug.stopAllocCounting();
+            }
+        });
+
+        Log.i(TAG, mAllocations + " objects allocated over " + MEASURED_FRAMES + " samples, "
+                + mDrawnFrames + " frames drawn");
+
+        // A frame may be skipped, but most of them must have been drawn for the count to mean anything
+        assertTrue("Only " + mDrawnFrames + " frames drawn", mDrawnFrames >= MEASURED_FRAMES / 2);
+        assertEquals(0, mAllocations);
+    }
+
+    private void countSince(int allocCountBefore) {
+        if (mCounting) {
+            mAllocations += Debug.getThreadAllocCount() - allocCountBefore;
+        }
+    }
+
+    /**
+     * Counts the allocations of the frame callback and of onDraw()
+     */
+    private class CountingWaveformView extends WaveformView {
+
+        CountingWaveformView(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            int before = Debug.getThreadAllocCount();
+            super.doFrame(frameTimeNanos);
+            countSince(before);
+        }
+
+        @Override
+        protected void onDraw(Canvas canvas) {
+            int before = Debug.getThreadAllocCount();
+            super.onDraw(canvas);
+            countSince(before);
+
+            if (mCounting) {
+                mDrawnFrames++;
+            }
+        }
+    }
+}
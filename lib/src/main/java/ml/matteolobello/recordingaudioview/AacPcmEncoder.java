@@ -0,0 +1,223 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the samples to AAC LC with MediaCodec,
+ * and writes them as an ADTS stream
+ */
+public class AacPcmEncoder extends FilePcmEncoder {
+
+    private static final String MIME_TYPE = "audio/mp4a-latm";
+
+    /**
+     * Default bitrate, good for speech
+     */
+    private static final int DEFAULT_BIT_RATE = 64000;
+
+    /**
+     * How long to wait for a codec buffer
+     */
+    private static final long TIMEOUT_US = 10000;
+
+    /**
+     * Sample rates indexes as defined by the ADTS header
+     */
+    private static final int[] ADTS_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    static final int ADTS_HEADER_SIZE = 7;
+
+    /**
+     * Reusable objects, to avoid allocating for every frame
+     */
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final ByteBuffer mAdtsHeader = ByteBuffer.allocate(ADTS_HEADER_SIZE);
+
+    private final int mBitRate;
+
+    private MediaCodec mMediaCodec;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+
+    private int mSampleRateIndex;
+    private int mChannelCount;
+    private int mBytesPerSecond;
+    private long mEncodedBytes;
+
+    public AacPcmEncoder() {
+        this(DEFAULT_BIT_RATE);
+    }
+
+    public AacPcmEncoder(int bitRate) {
+        mBitRate = bitRate;
+    }
+
+    @Override
+    protected void onStart(int sampleRate, int channelCount) throws IOException {
+        mSampleRateIndex = getAdtsSampleRateIndex(sampleRate);
+        mChannelCount = channelCount;
+        mBytesPerSecond = sampleRate * channelCount * 2;
+        mEncodedBytes = 0;
+
+        mMediaCodec = createEncoder(sampleRate, channelCount, mBitRate);
+        mMediaCodec.start();
+
+        mInputBuffers = mMediaCodec.getInputBuffers();
+        mOutputBuffers = mMediaCodec.getOutputBuffers();
+    }
+
+    @Override
+    public void encode(ByteBuffer pcm) throws IOException {
+        while (pcm.hasRemaining()) {
+            int index = mMediaCodec.dequeueInputBuffer(TIMEOUT_US);
+            if (index < 0) {
+                drain(false);
+                continue;
+            }
+
+            ByteBuffer inputBuffer = mInputBuffers[index];
+            inputBuffer.clear();
+
+            int size = Math.min(pcm.remaining(), inputBuffer.remaining());
+            int limit = pcm.limit();
+            pcm.limit(pcm.position() + size);
+            inputBuffer.put(pcm);
+            pcm.limit(limit);
+
+            mMediaCodec.queueInputBuffer(index, 0, size, presentationTimeUs(), 0);
+            mEncodedBytes += size;
+
+            drain(false);
+        }
+    }
+
+    @Override
+    protected void onStop() throws IOException {
+        try {
+            int index;
+            do {
+                index = mMediaCodec.dequeueInputBuffer(TIMEOUT_US);
+                if (index < 0) {
+                    drain(false);
+                }
+            } while (index < 0);
+
+            mMediaCodec.queueInputBuffer(index, 0, 0, presentationTimeUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+
+            drain(true);
+        } finally {
+            mMediaCodec.stop();
+            mMediaCodec.release();
+            mMediaCodec = null;
+            mInputBuffers = null;
+            mOutputBuffers = null;
+        }
+    }
+
+    /**
+     * @return the index of the sample rate in the ADTS header
+     * @throws IOException if AAC does not support this sample rate
+     */
+    static int getAdtsSampleRateIndex(int sampleRate) throws IOException {
+        for (int i = 0; i < ADTS_SAMPLE_RATES.length; i++) {
+            if (ADTS_SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+
+        throw new IOException("Sample rate not supported by AAC: " + sampleRate);
+    }
+
+    /**
+     * @return a configured AAC LC encoder, not started yet
+     */
+    static MediaCodec createEncoder(int sampleRate, int channelCount, int bitRate) throws IOException {
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, channelCount);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+
+        MediaCodec mediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        try {
+            mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (RuntimeException e) {
+            mediaCodec.release();
+            throw e;
+        }
+
+        return mediaCodec;
+    }
+
+    /**
+     * Fill the given buffer with the ADTS header of a packet, ready to be read
+     *
+     * @param packetLength the size of the packet, header included
+     */
+    static void fillAdtsHeader(ByteBuffer header, int sampleRateIndex, int channelCount, int packetLength) {
+        int profile = MediaCodecInfo.CodecProfileLevel.AACObjectLC;
+
+        header.clear();
+        header.put((byte) 0xFF);
+        header.put((byte) 0xF1);
+        header.put((byte) (((profile - 1) << 6) + (sampleRateIndex << 2) + (channelCount >> 2)));
+        header.put((byte) (((channelCount & 3) << 6) + (packetLength >> 11)));
+        header.put((byte) ((packetLength & 0x7FF) >> 3));
+        header.put((byte) (((packetLength & 7) << 5) + 0x1F));
+        header.put((byte) 0xFC);
+        header.flip();
+    }
+
+    private long presentationTimeUs() {
+        return mEncodedBytes * 1000000L / mBytesPerSecond;
+    }
+
+    private void drain(boolean endOfStream) throws IOException {
+        while (true) {
+            int index = mMediaCodec.dequeueOutputBuffer(mBufferInfo, endOfStream ? TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (endOfStream) {
+                    continue;
+                }
+                return;
+            }
+
+            if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = mMediaCodec.getOutputBuffers();
+                continue;
+            }
+
+            if (index < 0) {
+                // Format changed, ADTS does not need it
+                continue;
+            }
+
+            boolean isConfig = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+            if (!isConfig && mBufferInfo.size > 0) {
+                ByteBuffer outputBuffer = mOutputBuffers[index];
+                outputBuffer.position(mBufferInfo.offset);
+                outputBuffer.limit(mBufferInfo.offset + mBufferInfo.size);
+
+                writeAdtsHeader(mBufferInfo.size + ADTS_HEADER_SIZE);
+                write(outputBuffer);
+            }
+
+            mMediaCodec.releaseOutputBuffer(index, false);
+
+            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+    }
+
+    private void writeAdtsHeader(int packetLength) throws IOException {
+        fillAdtsHeader(mAdtsHeader, mSampleRateIndex, mChannelCount, packetLength);
+
+        write(mAdtsHeader);
+    }
+}
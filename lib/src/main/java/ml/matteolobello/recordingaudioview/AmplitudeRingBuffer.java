@@ -0,0 +1,55 @@
+package ml.matteolobello.recordingaudioview;
+
+/**
+ * Fixed size ring buffer of amplitude samples, backed by a primitive array.
+ * Once full, adding a sample overwrites the oldest one, nothing is allocated.
+ */
+class AmplitudeRingBuffer {
+
+    private final float[] mSamples;
+
+    /**
+     * Index where the next sample will be written
+     */
+    private int mWriteIndex;
+
+    private int mSize;
+
+    AmplitudeRingBuffer(int capacity) {
+        mSamples = new float[capacity];
+    }
+
+    void add(float sample) {
+        mSamples[mWriteIndex] = sample;
+        mWriteIndex = (mWriteIndex + 1) % mSamples.length;
+
+        if (mSize < mSamples.length) {
+            mSize++;
+        }
+    }
+
+    /**
+     * @param index from 0, the oldest sample, to size() - 1, the newest one
+     */
+    float get(int index) {
+        int oldestIndex = mWriteIndex - mSize;
+        if (oldestIndex < 0) {
+            oldestIndex += mSamples.length;
+        }
+
+        return mSamples[(oldestIndex + index) % mSamples.length];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int capacity() {
+        return mSamples.length;
+    }
+
+    void clear() {
+        mWriteIndex = 0;
+        mSize = 0;
+    }
+}
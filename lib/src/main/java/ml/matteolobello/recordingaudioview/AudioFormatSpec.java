@@ -0,0 +1,187 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.os.Build;
+
+/**
+ * Describes the output of a recording: container and codec, sample rate,
+ * channel count and bitrate. The container also decides the recorder,
+ * WAV and AAC (ADTS) are captured as PCM and encoded by a {@link PcmEncoder},
+ * the others are recorded by the MediaRecorder.
+ */
+public final class AudioFormatSpec {
+
+    /**
+     * Containers, values of recAudioViewContainer
+     */
+    public static final int CONTAINER_THREE_GPP = 0;
+    public static final int CONTAINER_MPEG_4 = 1;
+    public static final int CONTAINER_OGG = 2;
+    public static final int CONTAINER_WAV = 3;
+    public static final int CONTAINER_AAC = 4;
+
+    /**
+     * MediaRecorder.OutputFormat.OGG and MediaRecorder.AudioEncoder.OPUS, added in API 29
+     */
+    static final int MEDIA_RECORDER_OUTPUT_FORMAT_OGG = 11;
+    static final int MEDIA_RECORDER_AUDIO_ENCODER_OPUS = 7;
+    private static final int API_OGG_OPUS = 29;
+
+    /**
+     * 3gp/AMR-NB, what the MediaRecorder backend has always recorded
+     */
+    public static final AudioFormatSpec DEFAULT = forContainer(CONTAINER_THREE_GPP);
+
+    private final int mContainer;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final int mBitRate;
+
+    /**
+     * @param container    one of the CONTAINER_ constants
+     * @param sampleRate   the sample rate in Hz
+     * @param channelCount 1 for mono, 2 for stereo
+     * @param bitRate      the encoding bitrate in bits per second, ignored by WAV
+     */
+    public AudioFormatSpec(int container, int sampleRate, int channelCount, int bitRate) {
+        if (container < CONTAINER_THREE_GPP || container > CONTAINER_AAC) {
+            throw new IllegalArgumentException("Unknown container: " + container);
+        }
+
+        if (sampleRate <= 0 || bitRate <= 0) {
+            throw new IllegalArgumentException("The sample rate and the bitrate must be positive");
+        }
+
+        if (channelCount != 1 && channelCount != 2) {
+            throw new IllegalArgumentException("Only mono and stereo are supported");
+        }
+
+        mContainer = container;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mBitRate = bitRate;
+    }
+
+    /**
+     * @return a mono spec for the given container, with settings good for speech
+     */
+    public static AudioFormatSpec forContainer(int container) {
+        switch (container) {
+            case CONTAINER_THREE_GPP:
+                // AMR-NB only supports 8kHz
+                return new AudioFormatSpec(container, 8000, 1, 12200);
+            case CONTAINER_OGG:
+                return new AudioFormatSpec(container, 16000, 1, 24000);
+            case CONTAINER_WAV:
+                return new AudioFormatSpec(container, 16000, 1, 16000 * 16);
+            default:
+                return new AudioFormatSpec(container, 16000, 1, 32000);
+        }
+    }
+
+    public int getContainer() {
+        return mContainer;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * @return false if this device cannot record this container
+     */
+    public boolean isSupported() {
+        return isSupported(Build.VERSION.SDK_INT);
+    }
+
+    /**
+     * @return false if a device running the given API level cannot record this container
+     */
+    boolean isSupported(int sdkInt) {
+        return mContainer != CONTAINER_OGG || sdkInt >= API_OGG_OPUS;
+    }
+
+    /**
+     * @return true if this container is captured as PCM and encoded by a {@link PcmEncoder}
+     */
+    public boolean usesPcmRecorder() {
+        return mContainer == CONTAINER_WAV || mContainer == CONTAINER_AAC;
+    }
+
+    /**
+     * @return the extension of the output files, dot included
+     */
+    public String getFileExtension() {
+        return getFileExtension(mContainer);
+    }
+
+    /**
+     * @return the built-in encoder of this container, null if it is recorded by the MediaRecorder
+     */
+    PcmEncoder createPcmEncoder() {
+        switch (mContainer) {
+            case CONTAINER_WAV:
+                return new WavPcmEncoder();
+            case CONTAINER_AAC:
+                return new AacPcmEncoder(mBitRate);
+            default:
+                return null;
+        }
+    }
+
+    static String getFileExtension(int container) {
+        switch (container) {
+            case CONTAINER_MPEG_4:
+                return ".m4a";
+            case CONTAINER_OGG:
+                return ".ogg";
+            case CONTAINER_WAV:
+                return ".wav";
+            case CONTAINER_AAC:
+                return ".aac";
+            default:
+                return ".3gp";
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof AudioFormatSpec)) {
+            return false;
+        }
+
+        AudioFormatSpec that = (AudioFormatSpec) o;
+        return mContainer == that.mContainer
+                && mSampleRate == that.mSampleRate
+                && mChannelCount == that.mChannelCount
+                && mBitRate == that.mBitRate;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mContainer;
+        result = 31 * result + mSampleRate;
+        result = 31 * result + mChannelCount;
+        result = 31 * result + mBitRate;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "AudioFormatSpec{container=" + mContainer
+                + ", sampleRate=" + mSampleRate
+                + ", channelCount=" + mChannelCount
+                + ", bitRate=" + mBitRate + "}";
+    }
+}
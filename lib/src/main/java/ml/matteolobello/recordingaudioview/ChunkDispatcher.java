@@ -0,0 +1,203 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Splits the encoded output in fixed size chunks, and delivers them to a
+ * {@link RecordingChunkListener} on its own thread.
+ * <p>
+ * One dispatcher and its thread serve all the recordings of an engine, each recording
+ * can have its own listener and chunk size, see {@link #start(RecordingChunkListener, int)}.
+ * <p>
+ * The chunks come from a fixed pool: when the listener is too slow and the
+ * pool is empty, write() blocks until a chunk is released.
+ */
+class ChunkDispatcher implements Runnable {
+
+    /**
+     * Log TAG
+     */
+    private static final String TAG = "ChunkDispatcher";
+
+    /**
+     * Number of chunks in the pool
+     */
+    private static final int POOL_SIZE = 8;
+
+    /**
+     * Placeholder of the chunks not allocated yet, or allocated with another size
+     */
+    private static final ByteBuffer EMPTY_CHUNK = ByteBuffer.allocateDirect(0);
+
+    /**
+     * Markers queued after the last chunk of a recording
+     */
+    private static final ByteBuffer END_MARKER = ByteBuffer.allocate(0);
+    private static final ByteBuffer CANCEL_MARKER = ByteBuffer.allocate(0);
+    private static final ByteBuffer QUIT_MARKER = ByteBuffer.allocate(0);
+
+    private final ArrayBlockingQueue<ByteBuffer> mFreeChunks = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ArrayBlockingQueue<ByteBuffer> mFilledChunks = new ArrayBlockingQueue<>(POOL_SIZE + 2);
+
+    /**
+     * The listeners of the recordings whose chunks are not all delivered yet, oldest first
+     */
+    private final ArrayBlockingQueue<RecordingChunkListener> mListeners = new ArrayBlockingQueue<>(POOL_SIZE + 2);
+
+    /**
+     * The listener of the recording being delivered, only touched by the delivery thread
+     */
+    private RecordingChunkListener mDeliveredListener;
+
+    /**
+     * Size of the chunks of the current recording, and the chunk being filled.
+     * Only touched by the writing threads, one recording at a time
+     */
+    private int mChunkSize;
+    private ByteBuffer mCurrentChunk;
+
+    ChunkDispatcher() {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            mFreeChunks.add(EMPTY_CHUNK);
+        }
+
+        Thread thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get ready for a new recording, the previous one must have been finished.
+     * Its chunks may still be delivered to its own listener.
+     *
+     * @param listener  receives the chunks of this recording
+     * @param chunkSize the size of the chunks in bytes
+     */
+    void start(RecordingChunkListener listener, int chunkSize) {
+        mChunkSize = chunkSize;
+        putUninterruptibly(mListeners, listener);
+    }
+
+    /**
+     * Copy the encoded bytes between the position and the limit of the given buffer,
+     * and move its position to the limit
+     */
+    void write(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            if (mCurrentChunk == null) {
+                mCurrentChunk = takeUninterruptibly(mFreeChunks);
+                if (mCurrentChunk.capacity() != mChunkSize) {
+                    // Only allocated for the first recording, or when the size changes
+                    mCurrentChunk = ByteBuffer.allocateDirect(mChunkSize);
+                }
+                mCurrentChunk.clear();
+            }
+
+            int size = Math.min(data.remaining(), mCurrentChunk.remaining());
+            int limit = data.limit();
+            data.limit(data.position() + size);
+            mCurrentChunk.put(data);
+            data.limit(limit);
+
+            if (!mCurrentChunk.hasRemaining()) {
+                dispatchCurrentChunk();
+            }
+        }
+    }
+
+    /**
+     * Deliver what is left and end the recording
+     */
+    void finish(boolean cancelled) {
+        if (cancelled && mCurrentChunk != null) {
+            mFreeChunks.add(mCurrentChunk);
+            mCurrentChunk = null;
+        } else if (mCurrentChunk != null) {
+            dispatchCurrentChunk();
+        }
+
+        putUninterruptibly(mFilledChunks, cancelled ? CANCEL_MARKER : END_MARKER);
+    }
+
+    /**
+     * Stop the delivery thread once the queued chunks are delivered
+     */
+    void quit() {
+        putUninterruptibly(mFilledChunks, QUIT_MARKER);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            ByteBuffer chunk = takeUninterruptibly(mFilledChunks);
+            if (chunk == QUIT_MARKER) {
+                return;
+            }
+
+            if (mDeliveredListener == null) {
+                // The first chunk or the end of the next recording, queued after its listener
+                mDeliveredListener = takeUninterruptibly(mListeners);
+            }
+
+            try {
+                if (chunk == END_MARKER || chunk == CANCEL_MARKER) {
+                    mDeliveredListener.onRecordingChunksEnd(chunk == CANCEL_MARKER);
+                } else {
+                    mDeliveredListener.onRecordingChunk(chunk);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "The chunk listener has thrown", e);
+            }
+
+            if (chunk == END_MARKER || chunk == CANCEL_MARKER) {
+                mDeliveredListener = null;
+            } else {
+                mFreeChunks.add(chunk);
+            }
+        }
+    }
+
+    private void dispatchCurrentChunk() {
+        mCurrentChunk.flip();
+        putUninterruptibly(mFilledChunks, mCurrentChunk);
+        mCurrentChunk = null;
+    }
+
+    private static <T> void putUninterruptibly(ArrayBlockingQueue<T> queue, T item) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    queue.put(item);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static <T> T takeUninterruptibly(ArrayBlockingQueue<T> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package ml.matteolobello.recordingaudioview;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small process-wide pool of direct buffers, shared by the in-memory outputs.
+ * Allocating direct memory is slow and it is only freed by the GC,
+ * so the buffers of the short takes are recycled instead.
+ */
+final class DirectBufferPool {
+
+    /**
+     * Max number of buffers kept in the pool
+     */
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final List<ByteBuffer> sBuffers = new ArrayList<>(MAX_POOLED_BUFFERS);
+
+    private DirectBufferPool() {
+    }
+
+    /**
+     * @return a cleared direct buffer of at least the given capacity,
+     * the smallest pooled one if any fits
+     */
+    static synchronized ByteBuffer acquire(int capacity) {
+        int bestIndex = -1;
+        for (int i = 0; i < sBuffers.size(); i++) {
+            int bufferCapacity = sBuffers.get(i).capacity();
+            if (bufferCapacity >= capacity
+                    && (bestIndex == -1 || bufferCapacity < sBuffers.get(bestIndex).capacity())) {
+                bestIndex = i;
+            }
+        }
+
+        if (bestIndex == -1) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        ByteBuffer buffer = sBuffers.remove(bestIndex);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer, it must not be used anymore.
+     * When the pool is full the smallest buffer is dropped.
+     */
+    static synchronized void release(ByteBuffer buffer) {
+        if (sBuffers.size() < MAX_POOLED_BUFFERS) {
+            sBuffers.add(buffer);
+            return;
+        }
+
+        int smallestIndex = 0;
+        for (int i = 1; i < sBuffers.size(); i++) {
+            if (sBuffers.get(i).capacity() < sBuffers.get(smallestIndex).capacity()) {
+                smallestIndex = i;
+            }
+        }
+
+        if (sBuffers.get(smallestIndex).capacity() < buffer.capacity()) {
+            sBuffers.set(smallestIndex, buffer);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ml.matteolobello.recordingaudioview;
+
+/**
+ * A light alpha-beta filter over the touch samples of a drag, on one axis.
+ * It smooths the position, estimates the velocity, and extrapolates where
+ * the finger will be when the next frame is shown.
+ * <p>
+ * Only primitives, nothing is allocated per sample.
+ */
+class DragPredictor {
+
+    /**
+     * Weights of the position and velocity corrections, higher values follow
+     * the finger more closely, lower values smooth more
+     */
+    private static final float ALPHA = 0.75f;
+    private static final float BETA = 0.25f;
+
+    /**
+     * How far ahead the position is extrapolated, about one frame at 60Hz
+     */
+    private static final long PREDICTION_MS = 16;
+
+    private float mPosition;
+    private float mVelocity;
+    private long mLastTimeMs;
+
+    /**
+     * Start a new drag at the given position
+     */
+    void reset(long timeMs, float position) {
+        mPosition = position;
+        mVelocity = 0;
+        mLastTimeMs = timeMs;
+    }
+
+    /**
+     * Feed a touch sample, in order
+     */
+    void add(long timeMs, float position) {
+        long dtMs = timeMs - mLastTimeMs;
+        if (dtMs <= 0) {
+            // Same timestamp, just take the newest position
+            mPosition = position;
+            return;
+        }
+
+        float predicted = mPosition + mVelocity * dtMs;
+        float residual = position - predicted;
+
+        mPosition = predicted + ALPHA * residual;
+        mVelocity += BETA * residual / dtMs;
+        mLastTimeMs = timeMs;
+    }
+
+    /**
+     * @return the smoothed position of the last sample
+     */
+    float getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return the position the finger should have when the next frame is shown
+     */
+    float predict() {
+        return mPosition + mVelocity * PREDICTION_MS;
+    }
+}
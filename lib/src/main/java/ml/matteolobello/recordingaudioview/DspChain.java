@@ -0,0 +1,114 @@
+package ml.matteolobello.recordingaudioview;
+
+/**
+ * Describes the processing applied to the PCM samples between the capture and the encoder:
+ * a high-pass filter, a noise gate, a gain normalizer and a resampler, in this order.
+ * Each of them can be turned off with {@link #OFF}.
+ * <p>
+ * The chain runs while recording, on its own thread, so the output needs no
+ * post-processing. Only supported by the PCM recorder, see {@link RecordingEngine#setDspChain(DspChain)}.
+ */
+public final class DspChain {
+
+    /**
+     * Value turning off a stage of the chain
+     */
+    public static final int OFF = 0;
+
+    /**
+     * Range of the output sample rates
+     */
+    private static final int MIN_SAMPLE_RATE = 8000;
+    private static final int MAX_SAMPLE_RATE = 48000;
+
+    private final int mHighPassCutoffHz;
+    private final int mNoiseGateThresholdDbfs;
+    private final int mNormalizerTargetDbfs;
+    private final int mOutputSampleRate;
+
+    /**
+     * @param highPassCutoffHz       cutoff of the high-pass filter removing rumble and handling noise,
+     *                               like 80Hz for speech. {@link #OFF} to disable
+     * @param noiseGateThresholdDbfs level below which the audio is muted, like -50dBFS.
+     *                               {@link #OFF} to disable
+     * @param normalizerTargetDbfs   peak level the gain is slowly driven to, like -3dBFS.
+     *                               {@link #OFF} to disable
+     * @param outputSampleRate       sample rate the audio is converted to, it must be supported
+     *                               by the encoder. {@link #OFF} to keep the captured one
+     */
+    public DspChain(int highPassCutoffHz, int noiseGateThresholdDbfs, int normalizerTargetDbfs, int outputSampleRate) {
+        if (highPassCutoffHz < 0) {
+            throw new IllegalArgumentException("Invalid high-pass cutoff: " + highPassCutoffHz);
+        }
+
+        if (noiseGateThresholdDbfs > 0 || normalizerTargetDbfs > 0) {
+            throw new IllegalArgumentException("The levels are in dBFS, they cannot be positive");
+        }
+
+        if (outputSampleRate != OFF && (outputSampleRate < MIN_SAMPLE_RATE || outputSampleRate > MAX_SAMPLE_RATE)) {
+            throw new IllegalArgumentException("Invalid output sample rate: " + outputSampleRate);
+        }
+
+        mHighPassCutoffHz = highPassCutoffHz;
+        mNoiseGateThresholdDbfs = noiseGateThresholdDbfs;
+        mNormalizerTargetDbfs = normalizerTargetDbfs;
+        mOutputSampleRate = outputSampleRate;
+    }
+
+    public int getHighPassCutoffHz() {
+        return mHighPassCutoffHz;
+    }
+
+    public int getNoiseGateThresholdDbfs() {
+        return mNoiseGateThresholdDbfs;
+    }
+
+    public int getNormalizerTargetDbfs() {
+        return mNormalizerTargetDbfs;
+    }
+
+    public int getOutputSampleRate() {
+        return mOutputSampleRate;
+    }
+
+    /**
+     * @return the sample rate of the processed audio
+     */
+    int getOutputSampleRate(int inputSampleRate) {
+        return mOutputSampleRate != OFF ? mOutputSampleRate : inputSampleRate;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof DspChain)) {
+            return false;
+        }
+
+        DspChain that = (DspChain) o;
+        return mHighPassCutoffHz == that.mHighPassCutoffHz
+                && mNoiseGateThresholdDbfs == that.mNoiseGateThresholdDbfs
+                && mNormalizerTargetDbfs == that.mNormalizerTargetDbfs
+                && mOutputSampleRate == that.mOutputSampleRate;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mHighPassCutoffHz;
+        result = 31 * result + mNoiseGateThresholdDbfs;
+        result = 31 * result + mNormalizerTargetDbfs;
+        result = 31 * result + mOutputSampleRate;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "DspChain{highPassCutoffHz=" + mHighPassCutoffHz
+                + ", noiseGateThresholdDbfs=" + mNoiseGateThresholdDbfs
+                + ", normalizerTargetDbfs=" + mNormalizerTargetDbfs
+                + ", outputSampleRate=" + mOutputSampleRate + "}";
+    }
+}
@@ -0,0 +1,538 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Runs a {@link DspChain} on its own thread, between the {@link PcmRecorder} and the encoder.
+ * <p>
+ * The capture thread only copies its blocks into a fixed pool, so the processing and the
+ * encoder never delay the reads. When the pool is empty, write() blocks until a block is processed.
+ * <p>
+ * The samples are processed as floats in primitive arrays, allocated at start only when
+ * the format or the block size grows, nothing is allocated per block.
+ * start() and finish() are called on the engine thread, write() on the capture thread.
+ */
+class DspProcessor implements Runnable {
+
+    /**
+     * Log TAG
+     */
+    private static final String TAG = "DspProcessor";
+
+    /**
+     * Number of blocks in the pool, about half a second of audio
+     */
+    private static final int POOL_SIZE = 24;
+
+    /**
+     * Marker queued after the last block of a recording
+     */
+    private static final ByteBuffer END_MARKER = ByteBuffer.allocate(0);
+
+    /**
+     * Q of the filters, Butterworth
+     */
+    private static final double BUTTERWORTH_Q = Math.sqrt(0.5);
+
+    /**
+     * Highest cutoff of the filters, relative to the sample rate
+     */
+    private static final double MAX_CUTOFF_RATIO = 0.45;
+
+    /**
+     * Cutoff of the anti-aliasing filter, relative to the output sample rate
+     */
+    private static final double ANTI_ALIASING_CUTOFF_RATIO = 0.4;
+
+    /**
+     * How fast the noise gate opens and closes, and how long it stays open after the last loud sample
+     */
+    private static final int GATE_ATTACK_MS = 2;
+    private static final int GATE_RELEASE_MS = 80;
+    private static final int GATE_HOLD_MS = 150;
+
+    /**
+     * How fast the normalizer lowers the gain on loud parts and raises it on quiet ones,
+     * and how fast its peak envelope decays
+     */
+    private static final int NORMALIZER_ATTACK_MS = 10;
+    private static final int NORMALIZER_RELEASE_MS = 1000;
+    private static final int NORMALIZER_ENVELOPE_MS = 300;
+
+    /**
+     * Gain range of the normalizer, -20dB to +20dB
+     */
+    private static final float NORMALIZER_MIN_GAIN = 0.1f;
+    private static final float NORMALIZER_MAX_GAIN = 10;
+
+    /**
+     * Level below which the normalizer keeps its gain, about -40dBFS,
+     * so the noise between the words is not boosted
+     */
+    private static final float NORMALIZER_MIN_LEVEL = 328;
+
+    private final ArrayBlockingQueue<ByteBuffer> mFreeBlocks = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ArrayBlockingQueue<ByteBuffer> mFilledBlocks = new ArrayBlockingQueue<>(POOL_SIZE + 1);
+    private int mBlockSize;
+
+    private PcmEncoder mNext;
+    private Thread mThread;
+
+    /**
+     * The error that interrupted the processing, if any
+     */
+    private volatile Exception mError;
+
+    private int mChannelCount;
+
+    /**
+     * The samples of the block being processed, and the resampled ones
+     */
+    private float[] mSamples = new float[0];
+    private float[] mResampled = new float[0];
+    private ByteBuffer mOutputBuffer;
+
+    private final Biquad mHighPass = new Biquad();
+    private boolean mHighPassEnabled;
+
+    /**
+     * Noise gate, threshold on the sample scale, 0 if disabled
+     */
+    private float mGateThreshold;
+    private float mGateAttack;
+    private float mGateRelease;
+    private int mGateHoldFrames;
+    private int mGateHoldRemaining;
+    private float mGateGain;
+
+    /**
+     * Gain normalizer, target on the sample scale, 0 if disabled
+     */
+    private float mNormalizerTarget;
+    private float mNormalizerAttack;
+    private float mNormalizerRelease;
+    private float mNormalizerEnvelopeDecay;
+    private float mNormalizerEnvelope;
+    private float mNormalizerGain;
+
+    /**
+     * Resampler, input frames per output frame, 1 if disabled.
+     * The anti-aliasing filter, two cascaded low-pass, is only used when downsampling.
+     */
+    private double mResampleStep;
+    private final Biquad mAntiAliasing = new Biquad();
+    private final Biquad mAntiAliasing2 = new Biquad();
+    private boolean mAntiAliasingEnabled;
+
+    /**
+     * Position of the next output frame, in input frames from the start of the next block.
+     * Between -1 and 0, where it is interpolated from the last frame of the previous block.
+     */
+    private double mResamplePosition;
+    private final float[] mLastFrame = new float[2];
+
+    /**
+     * Start the processing thread for a new recording
+     *
+     * @param next         receives the processed blocks, on the processing thread
+     * @param sampleRate   the captured sample rate
+     * @param channelCount 1 for mono, 2 for stereo
+     * @param blockSize    the max size of the blocks, in bytes
+     */
+    void start(DspChain chain, PcmEncoder next, int sampleRate, int channelCount, int blockSize) {
+        mNext = next;
+        mChannelCount = channelCount;
+
+        int frameSize = channelCount * 2;
+        blockSize -= blockSize % frameSize;
+        if (blockSize != mBlockSize) {
+            mBlockSize = blockSize;
+            mFreeBlocks.clear();
+            for (int i = 0; i < POOL_SIZE; i++) {
+                mFreeBlocks.add(ByteBuffer.allocateDirect(blockSize).order(ByteOrder.LITTLE_ENDIAN));
+            }
+        }
+
+        int outputSampleRate = chain.getOutputSampleRate(sampleRate);
+        mResampleStep = sampleRate / (double) outputSampleRate;
+        mResamplePosition = 0;
+        mLastFrame[0] = 0;
+        mLastFrame[1] = 0;
+
+        int samples = blockSize / 2;
+        int resampledSamples = ((int) Math.ceil(blockSize / frameSize / mResampleStep) + 1) * channelCount;
+        if (mSamples.length < samples) {
+            mSamples = new float[samples];
+        }
+        if (mResampled.length < resampledSamples) {
+            mResampled = new float[resampledSamples];
+        }
+        int outputSize = Math.max(samples, resampledSamples) * 2;
+        if (mOutputBuffer == null || mOutputBuffer.capacity() < outputSize) {
+            mOutputBuffer = ByteBuffer.allocateDirect(outputSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        mHighPassEnabled = chain.getHighPassCutoffHz() != DspChain.OFF;
+        if (mHighPassEnabled) {
+            mHighPass.setHighPass(Math.min(chain.getHighPassCutoffHz(), sampleRate * MAX_CUTOFF_RATIO), sampleRate);
+        }
+
+        mAntiAliasingEnabled = outputSampleRate < sampleRate;
+        if (mAntiAliasingEnabled) {
+            mAntiAliasing.setLowPass(outputSampleRate * ANTI_ALIASING_CUTOFF_RATIO, sampleRate);
+            mAntiAliasing2.setLowPass(outputSampleRate * ANTI_ALIASING_CUTOFF_RATIO, sampleRate);
+        }
+
+        mGateThreshold = chain.getNoiseGateThresholdDbfs() != DspChain.OFF
+                ? toSampleLevel(chain.getNoiseGateThresholdDbfs()) : 0;
+        mGateAttack = smoothingCoefficient(GATE_ATTACK_MS, sampleRate);
+        mGateRelease = smoothingCoefficient(GATE_RELEASE_MS, sampleRate);
+        mGateHoldFrames = GATE_HOLD_MS * sampleRate / 1000;
+        mGateHoldRemaining = 0;
+        mGateGain = 0;
+
+        mNormalizerTarget = chain.getNormalizerTargetDbfs() != DspChain.OFF
+                ? toSampleLevel(chain.getNormalizerTargetDbfs()) : 0;
+        mNormalizerAttack = smoothingCoefficient(NORMALIZER_ATTACK_MS, sampleRate);
+        mNormalizerRelease = smoothingCoefficient(NORMALIZER_RELEASE_MS, sampleRate);
+        mNormalizerEnvelopeDecay = 1 - smoothingCoefficient(NORMALIZER_ENVELOPE_MS, sampleRate);
+        mNormalizerEnvelope = 0;
+        mNormalizerGain = 1;
+
+        mError = null;
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Queue a copy of the samples between the position and the limit,
+     * and move the position to the limit
+     */
+    void write(ByteBuffer pcm) throws IOException {
+        if (mError != null) {
+            throw new IOException("Processing failed", mError);
+        }
+
+        int limit = pcm.limit();
+        while (pcm.hasRemaining()) {
+            ByteBuffer block = takeUninterruptibly(mFreeBlocks);
+            block.clear();
+
+            pcm.limit(pcm.position() + Math.min(pcm.remaining(), block.capacity()));
+            block.put(pcm);
+            pcm.limit(limit);
+
+            block.flip();
+            putUninterruptibly(mFilledBlocks, block);
+        }
+    }
+
+    /**
+     * Process what is queued and stop the processing thread
+     */
+    void finish() throws IOException {
+        putUninterruptibly(mFilledBlocks, END_MARKER);
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        mThread = null;
+        mNext = null;
+
+        if (mError != null) {
+            throw new IOException("Processing failed", mError);
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        while (true) {
+            ByteBuffer block = takeUninterruptibly(mFilledBlocks);
+            if (block == END_MARKER) {
+                return;
+            }
+
+            // After an error the blocks are only given back, write() reports it
+            if (mError == null) {
+                try {
+                    process(block);
+                } catch (Exception e) {
+                    mError = e;
+                }
+            }
+
+            mFreeBlocks.add(block);
+        }
+    }
+
+    private void process(ByteBuffer block) throws IOException {
+        int start = block.position();
+        int samples = block.remaining() / 2;
+        int frames = samples / mChannelCount;
+
+        float[] buffer = mSamples;
+        for (int i = 0; i < samples; i++) {
+            buffer[i] = block.getShort(start + i * 2);
+        }
+
+        if (mHighPassEnabled) {
+            mHighPass.process(buffer, frames, mChannelCount);
+        }
+
+        if (mGateThreshold > 0) {
+            gate(buffer, frames);
+        }
+
+        if (mNormalizerTarget > 0) {
+            normalize(buffer, frames);
+        }
+
+        if (mResampleStep != 1) {
+            if (mAntiAliasingEnabled) {
+                mAntiAliasing.process(buffer, frames, mChannelCount);
+                mAntiAliasing2.process(buffer, frames, mChannelCount);
+            }
+
+            samples = resample(buffer, frames) * mChannelCount;
+            buffer = mResampled;
+        }
+
+        ByteBuffer output = mOutputBuffer;
+        output.clear();
+        for (int i = 0; i < samples; i++) {
+            float sample = buffer[i];
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            output.putShort((short) sample);
+        }
+        output.flip();
+
+        mNext.encode(output);
+    }
+
+    /**
+     * Mute the audio below the threshold, with a short hold so the gate does not chatter
+     */
+    private void gate(float[] buffer, int frames) {
+        int channelCount = mChannelCount;
+        for (int frame = 0; frame < frames; frame++) {
+            int offset = frame * channelCount;
+            if (peakOfFrame(buffer, offset, channelCount) >= mGateThreshold) {
+                mGateHoldRemaining = mGateHoldFrames;
+            }
+
+            float target = 0;
+            if (mGateHoldRemaining > 0) {
+                mGateHoldRemaining--;
+                target = 1;
+            }
+            mGateGain += (target - mGateGain) * (target > mGateGain ? mGateAttack : mGateRelease);
+
+            for (int channel = 0; channel < channelCount; channel++) {
+                buffer[offset + channel] *= mGateGain;
+            }
+        }
+    }
+
+    /**
+     * Drive the gain so the peak envelope reaches the target. The audio is streamed,
+     * so this follows the level over the last seconds instead of the peak of the whole take.
+     */
+    private void normalize(float[] buffer, int frames) {
+        int channelCount = mChannelCount;
+        for (int frame = 0; frame < frames; frame++) {
+            int offset = frame * channelCount;
+            float level = peakOfFrame(buffer, offset, channelCount);
+            mNormalizerEnvelope = level > mNormalizerEnvelope ? level : mNormalizerEnvelope * mNormalizerEnvelopeDecay;
+
+            if (mNormalizerEnvelope >= NORMALIZER_MIN_LEVEL) {
+                float gain = Math.max(NORMALIZER_MIN_GAIN,
+                        Math.min(mNormalizerTarget / mNormalizerEnvelope, NORMALIZER_MAX_GAIN));
+                mNormalizerGain += (gain - mNormalizerGain)
+                        * (gain < mNormalizerGain ? mNormalizerAttack : mNormalizerRelease);
+            }
+
+            for (int channel = 0; channel < channelCount; channel++) {
+                buffer[offset + channel] *= mNormalizerGain;
+            }
+        }
+    }
+
+    /**
+     * Linear interpolation into {@link #mResampled}, continued across the blocks
+     *
+     * @return the number of output frames
+     */
+    private int resample(float[] buffer, int frames) {
+        int channelCount = mChannelCount;
+        float[] output = mResampled;
+        double position = mResamplePosition;
+        int outputFrames = 0;
+
+        // The frame after the position has to be in this block
+        while (position < frames - 1) {
+            int index = (int) Math.floor(position);
+            float fraction = (float) (position - index);
+
+            for (int channel = 0; channel < channelCount; channel++) {
+                float current = index < 0 ? mLastFrame[channel] : buffer[index * channelCount + channel];
+                float next = buffer[(index + 1) * channelCount + channel];
+                output[outputFrames * channelCount + channel] = current + (next - current) * fraction;
+            }
+
+            outputFrames++;
+            position += mResampleStep;
+        }
+
+        if (frames > 0) {
+            mResamplePosition = position - frames;
+            for (int channel = 0; channel < channelCount; channel++) {
+                mLastFrame[channel] = buffer[(frames - 1) * channelCount + channel];
+            }
+        }
+
+        return outputFrames;
+    }
+
+    private static float peakOfFrame(float[] buffer, int offset, int channelCount) {
+        float peak = 0;
+        for (int channel = 0; channel < channelCount; channel++) {
+            float abs = Math.abs(buffer[offset + channel]);
+            if (abs > peak) {
+                peak = abs;
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * @return the level in dBFS on the 16 bit sample scale
+     */
+    private static float toSampleLevel(int dbfs) {
+        return (float) (Short.MAX_VALUE * Math.pow(10, dbfs / 20.0));
+    }
+
+    /**
+     * @return the per-frame coefficient of a one-pole smoothing with the given time constant
+     */
+    private static float smoothingCoefficient(int timeMs, int sampleRate) {
+        return (float) (1 - Math.exp(-1000.0 / (timeMs * (double) sampleRate)));
+    }
+
+    private static void putUninterruptibly(ArrayBlockingQueue<ByteBuffer> queue, ByteBuffer block) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    queue.put(block);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static ByteBuffer takeUninterruptibly(ArrayBlockingQueue<ByteBuffer> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A second order filter in transposed direct form II, with the state of up to two channels
+     */
+    private static final class Biquad {
+
+        private float mB0;
+        private float mB1;
+        private float mB2;
+        private float mA1;
+        private float mA2;
+
+        private final float[] mZ1 = new float[2];
+        private final float[] mZ2 = new float[2];
+
+        void setHighPass(double cutoffHz, int sampleRate) {
+            double w0 = 2 * Math.PI * cutoffHz / sampleRate;
+            double cos = Math.cos(w0);
+            setCoefficients((1 + cos) / 2, -(1 + cos), (1 + cos) / 2, w0);
+        }
+
+        void setLowPass(double cutoffHz, int sampleRate) {
+            double w0 = 2 * Math.PI * cutoffHz / sampleRate;
+            double cos = Math.cos(w0);
+            setCoefficients((1 - cos) / 2, 1 - cos, (1 - cos) / 2, w0);
+        }
+
+        void process(float[] buffer, int frames, int channelCount) {
+            for (int channel = 0; channel < channelCount; channel++) {
+                float z1 = mZ1[channel];
+                float z2 = mZ2[channel];
+
+                for (int i = channel, end = frames * channelCount; i < end; i += channelCount) {
+                    float x = buffer[i];
+                    float y = mB0 * x + z1;
+                    z1 = mB1 * x - mA1 * y + z2;
+                    z2 = mB2 * x - mA2 * y;
+                    buffer[i] = y;
+                }
+
+                mZ1[channel] = z1;
+                mZ2[channel] = z2;
+            }
+        }
+
+        /**
+         * Coefficients from the Audio EQ Cookbook, the state is reset
+         */
+        private void setCoefficients(double b0, double b1, double b2, double w0) {
+            double alpha = Math.sin(w0) / (2 * BUTTERWORTH_Q);
+            double a0 = 1 + alpha;
+
+            mB0 = (float) (b0 / a0);
+            mB1 = (float) (b1 / a0);
+            mB2 = (float) (b2 / a0);
+            mA1 = (float) (-2 * Math.cos(w0) / a0);
+            mA2 = (float) ((1 - alpha) / a0);
+
+            mZ1[0] = mZ1[1] = 0;
+            mZ2[0] = mZ2[1] = 0;
+        }
+    }
+}
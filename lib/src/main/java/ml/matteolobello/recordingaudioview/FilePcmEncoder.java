@@ -0,0 +1,201 @@
+package ml.matteolobello.recordingaudioview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Base of the built-in encoders, writes the encoded output to the {@link OutputSink}
+ * and, when chunked output is enabled, streams it to the chunk listener too.
+ * <p>
+ * Writes are gathered in a buffer of {@link OutputSink#getBufferSize()} bytes,
+ * reused across recordings, so the output is not touched for every block of samples.
+ * The output is only opened by the first write reaching it, so a take cancelled
+ * while it still fits in the buffer never touches the storage.
+ */
+public abstract class FilePcmEncoder implements PcmEncoder {
+
+    private OutputSink mOutput;
+
+    /**
+     * The open output, null until the first write reaches it
+     */
+    private OutputSink.Target mTarget;
+
+    /**
+     * Boolean value to check if the recording is being cancelled, the writes are dropped
+     */
+    private boolean mCancelled;
+
+    /**
+     * Pending writes, null when the output is not buffered
+     */
+    private ByteBuffer mWriteBuffer;
+
+    /**
+     * Set by the engine for the recordings with chunked output, null otherwise
+     */
+    private ChunkDispatcher mChunkDispatcher;
+
+    @Override
+    public final void start(OutputSink output, int sampleRate, int channelCount) throws IOException {
+        mOutput = output;
+        mTarget = null;
+        mCancelled = false;
+
+        int bufferSize = output.getBufferSize();
+        if (bufferSize == 0) {
+            mWriteBuffer = null;
+        } else if (mWriteBuffer == null || mWriteBuffer.capacity() != bufferSize) {
+            mWriteBuffer = ByteBuffer.allocateDirect(bufferSize);
+        } else {
+            mWriteBuffer.clear();
+        }
+
+        try {
+            onStart(sampleRate, channelCount);
+        } catch (IOException | RuntimeException e) {
+            close(false);
+            throw e;
+        }
+    }
+
+    @Override
+    public final void stop() throws IOException {
+        boolean complete = false;
+        try {
+            onStop();
+            flush();
+            // Even an empty recording has to replace the previous output
+            getTarget();
+            complete = true;
+        } finally {
+            close(complete && mOutput.isSyncOnFinish());
+        }
+    }
+
+    /**
+     * Stop a recording which has to be discarded: the pending writes are dropped,
+     * and the output is discarded only if it has already been written to
+     */
+    final void cancel() throws IOException {
+        mCancelled = true;
+
+        OutputSink output = mOutput;
+        boolean written = mTarget != null;
+        try {
+            // Releases the encoder, what it writes is dropped
+            onStop();
+        } finally {
+            close(false);
+
+            if (written) {
+                output.discard();
+            }
+        }
+    }
+
+    /**
+     * Called when a recording starts, the output is open
+     */
+    protected abstract void onStart(int sampleRate, int channelCount) throws IOException;
+
+    /**
+     * Called when a recording stops, write what is left before the output is closed
+     */
+    protected abstract void onStop() throws IOException;
+
+    /**
+     * @return true if the recording is being cancelled, what is written is dropped
+     */
+    protected final boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Append encoded bytes to the output, from the position to the limit of the buffer
+     */
+    protected final void write(ByteBuffer encoded) throws IOException {
+        if (mCancelled) {
+            encoded.position(encoded.limit());
+            return;
+        }
+
+        if (mChunkDispatcher != null) {
+            int position = encoded.position();
+            mChunkDispatcher.write(encoded);
+            encoded.position(position);
+        }
+
+        if (mWriteBuffer == null) {
+            getTarget().write(encoded);
+            return;
+        }
+
+        if (encoded.remaining() > mWriteBuffer.remaining()) {
+            flush();
+        }
+
+        if (encoded.remaining() >= mWriteBuffer.capacity()) {
+            // Would not fit anyway
+            getTarget().write(encoded);
+        } else {
+            mWriteBuffer.put(encoded);
+        }
+    }
+
+    /**
+     * Overwrite bytes already written, like a header with the final sizes.
+     * They are not streamed again to the chunk listener.
+     */
+    protected final void writeAt(ByteBuffer encoded, long position) throws IOException {
+        if (mCancelled) {
+            encoded.position(encoded.limit());
+            return;
+        }
+
+        flush();
+
+        getTarget().write(encoded, position);
+    }
+
+    void setChunkDispatcher(ChunkDispatcher chunkDispatcher) {
+        mChunkDispatcher = chunkDispatcher;
+    }
+
+    private void flush() throws IOException {
+        if (mWriteBuffer == null || mWriteBuffer.position() == 0) {
+            return;
+        }
+
+        mWriteBuffer.flip();
+        getTarget().write(mWriteBuffer);
+        mWriteBuffer.clear();
+    }
+
+    private OutputSink.Target getTarget() throws IOException {
+        if (mTarget == null) {
+            mTarget = mOutput.open();
+        }
+
+        return mTarget;
+    }
+
+    /**
+     * @param sync true to sync the output to the storage before closing it
+     */
+    private void close(boolean sync) throws IOException {
+        OutputSink.Target target = mTarget;
+
+        mTarget = null;
+        mOutput = null;
+        mChunkDispatcher = null;
+
+        if (mWriteBuffer != null) {
+            mWriteBuffer.clear();
+        }
+
+        if (target != null) {
+            target.close(sync);
+        }
+    }
+}
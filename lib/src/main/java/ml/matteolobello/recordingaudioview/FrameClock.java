@@ -0,0 +1,167 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * A clock ticking in sync with the display refresh, driven by the Choreographer.
+ * <p>
+ * The elapsed time is measured with {@link SystemClock#elapsedRealtimeNanos()},
+ * so it never jumps when the wall clock changes. The same instance is reused
+ * for every run, nothing is allocated per start or per frame.
+ * Must be used on the main thread.
+ */
+class FrameClock implements Choreographer.FrameCallback {
+
+    /**
+     * Tick on every frame
+     */
+    static final int TICK_EVERY_FRAME = 0;
+
+    /**
+     * Never tick
+     */
+    static final int TICK_OFF = -1;
+
+    private final Listener mListener;
+
+    /**
+     * Tick interval in ms, or one of {@link #TICK_EVERY_FRAME} and {@link #TICK_OFF}
+     */
+    private int mTickIntervalMs = TICK_EVERY_FRAME;
+
+    private long mStartNanos;
+    private long mLastTickMs;
+    private boolean mRunning;
+
+    /**
+     * Elapsed realtime at which the clock has been paused, 0 if not paused
+     */
+    private long mPausedNanos;
+
+    FrameClock(Listener listener) {
+        mListener = listener;
+    }
+
+    void setTickInterval(int tickIntervalMs) {
+        mTickIntervalMs = tickIntervalMs;
+
+        if (mRunning && (mTickIntervalMs == TICK_OFF || mPausedNanos != 0)) {
+            Choreographer.getInstance().removeFrameCallback(this);
+        } else if (mRunning) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    int getTickInterval() {
+        return mTickIntervalMs;
+    }
+
+    /**
+     * Start measuring from now
+     */
+    void start() {
+        start(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Start measuring from the given time
+     *
+     * @param startNanos a {@link SystemClock#elapsedRealtimeNanos()} value
+     */
+    void start(long startNanos) {
+        stop();
+
+        mStartNanos = startNanos;
+        mLastTickMs = 0;
+        mPausedNanos = 0;
+        mRunning = true;
+
+        if (mTickIntervalMs != TICK_OFF) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    void stop() {
+        if (mRunning) {
+            mRunning = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    /**
+     * Freeze the elapsed time until {@link #resume()}
+     */
+    void pause() {
+        if (!mRunning || mPausedNanos != 0) {
+            return;
+        }
+
+        mPausedNanos = SystemClock.elapsedRealtimeNanos();
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    void resume() {
+        if (!mRunning || mPausedNanos == 0) {
+            return;
+        }
+
+        // The paused time does not count
+        mStartNanos += SystemClock.elapsedRealtimeNanos() - mPausedNanos;
+        mPausedNanos = 0;
+
+        if (mTickIntervalMs != TICK_OFF) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    boolean isPaused() {
+        return mPausedNanos != 0;
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return the ms passed from the start, or 0 if the clock is not running
+     */
+    long getElapsedMs() {
+        if (!mRunning) {
+            return 0;
+        }
+
+        long nowNanos = mPausedNanos != 0 ? mPausedNanos : SystemClock.elapsedRealtimeNanos();
+        return (nowNanos - mStartNanos) / 1000000L;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning || mPausedNanos != 0) {
+            return;
+        }
+
+        long elapsedMs = getElapsedMs();
+        if (mTickIntervalMs == TICK_EVERY_FRAME) {
+            mListener.onTick(elapsedMs);
+        } else if (elapsedMs - mLastTickMs >= mTickIntervalMs) {
+            // Stay on the interval grid, so that late frames do not make the ticks drift
+            mLastTickMs = elapsedMs - elapsedMs % mTickIntervalMs;
+            mListener.onTick(elapsedMs);
+        }
+
+        // The listener may have stopped or paused the clock
+        if (mRunning && mPausedNanos == 0) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    interface Listener {
+
+        /**
+         * @param elapsedMs the ms passed from the start
+         */
+        void onTick(long elapsedMs);
+    }
+}
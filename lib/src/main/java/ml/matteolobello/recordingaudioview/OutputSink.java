@@ -0,0 +1,493 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where a recording is written: a file, a FileDescriptor or ParcelFileDescriptor
+ * (like the ones returned by MediaStore), or memory.
+ * <p>
+ * The built-in PCM encoders buffer their writes, see {@link #setBufferSize(int)},
+ * and the output is synced to the storage once, when the recording is complete.
+ * In-memory outputs are only supported by the PCM backend.
+ */
+public abstract class OutputSink {
+
+    /**
+     * Default size of the write buffer of the PCM encoders
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Size of the write buffer, 0 to write every block right away
+     */
+    private int mBufferSize = DEFAULT_BUFFER_SIZE;
+
+    /**
+     * Boolean value to check if the output is synced to the storage when a recording is complete
+     */
+    private boolean mSyncOnFinish = true;
+
+    /**
+     * Peak summary of the last recording, null if none
+     */
+    private volatile float[] mPeaks;
+
+    /**
+     * Write to a file, overwritten by every recording.
+     * Files in the app-private storage are the fastest and need no permission.
+     */
+    public static OutputSink toFile(File file) {
+        return new FileSink(file);
+    }
+
+    /**
+     * Write to an open FileDescriptor, which stays owned by the caller.
+     * It must be seekable for the MediaRecorder and for the WAV output.
+     */
+    public static OutputSink toFileDescriptor(FileDescriptor fileDescriptor) {
+        return new FileDescriptorSink(fileDescriptor);
+    }
+
+    /**
+     * Write to a ParcelFileDescriptor, like the one returned by
+     * ContentResolver.openFileDescriptor() for a MediaStore item. It stays owned by the caller.
+     */
+    public static OutputSink toParcelFileDescriptor(ParcelFileDescriptor parcelFileDescriptor) {
+        return new FileDescriptorSink(parcelFileDescriptor.getFileDescriptor());
+    }
+
+    /**
+     * Write to a pooled direct buffer, read the last recording with {@link #getData()}.
+     * Recordings bigger than the max size, and the ones of the MediaRecorder backend,
+     * go to the fallback file instead: {@link #getData()} is then null.
+     * Cancelled takes which stayed in memory never touch the storage.
+     *
+     * @param maxSize      the max size of the buffer in bytes
+     * @param fallbackFile the file used when a recording does not fit in memory,
+     *                     or null to interrupt the recordings at the max size
+     */
+    public static OutputSink inMemory(int maxSize, File fallbackFile) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid max size: " + maxSize);
+        }
+
+        return new MemorySink(maxSize, fallbackFile);
+    }
+
+    /**
+     * @param bufferSize the size of the write buffer of the PCM encoders in bytes,
+     *                   0 to write every block right away
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 0) {
+            throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        }
+
+        mBufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @param syncOnFinish true to sync the output to the storage when a recording is complete
+     */
+    public void setSyncOnFinish(boolean syncOnFinish) {
+        mSyncOnFinish = syncOnFinish;
+    }
+
+    public boolean isSyncOnFinish() {
+        return mSyncOnFinish;
+    }
+
+    /**
+     * @return the output file, null if this is not a file output.
+     * The fallback file of the in-memory outputs.
+     */
+    public File getFile() {
+        return null;
+    }
+
+    /**
+     * @return the output FileDescriptor, null if this is not a FileDescriptor output
+     */
+    public FileDescriptor getFileDescriptor() {
+        return null;
+    }
+
+    /**
+     * @return a read-only view of the last recording, valid until the next one starts.
+     * Null if this is not an in-memory output or the recording did not fit in memory.
+     */
+    public ByteBuffer getData() {
+        return null;
+    }
+
+    /**
+     * @return the peak summary of the last recording, between 0 and 1, valid until the next one stops.
+     * Null if the summary is disabled, see {@link RecordingEngine#setPeakSummary(int, boolean)}.
+     */
+    public float[] getPeaks() {
+        return mPeaks;
+    }
+
+    void setPeaks(float[] peaks) {
+        mPeaks = peaks;
+    }
+
+    /**
+     * Open the output for a new recording
+     */
+    abstract Target open() throws IOException;
+
+    /**
+     * Called instead of {@link #open()} when the MediaRecorder is about to
+     * write to {@link #getFile()} or {@link #getFileDescriptor()}
+     */
+    void openForMediaRecorder() {
+    }
+
+    /**
+     * Sync a complete output written by the MediaRecorder
+     */
+    abstract void sync() throws IOException;
+
+    /**
+     * Drop the output of a cancelled recording
+     */
+    abstract void discard();
+
+    /**
+     * A file, overwritten by every recording
+     */
+    private static class FileSink extends OutputSink {
+
+        private final File mFile;
+
+        FileSink(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public File getFile() {
+            return mFile;
+        }
+
+        @Override
+        Target open() throws IOException {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            file.setLength(0);
+
+            return new ChannelTarget(file.getChannel(), true);
+        }
+
+        @Override
+        void sync() throws IOException {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+        }
+
+        @Override
+        void discard() {
+            mFile.delete();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FileSink && mFile.equals(((FileSink) o).mFile);
+        }
+
+        @Override
+        public int hashCode() {
+            return mFile.hashCode();
+        }
+    }
+
+    /**
+     * An open FileDescriptor, owned by the caller
+     */
+    private static class FileDescriptorSink extends OutputSink {
+
+        private final FileDescriptor mFileDescriptor;
+
+        FileDescriptorSink(FileDescriptor fileDescriptor) {
+            mFileDescriptor = fileDescriptor;
+        }
+
+        @Override
+        public FileDescriptor getFileDescriptor() {
+            return mFileDescriptor;
+        }
+
+        @Override
+        Target open() {
+            // Closing the channel could close the FileDescriptor, so it is left open
+            return new ChannelTarget(new FileOutputStream(mFileDescriptor).getChannel(), false);
+        }
+
+        @Override
+        void sync() throws IOException {
+            mFileDescriptor.sync();
+        }
+
+        @Override
+        void discard() {
+            // Owned by the caller
+        }
+    }
+
+    /**
+     * A pooled direct buffer, doubled when full up to the max size.
+     * Spills to the fallback file when a recording does not fit.
+     */
+    private static class MemorySink extends OutputSink {
+
+        /**
+         * Size of the first buffer of a recording
+         */
+        private static final int INITIAL_CAPACITY = 64 * 1024;
+
+        private final int mMaxSize;
+        private final File mFallbackFile;
+
+        /**
+         * The buffer holding the last recording, null when the sink is empty
+         */
+        private ByteBuffer mBuffer;
+
+        /**
+         * Bytes written by the last recording
+         */
+        private int mSize;
+
+        /**
+         * Boolean value to check if the last recording is in memory, false if it went to the fallback file
+         */
+        private boolean mInMemory;
+
+        /**
+         * The fallback file the current recording spilled to, null while it fits in memory
+         */
+        private Target mSpillTarget;
+
+        MemorySink(int maxSize, File fallbackFile) {
+            mMaxSize = maxSize;
+            mFallbackFile = fallbackFile;
+
+            // Nothing to buffer in memory, the spilled output is synced
+            setBufferSize(0);
+        }
+
+        @Override
+        public File getFile() {
+            return mFallbackFile;
+        }
+
+        @Override
+        public ByteBuffer getData() {
+            if (!mInMemory) {
+                return null;
+            }
+
+            ByteBuffer data = mBuffer.asReadOnlyBuffer();
+            data.position(0);
+            data.limit(mSize);
+            return data;
+        }
+
+        @Override
+        Target open() {
+            mSize = 0;
+            mInMemory = true;
+
+            if (mBuffer == null) {
+                mBuffer = DirectBufferPool.acquire(Math.min(INITIAL_CAPACITY, mMaxSize));
+            }
+
+            return new Target() {
+                @Override
+                public void write(ByteBuffer buffer) throws IOException {
+                    if (mSpillTarget != null) {
+                        mSpillTarget.write(buffer);
+                    } else {
+                        write(buffer, mSize);
+                    }
+                }
+
+                @Override
+                public void write(ByteBuffer buffer, long position) throws IOException {
+                    long end = position + buffer.remaining();
+                    if (mSpillTarget == null && end > mMaxSize) {
+                        spill();
+                    }
+
+                    if (mSpillTarget != null) {
+                        mSpillTarget.write(buffer, position);
+                        return;
+                    }
+
+                    ensureCapacity((int) end);
+
+                    mBuffer.clear();
+                    mBuffer.position((int) position);
+                    mBuffer.put(buffer);
+
+                    mSize = Math.max(mSize, (int) end);
+                }
+
+                @Override
+                public void close(boolean sync) throws IOException {
+                    if (mSpillTarget != null) {
+                        Target spillTarget = mSpillTarget;
+                        mSpillTarget = null;
+
+                        spillTarget.close(sync);
+                    }
+                }
+            };
+        }
+
+        @Override
+        void openForMediaRecorder() {
+            // The MediaRecorder cannot write to memory, it writes to the fallback file
+            mInMemory = false;
+            releaseBuffer();
+        }
+
+        @Override
+        void sync() throws IOException {
+            if (!mInMemory) {
+                new FileSink(mFallbackFile).sync();
+            }
+        }
+
+        @Override
+        void discard() {
+            if (!mInMemory && mFallbackFile != null) {
+                mFallbackFile.delete();
+            }
+
+            mInMemory = false;
+            releaseBuffer();
+        }
+
+        /**
+         * Move what has been written so far to the fallback file, and keep writing there
+         */
+        private void spill() throws IOException {
+            if (mFallbackFile == null) {
+                throw new IOException("The recording is bigger than " + mMaxSize + " bytes, and there is no fallback file");
+            }
+
+            mSpillTarget = new FileSink(mFallbackFile).open();
+
+            mBuffer.clear();
+            mBuffer.limit(mSize);
+            mSpillTarget.write(mBuffer);
+
+            mInMemory = false;
+            releaseBuffer();
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= mBuffer.capacity()) {
+                return;
+            }
+
+            ByteBuffer buffer = DirectBufferPool.acquire(Math.min(Math.max(capacity, mBuffer.capacity() * 2), mMaxSize));
+            mBuffer.clear();
+            mBuffer.limit(mSize);
+            buffer.put(mBuffer);
+
+            DirectBufferPool.release(mBuffer);
+            mBuffer = buffer;
+        }
+
+        private void releaseBuffer() {
+            if (mBuffer != null) {
+                DirectBufferPool.release(mBuffer);
+                mBuffer = null;
+            }
+
+            mSize = 0;
+        }
+    }
+
+    /**
+     * A FileChannel, written at its current position
+     */
+    private static class ChannelTarget implements Target {
+
+        private final FileChannel mChannel;
+        private final boolean mOwnsChannel;
+
+        ChannelTarget(FileChannel channel, boolean ownsChannel) {
+            mChannel = channel;
+            mOwnsChannel = ownsChannel;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += mChannel.write(buffer, position);
+            }
+        }
+
+        @Override
+        public void close(boolean sync) throws IOException {
+            try {
+                if (sync) {
+                    // fdatasync, the size of the file is synced too
+                    mChannel.force(false);
+                }
+            } finally {
+                if (mOwnsChannel) {
+                    mChannel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * An output open for a recording, used on the capture thread
+     */
+    interface Target {
+
+        /**
+         * Append the bytes between the position and the limit of the buffer
+         */
+        void write(ByteBuffer buffer) throws IOException;
+
+        /**
+         * Write the bytes between the position and the limit of the buffer at the given position
+         */
+        void write(ByteBuffer buffer, long position) throws IOException;
+
+        /**
+         * Close the output, the recording is complete
+         *
+         * @param sync true to sync the output to the storage first
+         */
+        void close(boolean sync) throws IOException;
+    }
+}
@@ -0,0 +1,500 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.media.MediaCodec;
+import android.os.Process;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes the samples to AAC LC like {@link AacPcmEncoder}, but in segments encoded in parallel,
+ * for long takes on devices where one encoder cannot keep up with the capture. Opt-in,
+ * {@link AacPcmEncoder} stays the reference for quality.
+ * <p>
+ * The samples are split in segments of whole AAC frames, each one encoded by its own MediaCodec
+ * on a pool sized to the cores. The segments are written in order as soon as the oldest
+ * one is encoded, so at the end only the last segments are left: stopping takes the same time
+ * whatever the length of the take. When too many segments are waiting, encode() waits
+ * for the oldest one, so the memory used is bounded too.
+ * <p>
+ * A new encoder starts with its priming delay, 1024 to 2112 samples, and the previous one ends with
+ * its padding: joined as they are, every seam would get a gap and the file would run longer than the capture.
+ * So each segment after the first is encoded with the last {@link #LEAD_IN_FRAMES} frames of the previous
+ * one in front, and its first frames, the priming and that lead-in, are dropped. The previous segment drops
+ * the frames flushing its encoder. The frames of both segments then follow on the same grid, and the decoder
+ * overlaps them like frames of a single stream. Only the first priming and the last padding are left,
+ * like with a single encoder. The seams can still differ slightly in quantization, as the two encoders
+ * do not share their state.
+ * <p>
+ * This relies on the encoder emitting one frame per 1024 samples from the first one,
+ * priming included, like the platform AAC encoders do.
+ */
+public class ParallelAacPcmEncoder extends FilePcmEncoder {
+
+    /**
+     * Default bitrate, good for speech
+     */
+    private static final int DEFAULT_BIT_RATE = 64000;
+
+    /**
+     * Default duration of a segment
+     */
+    private static final int DEFAULT_SEGMENT_MS = 5000;
+
+    /**
+     * Max number of encoding threads
+     */
+    private static final int MAX_THREAD_COUNT = 4;
+
+    /**
+     * How long the idle encoding threads are kept
+     */
+    private static final int KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * Samples per channel in an AAC LC frame
+     */
+    private static final int AAC_FRAME_SIZE = 1024;
+
+    /**
+     * How long to wait for a codec buffer
+     */
+    private static final long TIMEOUT_US = 10000;
+
+    /**
+     * Size of the encoded output first allocated for a segment, it grows if needed
+     */
+    private static final int INITIAL_ENCODED_SIZE = 32 * 1024;
+
+    /**
+     * Frames of the previous segment encoded again before a segment, then dropped.
+     * Enough to cover an encoder delay of up to 2048 samples, and the window of the first kept frame.
+     */
+    private static final int LEAD_IN_FRAMES = 3;
+
+    private final int mBitRate;
+    private final int mSegmentMs;
+    private final int mThreadCount;
+
+    /**
+     * Created by the first recording, its threads stop when idle
+     */
+    private ThreadPoolExecutor mExecutor;
+
+    private int mSampleRate;
+    private int mChannelCount;
+    private int mSampleRateIndex;
+
+    /**
+     * Bytes of a segment, without the lead-in, and of the lead-in
+     */
+    private int mSegmentSize;
+    private int mLeadInSize;
+
+    /**
+     * The last samples of the previous segment, the lead-in of the next one.
+     * Empty before the first segment of a recording
+     */
+    private ByteBuffer mLeadIn;
+
+    /**
+     * The segment being filled, null if none
+     */
+    private Segment mCurrentSegment;
+
+    /**
+     * Segments submitted to the pool, oldest first, and the ones ready to be filled again
+     */
+    private final ArrayDeque<Segment> mPendingSegments = new ArrayDeque<>();
+    private final ArrayDeque<Segment> mFreeSegments = new ArrayDeque<>();
+
+    public ParallelAacPcmEncoder() {
+        this(DEFAULT_BIT_RATE, DEFAULT_SEGMENT_MS);
+    }
+
+    /**
+     * @param bitRate   the encoding bitrate in bits per second
+     * @param segmentMs the duration of the segments, rounded to whole AAC frames
+     */
+    public ParallelAacPcmEncoder(int bitRate, int segmentMs) {
+        if (bitRate <= 0 || segmentMs <= 0) {
+            throw new IllegalArgumentException("The bitrate and the segment duration must be positive");
+        }
+
+        mBitRate = bitRate;
+        mSegmentMs = segmentMs;
+        mThreadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREAD_COUNT));
+    }
+
+    @Override
+    protected void onStart(int sampleRate, int channelCount) throws IOException {
+        mSampleRateIndex = AacPcmEncoder.getAdtsSampleRateIndex(sampleRate);
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+
+        int frameSize = AAC_FRAME_SIZE * channelCount * 2;
+        long segmentFrames = (long) sampleRate * mSegmentMs / 1000 / AAC_FRAME_SIZE;
+        int segmentSize = (int) Math.max(segmentFrames, LEAD_IN_FRAMES) * frameSize;
+        if (segmentSize != mSegmentSize) {
+            // The buffers of the previous format are dropped
+            mSegmentSize = segmentSize;
+            mLeadInSize = LEAD_IN_FRAMES * frameSize;
+            mLeadIn = ByteBuffer.allocateDirect(mLeadInSize);
+            mFreeSegments.clear();
+        }
+
+        // The first segment has no lead-in
+        mLeadIn.clear();
+        mLeadIn.limit(0);
+
+        if (mExecutor == null) {
+            mExecutor = new ThreadPoolExecutor(mThreadCount, mThreadCount,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                            runnable.run();
+                        }
+                    }, "ParallelAacPcmEncoder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    @Override
+    public void encode(ByteBuffer pcm) throws IOException {
+        while (pcm.hasRemaining()) {
+            if (mCurrentSegment == null) {
+                mCurrentSegment = obtainSegment();
+            }
+
+            ByteBuffer segmentPcm = mCurrentSegment.mPcm;
+            int limit = pcm.limit();
+            pcm.limit(pcm.position() + Math.min(pcm.remaining(), segmentPcm.remaining()));
+            segmentPcm.put(pcm);
+            pcm.limit(limit);
+
+            if (!segmentPcm.hasRemaining()) {
+                submitCurrentSegment();
+            }
+        }
+
+        // Write what is ready without waiting. The newest segment may be the last one,
+        // it is kept until the next one is submitted to know if its encoder flush is written
+        while (mPendingSegments.size() > 1 && mPendingSegments.peek().mFuture.isDone()) {
+            writeOldestSegment();
+        }
+    }
+
+    @Override
+    protected void onStop() throws IOException {
+        if (isCancelled()) {
+            cancelSegments();
+            return;
+        }
+
+        if (mCurrentSegment != null) {
+            if (mCurrentSegment.mPcm.position() > mCurrentSegment.mLeadInSize) {
+                submitCurrentSegment();
+            } else {
+                recycle(mCurrentSegment);
+                mCurrentSegment = null;
+            }
+        }
+
+        // Only the last segments are left, all of them are waited for even after an error
+        IOException error = null;
+        while (!mPendingSegments.isEmpty()) {
+            try {
+                writeOldestSegment();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Drop the segments of a cancelled recording without waiting for them
+     */
+    private void cancelSegments() {
+        if (mCurrentSegment != null) {
+            recycle(mCurrentSegment);
+            mCurrentSegment = null;
+        }
+
+        Segment segment;
+        while ((segment = mPendingSegments.poll()) != null) {
+            // A segment being encoded still uses its buffers, it is left to the pool thread
+            if (segment.mFuture.cancel(false) || segment.mFuture.isDone()) {
+                recycle(segment);
+            }
+        }
+    }
+
+    /**
+     * @return a segment holding only the lead-in, waits for the oldest one when too many are pending
+     */
+    private Segment obtainSegment() throws IOException {
+        while (mPendingSegments.size() >= mThreadCount * 2) {
+            writeOldestSegment();
+        }
+
+        Segment segment = mFreeSegments.poll();
+        if (segment == null) {
+            segment = new Segment(mLeadInSize + mSegmentSize);
+        }
+
+        segment.mLeadInSize = mLeadIn.remaining();
+        segment.mPcm.limit(segment.mLeadInSize + mSegmentSize);
+        segment.mPcm.put(mLeadIn);
+        mLeadIn.rewind();
+
+        return segment;
+    }
+
+    private void submitCurrentSegment() {
+        Segment segment = mCurrentSegment;
+        mCurrentSegment = null;
+
+        // The end of this segment is the lead-in of the next one
+        ByteBuffer pcm = segment.mPcm;
+        int end = pcm.position();
+        mLeadIn.clear();
+        pcm.position(Math.max(end - mLeadInSize, segment.mLeadInSize));
+        mLeadIn.put(pcm);
+        mLeadIn.flip();
+
+        pcm.limit(end);
+        pcm.position(0);
+        segment.mSampleRate = mSampleRate;
+        segment.mChannelCount = mChannelCount;
+        segment.mSampleRateIndex = mSampleRateIndex;
+        segment.mBitRate = mBitRate;
+        segment.mFuture = mExecutor.submit(segment);
+
+        mPendingSegments.add(segment);
+    }
+
+    /**
+     * Wait for the oldest pending segment and write it, with the flush of its encoder only if it is the last one
+     */
+    private void writeOldestSegment() throws IOException {
+        Segment segment = mPendingSegments.poll();
+        try {
+            getUninterruptibly(segment.mFuture);
+
+            ByteBuffer encoded = segment.mEncoded;
+            encoded.flip();
+            if (!mPendingSegments.isEmpty() && segment.mFlushPosition >= 0) {
+                // The next segment starts right where this one ends without the flush
+                encoded.limit(segment.mFlushPosition);
+            }
+            write(encoded);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException("Unable to encode a segment", cause);
+        } finally {
+            recycle(segment);
+        }
+    }
+
+    private void recycle(Segment segment) {
+        segment.mFuture = null;
+        segment.mPcm.clear();
+        segment.mEncoded.clear();
+
+        if (segment.mPcm.capacity() == mLeadInSize + mSegmentSize) {
+            mFreeSegments.add(segment);
+        }
+    }
+
+    private static void getUninterruptibly(Future<?> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The samples of a segment and their ADTS stream, encoded on a pool thread
+     */
+    private static final class Segment implements Callable<Void> {
+
+        private final ByteBuffer mPcm;
+        private ByteBuffer mEncoded = ByteBuffer.allocate(INITIAL_ENCODED_SIZE);
+
+        /**
+         * Reusable objects, to avoid allocating for every frame
+         */
+        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        private final ByteBuffer mAdtsHeader = ByteBuffer.allocate(AacPcmEncoder.ADTS_HEADER_SIZE);
+
+        /**
+         * Format of the segment, set before it is submitted
+         */
+        private int mSampleRate;
+        private int mChannelCount;
+        private int mSampleRateIndex;
+        private int mBitRate;
+
+        /**
+         * Bytes of the previous segment at the start of the samples, their frames are dropped
+         */
+        private int mLeadInSize;
+
+        /**
+         * Position in the encoded stream of the first frame flushing the encoder,
+         * after the frames of the samples of this segment. -1 if there is none
+         */
+        private int mFlushPosition;
+
+        /**
+         * The result of the encoding, null while the segment is not submitted
+         */
+        private Future<Void> mFuture;
+
+        Segment(int size) {
+            mPcm = ByteBuffer.allocateDirect(size);
+        }
+
+        @Override
+        public Void call() throws IOException {
+            MediaCodec mediaCodec = AacPcmEncoder.createEncoder(mSampleRate, mChannelCount, mBitRate);
+            try {
+                mediaCodec.start();
+                try {
+                    encode(mediaCodec);
+                } finally {
+                    // Only a started codec can be stopped, else the real error would be hidden
+                    mediaCodec.stop();
+                }
+            } finally {
+                mediaCodec.release();
+            }
+
+            return null;
+        }
+
+        private void encode(MediaCodec mediaCodec) {
+            ByteBuffer[] inputBuffers = mediaCodec.getInputBuffers();
+            ByteBuffer[] outputBuffers = mediaCodec.getOutputBuffers();
+            int bytesPerSecond = mSampleRate * mChannelCount * 2;
+            long queuedBytes = 0;
+            boolean endOfStreamQueued = false;
+
+            // The frames holding the priming and the lead-in are dropped,
+            // the ones after the samples of this segment only flush the encoder
+            int frameBytes = AAC_FRAME_SIZE * mChannelCount * 2;
+            int droppedFrames = mLeadInSize / frameBytes;
+            int lastFrame = droppedFrames + (mPcm.remaining() - mLeadInSize + frameBytes - 1) / frameBytes;
+            int frameIndex = 0;
+            mFlushPosition = -1;
+
+            while (true) {
+                if (!endOfStreamQueued) {
+                    int index = mediaCodec.dequeueInputBuffer(TIMEOUT_US);
+                    if (index >= 0) {
+                        long presentationTimeUs = queuedBytes * 1000000L / bytesPerSecond;
+
+                        if (mPcm.hasRemaining()) {
+                            ByteBuffer inputBuffer = inputBuffers[index];
+                            inputBuffer.clear();
+
+                            int size = Math.min(mPcm.remaining(), inputBuffer.remaining());
+                            int limit = mPcm.limit();
+                            mPcm.limit(mPcm.position() + size);
+                            inputBuffer.put(mPcm);
+                            mPcm.limit(limit);
+
+                            mediaCodec.queueInputBuffer(index, 0, size, presentationTimeUs, 0);
+                            queuedBytes += size;
+                        } else {
+                            mediaCodec.queueInputBuffer(index, 0, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            endOfStreamQueued = true;
+                        }
+                    }
+                }
+
+                int index = mediaCodec.dequeueOutputBuffer(mBufferInfo, endOfStreamQueued ? TIMEOUT_US : 0);
+                if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    continue;
+                }
+
+                if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = mediaCodec.getOutputBuffers();
+                    continue;
+                }
+
+                if (index < 0) {
+                    // Format changed, ADTS does not need it
+                    continue;
+                }
+
+                boolean isConfig = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                if (!isConfig && mBufferInfo.size > 0 && frameIndex++ >= droppedFrames) {
+                    if (frameIndex > lastFrame && mFlushPosition < 0) {
+                        mFlushPosition = mEncoded.position();
+                    }
+
+                    ByteBuffer outputBuffer = outputBuffers[index];
+                    outputBuffer.position(mBufferInfo.offset);
+                    outputBuffer.limit(mBufferInfo.offset + mBufferInfo.size);
+
+                    int packetLength = mBufferInfo.size + AacPcmEncoder.ADTS_HEADER_SIZE;
+                    ensureEncodedCapacity(packetLength);
+                    AacPcmEncoder.fillAdtsHeader(mAdtsHeader, mSampleRateIndex, mChannelCount, packetLength);
+                    mEncoded.put(mAdtsHeader);
+                    mEncoded.put(outputBuffer);
+                }
+
+                mediaCodec.releaseOutputBuffer(index, false);
+
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+
+        private void ensureEncodedCapacity(int size) {
+            if (mEncoded.remaining() >= size) {
+                return;
+            }
+
+            ByteBuffer encoded = ByteBuffer.allocate(Math.max(mEncoded.capacity() * 2, mEncoded.position() + size));
+            mEncoded.flip();
+            encoded.put(mEncoded);
+            mEncoded = encoded;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ml.matteolobello.recordingaudioview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An encoder stage of the PCM capture pipeline, receives the 16 bit
+ * little endian samples read from the microphone.
+ * <p>
+ * {@link #start(OutputSink, int, int)} and {@link #stop()} are called on the engine thread,
+ * {@link #encode(ByteBuffer)} on the capture thread, or on the processing thread when a {@link DspChain}
+ * is set. The calls never overlap and are ordered: the capture starts after start() returns,
+ * and stop() is called once the capture thread has ended and the processing thread has drained its queue.
+ * One recording at a time. Implement it to stream or post-process the audio without decoding the output file.
+ */
+public interface PcmEncoder {
+
+    /**
+     * Called before the first samples of a recording
+     *
+     * @param output       where the recording should be written, extend {@link FilePcmEncoder}
+     *                     to get buffered writes to it
+     * @param sampleRate   the sample rate in Hz
+     * @param channelCount the number of interleaved channels
+     */
+    void start(OutputSink output, int sampleRate, int channelCount) throws IOException;
+
+    /**
+     * Called for every block of samples read from the microphone, after the {@link DspChain} if any
+     *
+     * @param pcm a direct buffer holding the samples between its position and limit.
+     *            It is reused after this call returns, so copy what you need to keep.
+     */
+    void encode(ByteBuffer pcm) throws IOException;
+
+    /**
+     * Called after the last samples of a recording, the output has to be complete
+     */
+    void stop() throws IOException;
+}
@@ -0,0 +1,528 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Captures PCM samples with AudioRecord on its own thread,
+ * and sends them through a {@link PcmEncoder}.
+ * <p>
+ * The blocks can go through a {@link VoiceActivityDetector} on their way to the encoder,
+ * to trim the silence or stop after a silence, then through a {@link DspChain} run on its own thread
+ * by a {@link DspProcessor}. What reaches the encoder can feed a {@link PeakSummary}.
+ * <p>
+ * The AudioRecord and the read buffer are created once and reused across recordings.
+ * Pausing only stops the AudioRecord, the encoder session stays open.
+ * start(), pause(), resume() and stop() are called on the engine thread.
+ */
+class PcmRecorder implements Runnable {
+
+    /**
+     * Log TAG
+     */
+    private static final String TAG = "PcmRecorder";
+
+    /**
+     * The only sample rate guaranteed to work on all devices,
+     * used when the requested one is not supported
+     */
+    private static final int FALLBACK_SAMPLE_RATE = 44100;
+
+    /**
+     * Size of a read, in ms of audio
+     */
+    private static final int READ_SIZE_MS = 20;
+
+    private final Listener mListener;
+
+    private AudioRecord mAudioRecord;
+    private ByteBuffer mReadBuffer;
+    private int mSampleRate;
+    private int mChannelCount;
+
+    /**
+     * The format the AudioRecord has been created for,
+     * it is only created again when the format changes
+     */
+    private int mRequestedSampleRate;
+    private int mRequestedChannelCount;
+
+    private PcmEncoder mEncoder;
+    private OutputSink mOutput;
+
+    /**
+     * Between the capture and the encoder when the current recording detects voice
+     */
+    private final VoiceActivityDetector mVoiceActivityDetector = new VoiceActivityDetector();
+    private boolean mDetectingVoice;
+
+    /**
+     * Processing of the next recordings, null if none,
+     * and whether the current recording is processed
+     */
+    private DspChain mDspChain;
+    private final DspProcessor mDspProcessor = new DspProcessor();
+    private boolean mProcessing;
+
+    /**
+     * Built from the blocks sent to the encoder, null if disabled
+     */
+    private PeakSummary mPeakSummary;
+
+    /**
+     * The first stage after the voice activity detector, sends the blocks to the processing thread if any
+     */
+    private final PcmEncoder mInputStage = new PcmEncoder() {
+        @Override
+        public void start(OutputSink output, int sampleRate, int channelCount) throws IOException {
+            mEncoder.start(output, sampleRate, channelCount);
+        }
+
+        @Override
+        public void encode(ByteBuffer pcm) throws IOException {
+            if (mProcessing) {
+                mDspProcessor.write(pcm);
+            } else {
+                mOutputStage.encode(pcm);
+            }
+        }
+
+        @Override
+        public void stop() throws IOException {
+            mEncoder.stop();
+        }
+    };
+
+    /**
+     * The last stage before the encoder, feeds the peak summary with what is really encoded
+     */
+    private final PcmEncoder mOutputStage = new PcmEncoder() {
+        @Override
+        public void start(OutputSink output, int sampleRate, int channelCount) throws IOException {
+            mEncoder.start(output, sampleRate, channelCount);
+        }
+
+        @Override
+        public void encode(ByteBuffer pcm) throws IOException {
+            if (mPeakSummary != null) {
+                mPeakSummary.add(PeakSummary.computePeak(pcm), pcm.remaining() / (mChannelCount * 2));
+            }
+            mEncoder.encode(pcm);
+        }
+
+        @Override
+        public void stop() throws IOException {
+            mEncoder.stop();
+        }
+    };
+
+    private Thread mCaptureThread;
+    private boolean mStarted;
+    private volatile boolean mCapturing;
+
+    /**
+     * The error that interrupted the recording, if any
+     */
+    private volatile Exception mCaptureError;
+
+    /**
+     * Levels of the last block read, between 0 and {@link Short#MAX_VALUE}
+     */
+    private volatile int mPeakAmplitude;
+    private volatile int mRmsAmplitude;
+
+    /**
+     * Bytes captured in the current recording, and the limit, 0 for no limit
+     */
+    private volatile long mCapturedBytes;
+    private long mMaxBytes;
+
+    PcmRecorder(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Applies from the next recording
+     *
+     * @param trimSilence       true to drop the leading and trailing silence
+     * @param autoStopSilenceMs the capture stops by itself after this much silence following speech, 0 for never
+     */
+    void setVoiceActivityDetection(boolean trimSilence, int autoStopSilenceMs) {
+        mVoiceActivityDetector.configure(trimSilence, autoStopSilenceMs);
+    }
+
+    /**
+     * Applies from the next recording
+     *
+     * @param dspChain the processing, or null to encode the samples as captured
+     */
+    void setDspChain(DspChain dspChain) {
+        mDspChain = dspChain;
+    }
+
+    /**
+     * Applies from the next recording, the summary is filled while capturing
+     * and can be read after stop()
+     *
+     * @param peakSummary the summary, or null to disable it
+     */
+    void setPeakSummary(PeakSummary peakSummary) {
+        mPeakSummary = peakSummary;
+    }
+
+    /**
+     * Start capturing into the given output
+     *
+     * @param sampleRate    the requested sample rate, 44100Hz is used if the device does not support it
+     * @param channelCount  1 for mono, 2 for stereo
+     * @param maxDurationMs the capture stops by itself after this duration, 0 for no limit
+     */
+    void start(PcmEncoder encoder, OutputSink output, int sampleRate, int channelCount, int maxDurationMs)
+            throws IOException {
+        ensureAudioRecord(sampleRate, channelCount);
+
+        mCapturedBytes = 0;
+        mMaxBytes = (long) maxDurationMs * mSampleRate / 1000 * mChannelCount * 2;
+
+        // The encoder gets the resampled audio
+        int encodedSampleRate = mDspChain != null ? mDspChain.getOutputSampleRate(mSampleRate) : mSampleRate;
+
+        mEncoder = encoder;
+        mOutput = output;
+        mEncoder.start(output, encodedSampleRate, mChannelCount);
+
+        if (mPeakSummary != null) {
+            // A slot is a read at first, in frames
+            mPeakSummary.reset(encodedSampleRate * READ_SIZE_MS / 1000);
+        }
+
+        mDetectingVoice = mVoiceActivityDetector.isEnabled();
+        if (mDetectingVoice) {
+            mVoiceActivityDetector.start(mInputStage, mSampleRate, mChannelCount);
+        }
+
+        mProcessing = mDspChain != null;
+        if (mProcessing) {
+            mDspProcessor.start(mDspChain, mOutputStage, mSampleRate, mChannelCount, mReadBuffer.capacity());
+        }
+
+        mCaptureError = null;
+        try {
+            startCapture();
+        } catch (IOException e) {
+            finishProcessing();
+            mEncoder.stop();
+            throw e;
+        }
+
+        mStarted = true;
+    }
+
+    /**
+     * Stop capturing, the encoder session stays open
+     */
+    void pause() {
+        stopCapture();
+    }
+
+    /**
+     * Capture again after a pause, into the same encoder session
+     */
+    void resume() throws IOException {
+        startCapture();
+    }
+
+    boolean isPaused() {
+        return mStarted && mCaptureThread == null;
+    }
+
+    /**
+     * Stop capturing, returns when the output is complete or discarded.
+     * The output of a failed recording is discarded too, see {@link #getError()}.
+     *
+     * @param cancelled true if the output has to be discarded. The built-in encoders
+     *                  never write what is still in their buffer.
+     */
+    void stop(boolean cancelled) {
+        stopCapture();
+        mStarted = false;
+
+        // Whatever has been written is incomplete
+        cancelled |= mCaptureError != null;
+
+        if (mDetectingVoice) {
+            // Drops the trailing silence
+            mVoiceActivityDetector.finish();
+        }
+
+        // The queued blocks reach the encoder before it is stopped
+        finishProcessing();
+
+        try {
+            if (!cancelled) {
+                mEncoder.stop();
+            } else if (mEncoder instanceof FilePcmEncoder) {
+                ((FilePcmEncoder) mEncoder).cancel();
+            } else {
+                mEncoder.stop();
+                mOutput.discard();
+            }
+        } catch (IOException e) {
+            if (mCaptureError == null) {
+                mCaptureError = e;
+            } else {
+                Log.e(TAG, "Unable to discard the output", e);
+            }
+        }
+        mEncoder = null;
+        mOutput = null;
+    }
+
+    /**
+     * @return the error that interrupted the last recording or prevented to complete its output,
+     * null if it succeeded. Only valid after stop().
+     */
+    Exception getError() {
+        return mCaptureError;
+    }
+
+    /**
+     * @return the duration of the audio captured in the current or last recording
+     */
+    long getCapturedDurationMs() {
+        return mCapturedBytes * 1000 / (mSampleRate * mChannelCount * 2);
+    }
+
+    /**
+     * @return the duration of the audio sent to the encoder in the last recording,
+     * shorter than the captured one when the silence is trimmed. Only valid after stop().
+     */
+    long getEncodedDurationMs() {
+        long encodedBytes = mDetectingVoice ? mVoiceActivityDetector.getWrittenBytes() : mCapturedBytes;
+        return encodedBytes * 1000 / (mSampleRate * mChannelCount * 2);
+    }
+
+    int getPeakAmplitude() {
+        return mPeakAmplitude;
+    }
+
+    int getRmsAmplitude() {
+        return mRmsAmplitude;
+    }
+
+    boolean isStarted() {
+        return mStarted;
+    }
+
+    void release() {
+        if (isStarted()) {
+            stop(false);
+        }
+
+        if (mAudioRecord != null) {
+            releaseAudioRecord();
+        }
+    }
+
+    private void finishProcessing() {
+        if (!mProcessing) {
+            return;
+        }
+
+        mProcessing = false;
+        try {
+            mDspProcessor.finish();
+        } catch (IOException e) {
+            if (mCaptureError == null) {
+                mCaptureError = e;
+            }
+        }
+    }
+
+    private void startCapture() throws IOException {
+        mAudioRecord.startRecording();
+        if (mAudioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+            throw new IOException("Unable to start AudioRecord, is the microphone in use?");
+        }
+
+        mPeakAmplitude = 0;
+        mRmsAmplitude = 0;
+        mCapturing = true;
+
+        mCaptureThread = new Thread(this, TAG);
+        mCaptureThread.start();
+    }
+
+    private void stopCapture() {
+        if (mCaptureThread == null) {
+            return;
+        }
+
+        mCapturing = false;
+        mAudioRecord.stop();
+
+        try {
+            mCaptureThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mCaptureThread = null;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        ByteBuffer buffer = mReadBuffer;
+        while (mCapturing) {
+            int read = mAudioRecord.read(buffer, buffer.capacity());
+            if (read < 0) {
+                mCaptureError = new IOException("AudioRecord read failed: " + read);
+                mListener.onCaptureError();
+                return;
+            }
+
+            boolean reachedMaxDuration = false;
+            if (mMaxBytes > 0 && mCapturedBytes + read >= mMaxBytes) {
+                // Cut exactly at the limit
+                read = (int) (mMaxBytes - mCapturedBytes);
+                reachedMaxDuration = true;
+            }
+
+            buffer.position(0);
+            buffer.limit(read);
+
+            computeLevels(buffer);
+
+            boolean reachedSilence = false;
+            try {
+                if (mDetectingVoice) {
+                    reachedSilence = mVoiceActivityDetector.process(buffer, mRmsAmplitude);
+                } else {
+                    mInputStage.encode(buffer);
+                }
+            } catch (Exception e) {
+                mCaptureError = e;
+                mListener.onCaptureError();
+                return;
+            }
+
+            mCapturedBytes += read;
+            buffer.clear();
+
+            if (reachedMaxDuration) {
+                mListener.onMaxDurationReached();
+                return;
+            }
+
+            if (reachedSilence) {
+                mListener.onSilenceReached();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Compute the levels of the block in place, without any allocation
+     */
+    private void computeLevels(ByteBuffer buffer) {
+        int samples = buffer.limit() / 2;
+        if (samples == 0) {
+            return;
+        }
+
+        int peak = 0;
+        long sumOfSquares = 0;
+        for (int i = 0; i < samples; i++) {
+            int sample = buffer.getShort(i * 2);
+            int abs = sample < 0 ? -sample : sample;
+            if (abs > peak) {
+                peak = abs;
+            }
+            sumOfSquares += sample * sample;
+        }
+
+        mPeakAmplitude = Math.min(peak, Short.MAX_VALUE);
+        mRmsAmplitude = (int) Math.sqrt((double) sumOfSquares / samples);
+    }
+
+    private void ensureAudioRecord(int sampleRate, int channelCount) throws IOException {
+        if (mAudioRecord != null) {
+            if (sampleRate == mRequestedSampleRate && channelCount == mRequestedChannelCount) {
+                return;
+            }
+
+            releaseAudioRecord();
+        }
+
+        int channelMask = channelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+
+        int[] sampleRates = sampleRate == FALLBACK_SAMPLE_RATE
+                ? new int[]{sampleRate}
+                : new int[]{sampleRate, FALLBACK_SAMPLE_RATE};
+        for (int rate : sampleRates) {
+            int minBufferSize = AudioRecord.getMinBufferSize(rate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+            if (minBufferSize <= 0) {
+                continue;
+            }
+
+            int readSize = rate * channelCount * 2 * READ_SIZE_MS / 1000;
+
+            AudioRecord audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, rate,
+                    channelMask, AudioFormat.ENCODING_PCM_16BIT,
+                    Math.max(minBufferSize, readSize * 4));
+            if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                audioRecord.release();
+                continue;
+            }
+
+            if (rate != sampleRate) {
+                Log.w(TAG, sampleRate + "Hz is not supported, recording at " + rate + "Hz");
+            }
+
+            mAudioRecord = audioRecord;
+            mSampleRate = rate;
+            mChannelCount = channelCount;
+            mRequestedSampleRate = sampleRate;
+            mRequestedChannelCount = channelCount;
+            mReadBuffer = ByteBuffer.allocateDirect(readSize).order(ByteOrder.LITTLE_ENDIAN);
+            return;
+        }
+
+        throw new IOException("Unable to initialize AudioRecord");
+    }
+
+    private void releaseAudioRecord() {
+        mAudioRecord.release();
+        mAudioRecord = null;
+        mReadBuffer = null;
+    }
+
+    interface Listener {
+
+        /**
+         * Called on the capture thread when the max duration has been captured,
+         * the capture is over and stop() has to be called
+         */
+        void onMaxDurationReached();
+
+        /**
+         * Called on the capture thread when the auto-stop silence has been captured,
+         * the capture is over and stop() has to be called
+         */
+        void onSilenceReached();
+
+        /**
+         * Called on the capture thread when the capture or the encoder failed,
+         * the capture is over and stop() has to be called
+         */
+        void onCaptureError();
+    }
+}
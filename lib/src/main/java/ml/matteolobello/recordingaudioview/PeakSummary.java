@@ -0,0 +1,214 @@
+package ml.matteolobello.recordingaudioview;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A downsampled peak array of a recording, to draw its waveform without decoding it.
+ * Read it from {@link OutputSink#getPeaks()} or from the sidecar file written next to the output,
+ * see {@link #readSidecar(File)}.
+ * <p>
+ * The array is built while capturing, in a fixed amount of memory whatever the length of the take:
+ * the peaks go to twice as many slots as buckets, and when the slots are full every pair is merged,
+ * so each slot covers twice as much audio. The slots are only spread over the buckets at the end.
+ * Nothing is allocated while capturing.
+ * <p>
+ * The sidecar holds one unsigned byte per bucket, the peak scaled from 0 to 255.
+ */
+public final class PeakSummary {
+
+    /**
+     * Extension added to the name of the output file to get the sidecar file
+     */
+    public static final String SIDECAR_EXTENSION = ".peaks";
+
+    /**
+     * Max number of buckets of a summary
+     */
+    public static final int MAX_BUCKET_COUNT = 1024;
+
+    private final int mBucketCount;
+
+    /**
+     * The closed slots, twice as many as buckets, between 0 and 1
+     */
+    private final float[] mSlots;
+    private int mSlotCount;
+
+    /**
+     * Audio covered by a slot, in the units given to {@link #add(float, long)}.
+     * Doubled every time the slots are merged.
+     */
+    private long mUnitsPerSlot;
+
+    /**
+     * The slot being filled
+     */
+    private float mCurrentPeak;
+    private long mCurrentUnits;
+
+    PeakSummary(int bucketCount) {
+        mBucketCount = bucketCount;
+        mSlots = new float[bucketCount * 2];
+    }
+
+    /**
+     * @return the sidecar file of the given output file
+     */
+    public static File getSidecarFile(File outputFile) {
+        return new File(outputFile.getPath() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Read the summary written next to the given output file
+     *
+     * @return the peaks, between 0 and 1
+     */
+    public static float[] readSidecar(File outputFile) throws IOException {
+        File sidecarFile = getSidecarFile(outputFile);
+        long length = sidecarFile.length();
+        if (length == 0 || length > MAX_BUCKET_COUNT) {
+            throw new IOException("Invalid peak summary: " + sidecarFile);
+        }
+
+        byte[] bytes = new byte[(int) length];
+        InputStream inputStream = new FileInputStream(sidecarFile);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = inputStream.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new IOException("Truncated peak summary: " + sidecarFile);
+                }
+                read += count;
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        float[] peaks = new float[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            peaks[i] = (bytes[i] & 0xFF) / 255f;
+        }
+        return peaks;
+    }
+
+    /**
+     * Write the peaks next to the given output file
+     */
+    static void writeSidecar(File outputFile, float[] peaks) throws IOException {
+        byte[] bytes = new byte[peaks.length];
+        for (int i = 0; i < peaks.length; i++) {
+            bytes[i] = (byte) Math.round(Math.min(peaks[i], 1.0f) * 255);
+        }
+
+        OutputStream outputStream = new FileOutputStream(getSidecarFile(outputFile));
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * @return the peak of the 16 bit samples between the position and the limit, between 0 and 1.
+     * The buffer is unchanged.
+     */
+    static float computePeak(ByteBuffer pcm) {
+        int peak = 0;
+        for (int i = pcm.position(), limit = pcm.limit() - 1; i < limit; i += 2) {
+            int sample = pcm.getShort(i);
+            int abs = sample < 0 ? -sample : sample;
+            if (abs > peak) {
+                peak = abs;
+            }
+        }
+
+        return Math.min(peak, Short.MAX_VALUE) / (float) Short.MAX_VALUE;
+    }
+
+    int getBucketCount() {
+        return mBucketCount;
+    }
+
+    /**
+     * Get ready for a new recording
+     *
+     * @param initialUnitsPerSlot the audio covered by a slot before any merge,
+     *                            about the smallest amount given to {@link #add(float, long)}
+     */
+    void reset(long initialUnitsPerSlot) {
+        mSlotCount = 0;
+        mUnitsPerSlot = Math.max(initialUnitsPerSlot, 1);
+        mCurrentPeak = 0;
+        mCurrentUnits = 0;
+    }
+
+    /**
+     * Add the peak of the next part of the recording
+     *
+     * @param peak  the peak, between 0 and 1
+     * @param units the length of the part, in frames or ms, the same unit for a whole recording
+     */
+    void add(float peak, long units) {
+        while (units > 0) {
+            long count = Math.min(units, mUnitsPerSlot - mCurrentUnits);
+            if (peak > mCurrentPeak) {
+                mCurrentPeak = peak;
+            }
+            mCurrentUnits += count;
+            units -= count;
+
+            if (mCurrentUnits == mUnitsPerSlot) {
+                closeSlot();
+            }
+        }
+    }
+
+    /**
+     * @return the peaks of the recording so far, spread over the buckets
+     */
+    float[] build() {
+        float[] peaks = new float[mBucketCount];
+
+        // The slot being filled counts too
+        int slotCount = mSlotCount + (mCurrentUnits > 0 ? 1 : 0);
+        if (slotCount == 0) {
+            return peaks;
+        }
+
+        for (int bucket = 0; bucket < mBucketCount; bucket++) {
+            int start = bucket * slotCount / mBucketCount;
+            // Short recordings have fewer slots than buckets, a slot is then spread over several buckets
+            int end = Math.max((bucket + 1) * slotCount / mBucketCount, start + 1);
+
+            float peak = 0;
+            for (int slot = start; slot < end; slot++) {
+                peak = Math.max(peak, slot < mSlotCount ? mSlots[slot] : mCurrentPeak);
+            }
+            peaks[bucket] = peak;
+        }
+
+        return peaks;
+    }
+
+    private void closeSlot() {
+        mSlots[mSlotCount++] = mCurrentPeak;
+        mCurrentPeak = 0;
+        mCurrentUnits = 0;
+
+        if (mSlotCount == mSlots.length) {
+            // Merge every pair, the next slots cover twice as much audio
+            for (int i = 0; i < mSlotCount / 2; i++) {
+                mSlots[i] = Math.max(mSlots[i * 2], mSlots[i * 2 + 1]);
+            }
+            mSlotCount /= 2;
+            mUnitsPerSlot *= 2;
+        }
+    }
+}
@@ -2,22 +2,23 @@ package ml.matteolobello.recordingaudioview;
 
 import android.Manifest;
 import android.animation.Animator;
-import android.animation.ArgbEvaluator;
 import android.animation.ValueAnimator;
 import android.app.Activity;
 import android.content.Context;
+import android.content.ContextWrapper;
 import android.content.pm.PackageManager;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
-import android.media.MediaRecorder;
-import android.os.Handler;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.os.SystemClock;
 import android.support.annotation.DrawableRes;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.AppCompatImageView;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -25,13 +26,13 @@ import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
-import android.view.animation.AccelerateDecelerateInterpolator;
+import android.view.animation.LinearInterpolator;
+import android.widget.FrameLayout;
 import android.widget.RelativeLayout;
 
 import java.io.File;
-import java.io.IOException;
-
-import io.codetail.animation.ViewAnimationUtils;
+import java.nio.ByteBuffer;
+import java.util.Locale;
 
 public class RecordingAudioView extends RelativeLayout implements View.OnTouchListener {
 
@@ -46,12 +47,11 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
     private static final boolean DEBUG = false;
 
     /**
-     * Permissions we need to make the recording work
+     * Permissions we need to make the recording work, the output is
+     * app-private by default or handed to us already open
      */
     private static final String[] PERMISSIONS = {
-            Manifest.permission.RECORD_AUDIO,
-            Manifest.permission.WRITE_EXTERNAL_STORAGE,
-            Manifest.permission.READ_EXTERNAL_STORAGE
+            Manifest.permission.RECORD_AUDIO
     };
 
     /**
@@ -59,29 +59,119 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
      */
     private static final int SHAKE_ERROR_ANIM_DURATION = 500;
 
+    /**
+     * How far up the finger has to go to lock the recording
+     */
+    private static final int LOCK_DISTANCE_DP = 80;
+
+    /**
+     * Time tick intervals, see {@link #setTimeTickInterval(int)}
+     */
+    public static final int TIME_TICK_EVERY_FRAME = FrameClock.TICK_EVERY_FRAME;
+    public static final int TIME_TICK_OFF = FrameClock.TICK_OFF;
+
+    /**
+     * Default interval of the time ticks
+     */
+    private static final int DEFAULT_TIME_TICK_INTERVAL_MS = 30;
+
+    /**
+     * Default size of the chunks delivered to the {@link RecordingChunkListener}
+     */
+    private static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Default interval of the amplitude updates
+     */
+    private static final int DEFAULT_AMPLITUDE_INTERVAL_MS = 50;
+
+    /**
+     * Recording backends, values of recAudioViewBackend
+     */
+    public static final int BACKEND_MEDIA_RECORDER = 0;
+    public static final int BACKEND_PCM = 1;
+
+    /**
+     * Built-in encoders of the PCM backend, values of recAudioViewPcmEncoder
+     */
+    private static final int PCM_ENCODER_WAV = 0;
+    private static final int PCM_ENCODER_AAC = 1;
+
+    /**
+     * Extensions stripped from the file names, the one of the output format is appended instead
+     */
+    private static final String[] AUDIO_FILE_EXTENSIONS = {".3gp", ".m4a", ".mp4", ".ogg", ".opus", ".wav", ".aac"};
+
     /**
      * The Context
      */
     private final Context mContext;
 
     /**
-     * The Handler used to manage the update of the time
+     * The clock driving the time ticks, in sync with the display refresh
+     */
+    private final FrameClock mFrameClock = new FrameClock(new FrameClock.Listener() {
+        @Override
+        public void onTick(long elapsedMs) {
+            mOnTimeTickListener.onTimeTick(elapsedMs);
+        }
+    });
+
+    /**
+     * The engine running the recorder off the UI thread, shared by all the Views
+     * through the {@link RecordingSessionManager}. Null while this View does not own it
      */
-    private final Handler mTimeUpdateHandler = new Handler();
+    private RecordingEngine mRecordingEngine;
 
     /**
-     * The MediaRecorder object
+     * This View as a user of the shared engine
      */
-    private MediaRecorder mMediaRecorder;
+    private final RecordingSessionManager.Session mSession = new RecordingSessionManager.Session() {
+        @Override
+        public RecordingEngine.Callback getCallback() {
+            return mRecordingEngineCallback;
+        }
+
+        @Override
+        public boolean isRecording() {
+            return mIsRecording;
+        }
+
+        @Override
+        public void onSessionLost() {
+            log("Recording engine taken by another View");
+
+            mRecordingEngine = null;
+            if (mIsRecording) {
+                // The recording has been stopped, it is still delivered
+                resetViewUi();
+            }
+        }
+
+        @Override
+        public void onSessionCancelled() {
+            log("Recording cancelled, the View gave the engine back");
+
+            mRecordingEngine = null;
+            mResultPending = false;
+            mOnNewActionListener.onCancelRecording();
+
+            // Only the UI is left, the engine is not touched anymore
+            resetViewUi();
+        }
+    };
 
     /**
      * The Views
      */
-    private RelativeLayout mControlContainer;
     private AppCompatImageView mMicrophoneImageView;
     private AppCompatImageView mDestroyImageView;
-    private View mRevealView;
-    private View mRevealViewWrapper;
+    private WaveformView mWaveformView;
+
+    /**
+     * Draws the reveal animations, created with its Views on the first reveal, null until then
+     */
+    private RevealRenderer mRevealRenderer;
 
     /**
      * The Listener
@@ -104,20 +194,118 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
     private OnReachMaxTimeListener mOnReachTimeListener;
 
     /**
-     * Recording output name
+     * The Reach silence listener
+     */
+    private OnReachSilenceListener mOnReachSilenceListener;
+
+    /**
+     * The Chunk listener, null if chunked output is disabled
+     */
+    private RecordingChunkListener mRecordingChunkListener;
+
+    /**
+     * Size of the chunks in bytes
+     */
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * The Pause listener
+     */
+    private OnPauseListener mOnPauseListener;
+
+    /**
+     * The Lock listener
+     */
+    private OnLockListener mOnLockListener;
+
+    /**
+     * The In-memory recording listener
+     */
+    private OnInMemoryRecordingListener mOnInMemoryRecordingListener;
+
+    /**
+     * The Peak summary listener
+     */
+    private OnPeakSummaryListener mOnPeakSummaryListener;
+
+    /**
+     * The Recording error listener
+     */
+    private OnRecordingErrorListener mOnRecordingErrorListener;
+
+    /**
+     * True from the start of a take until the app has been told how it ended,
+     * by onDoneRecording(), onCancelRecording() or onRecordingError()
+     */
+    private boolean mResultPending;
+
+    /**
+     * The Amplitude listener
+     */
+    private OnAmplitudeListener mOnAmplitudeListener;
+
+    /**
+     * Interval of the amplitude updates in milliseconds
+     */
+    private int mAmplitudeIntervalMs = DEFAULT_AMPLITUDE_INTERVAL_MS;
+
+    /**
+     * Recording output name, without extension
      */
     private String mFileName;
 
     /**
-     * Save start ms of recording
+     * Recording output set with {@link #setOutputSink(OutputSink)}, null to write to the file name
+     */
+    private OutputSink mOutputSink;
+
+    /**
+     * Max size of the takes kept in memory, 0 to write them to the file name.
+     * The in-memory output is kept across takes to reuse its buffer, null until the next take
+     */
+    private int mInMemoryMaxSize;
+    private OutputSink mInMemoryOutputSink;
+
+    /**
+     * Interval of the time ticks in milliseconds, or one of
+     * {@link #TIME_TICK_EVERY_FRAME} and {@link #TIME_TICK_OFF}
      */
-    private long mStartRecMs;
+    private int mTimeTickIntervalMs = DEFAULT_TIME_TICK_INTERVAL_MS;
+
+    /**
+     * Uptime ms of the touch that started the last recording
+     */
+    private long mTouchDownUptimeMs;
+
+    /**
+     * Time from the touch to the recorder capturing audio, for the last recording
+     */
+    private long mLastStartLatencyMs = -1;
 
     /**
      * Max recording time in milliseconds
      */
     private int mMaxRecordingTimeMs = -1;
 
+    /**
+     * Voice activity detection of the PCM backend: silence trimming, and the silence
+     * after which the recording stops by itself, 0 to never stop
+     */
+    private boolean mTrimSilenceEnabled;
+    private int mSilenceAutoStopMs;
+
+    /**
+     * Processing of the PCM samples between the capture and the encoder, null if none
+     */
+    private DspChain mDspChain;
+
+    /**
+     * Number of peaks of the summary built while recording, 0 if disabled,
+     * and whether it is written next to the output file
+     */
+    private int mPeakSummaryBucketCount;
+    private boolean mPeakSummarySidecarEnabled;
+
     /**
      * Icons color
      */
@@ -144,15 +332,90 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
     private float mDeltaMicDragX;
     private float mViewCenter;
 
+    /**
+     * Bounds of the destroy icon, updated on layout so that the drag does not allocate
+     */
+    private final Rect mDestroyIconRect = new Rect();
+
+    /**
+     * Position and alpha of the mic computed by the last drag event, applied on the next frame.
+     * Only the last event of a frame is drawn, so there is no point in applying the others.
+     */
+    private float mDragMicX;
+    private float mDragMicAlpha = 1.0f;
+    private boolean mDragUpdatePending;
+
+    /**
+     * Smooths the touch samples of the drag, and extrapolates the position
+     * of the mic to the next frame when the prediction is enabled
+     */
+    private final DragPredictor mDragPredictor = new DragPredictor();
+    private boolean mDragPredictionEnabled;
+
+    /**
+     * Boolean value to check if a recording goes on while the View is recreated for a configuration change
+     */
+    private boolean mRetainRecordingEnabled;
+
+    /**
+     * Id of the current recording, saved to find it again when the View is recreated
+     */
+    private int mRecordingId;
+
+    /**
+     * The restored state of a retained recording, until the View is attached
+     */
+    private SavedState mRestoredState;
+
+    /**
+     * Shows the reveal of a reattached recording, once the View is laid out
+     */
+    private final Runnable mShowRecordingRevealRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsRecording && mEnableRevealAnimation) {
+                getRevealRenderer().show(mRevealColor);
+            }
+        }
+    };
+
+    /**
+     * Applies the last drag position, posted at most once per frame
+     */
+    private final Runnable mApplyDragRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mDragUpdatePending = false;
+
+            mMicrophoneImageView.setX(mDragMicX);
+            mMicrophoneImageView.setAlpha(mDragMicAlpha);
+        }
+    };
+
     /**
      * Boolean value to check if we should enable reveal animation
      */
     private boolean mEnableRevealAnimation = true;
 
     /**
-     * Boolean value to check if we have ended our recording
+     * Boolean value to check if we should keep a prepared recorder ready
+     */
+    private boolean mWarmStandbyEnabled;
+
+    /**
+     * Boolean value to check if we should draw the live waveform while recording
+     */
+    private boolean mWaveformEnabled;
+
+    /**
+     * The output format, it decides the backend
+     */
+    private AudioFormatSpec mAudioFormat = AudioFormatSpec.DEFAULT;
+
+    /**
+     * The encoder used by the PCM backend, null to use the built-in one of the output format
      */
-    private boolean mFinishedRecording;
+    private PcmEncoder mPcmEncoder;
 
     /**
      * Boolean value to check if we are currently recording
@@ -160,9 +423,48 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
     private boolean mIsRecording;
 
     /**
-     * Boolean value to check if the Mic image is shaking
+     * Boolean value to check if the current recording is paused
+     */
+    private boolean mIsPaused;
+
+    /**
+     * Boolean value to check if swiping up locks the recording
+     */
+    private boolean mLockEnabled;
+
+    /**
+     * Boolean value to check if the current recording is locked: it goes on without
+     * a finger on the mic, a tap on the mic stops it and a tap on the destroy icon cancels it
+     */
+    private boolean mIsLocked;
+
+    /**
+     * Boolean value to check if the finger which locked the recording is still down
+     */
+    private boolean mLockTouchActive;
+
+    /**
+     * Raw y of the touch down, and how far up the finger has to go to lock
+     */
+    private float mTouchDownRawY;
+    private final float mLockDistancePx;
+
+    /**
+     * Shown on the mic while locked, the drawable if set, the resource otherwise
+     */
+    private Drawable mStopDrawable;
+    private int mStopImageResId = R.drawable.ic_stop;
+
+    /**
+     * The mic image, restored when the locked recording ends
+     */
+    private Drawable mMicDrawable;
+
+    /**
+     * The error feedback, built once and restarted on every failed press.
+     * Running means the Mic image is shaking
      */
-    private boolean mIsShakingForError;
+    private final ValueAnimator mShakeForErrorAnimator = ValueAnimator.ofFloat(0.0f, 1.0f);
 
     /**
      * A dummy action Listener, makes us avoid null checking every time
@@ -205,7 +507,162 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
      */
     private final OnReachMaxTimeListener DUMMY_ON_REACH_MAX_TIME_LISTENER = new OnReachMaxTimeListener() {
         @Override
-        public void onReachMaxTime() {
+        public void onReachMaxTime(long durationOfRecording) {
+        }
+    };
+
+    /**
+     * A dummy reach silence Listener, makes us avoid null checking every time
+     */
+    private final OnReachSilenceListener DUMMY_ON_REACH_SILENCE_LISTENER = new OnReachSilenceListener() {
+        @Override
+        public void onReachSilence(long durationOfRecording) {
+        }
+    };
+
+    /**
+     * A dummy lock Listener, makes us avoid null checking every time
+     */
+    private final OnLockListener DUMMY_ON_LOCK_LISTENER = new OnLockListener() {
+        @Override
+        public void onLockRecording() {
+        }
+    };
+
+    /**
+     * A dummy pause Listener, makes us avoid null checking every time
+     */
+    private final OnPauseListener DUMMY_ON_PAUSE_LISTENER = new OnPauseListener() {
+        @Override
+        public void onPauseRecording() {
+        }
+
+        @Override
+        public void onResumeRecording() {
+        }
+    };
+
+    /**
+     * A dummy in-memory recording Listener, makes us avoid null checking every time
+     */
+    private final OnInMemoryRecordingListener DUMMY_ON_IN_MEMORY_RECORDING_LISTENER = new OnInMemoryRecordingListener() {
+        @Override
+        public void onDoneRecording(ByteBuffer data) {
+        }
+    };
+
+    /**
+     * A dummy peak summary Listener, makes us avoid null checking every time
+     */
+    private final OnPeakSummaryListener DUMMY_ON_PEAK_SUMMARY_LISTENER = new OnPeakSummaryListener() {
+        @Override
+        public void onPeakSummary(float[] peaks) {
+        }
+    };
+
+    /**
+     * A dummy recording error Listener, the take still ends with a cancel for the action Listener
+     */
+    private final OnRecordingErrorListener DUMMY_ON_RECORDING_ERROR_LISTENER = new OnRecordingErrorListener() {
+        @Override
+        public void onRecordingError(Exception e) {
+            mOnNewActionListener.onCancelRecording();
+        }
+    };
+
+    /**
+     * A dummy amplitude Listener, makes us avoid null checking every time
+     */
+    private final OnAmplitudeListener DUMMY_ON_AMPLITUDE_LISTENER = new OnAmplitudeListener() {
+        @Override
+        public void onAmplitude(float peak, float rms) {
+        }
+    };
+
+    /**
+     * Receives the real recorder state changes from the engine, on the main thread
+     */
+    private final RecordingEngine.Callback mRecordingEngineCallback = new RecordingEngine.Callback() {
+        @Override
+        public void onRecordingStarted(long startedUptimeMs) {
+            mLastStartLatencyMs = startedUptimeMs - mTouchDownUptimeMs;
+            log("Recording started, latency = " + mLastStartLatencyMs + "ms");
+
+            if (mWaveformEnabled && mIsRecording) {
+                mWaveformView.clear();
+                mWaveformView.setVisibility(VISIBLE);
+            }
+
+            mOnNewActionListener.onStartRecording();
+        }
+
+        @Override
+        public void onRecordingStopped(OutputSink output, long durationMs, int stopReason) {
+            if (mIsRecording) {
+                // The recorder has been stopped by itself or through the RecordingSessionManager, only the UI is left
+                resetViewUi();
+            }
+
+            float[] peaks = output.getPeaks();
+            if (peaks != null) {
+                mOnPeakSummaryListener.onPeakSummary(peaks);
+            }
+
+            ByteBuffer data = output.getData();
+            if (data != null) {
+                mOnInMemoryRecordingListener.onDoneRecording(data);
+            }
+
+            mResultPending = false;
+            mOnNewActionListener.onDoneRecording(data != null ? null : output.getFile());
+
+            if (stopReason == RecordingEngine.STOP_REASON_MAX_DURATION) {
+                mOnReachTimeListener.onReachMaxTime(durationMs);
+            } else if (stopReason == RecordingEngine.STOP_REASON_SILENCE) {
+                mOnReachSilenceListener.onReachSilence(durationMs);
+            }
+        }
+
+        @Override
+        public void onRecordingCancelled(OutputSink output) {
+            // The listener has already been called on ACTION_UP, or when the View gave the engine back
+            log("Recording discarded");
+        }
+
+        @Override
+        public void onRecordingError(Exception e) {
+            Log.e(TAG, "Recording failed", e);
+
+            if (mIsRecording) {
+                resetViewUi();
+            }
+
+            // A take already cancelled by the user has been ended for the app
+            if (mResultPending) {
+                mResultPending = false;
+                mOnRecordingErrorListener.onRecordingError(e);
+            }
+        }
+
+        @Override
+        public void onAmplitude(int peak, int rms) {
+            float normalizedPeak = peak / (float) Short.MAX_VALUE;
+
+            if (mWaveformEnabled) {
+                mWaveformView.addSample(normalizedPeak);
+            }
+
+            mOnAmplitudeListener.onAmplitude(normalizedPeak, rms / (float) Short.MAX_VALUE);
+        }
+
+        @Override
+        public void onRecordingPaused() {
+            mOnPauseListener.onPauseRecording();
+        }
+
+        @Override
+        public void onRecordingResumed() {
+            mOnPauseListener.onResumeRecording();
         }
     };
 
@@ -224,116 +681,268 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
         mCanRecordValidator = DUMMY_CAN_RECORD_VALIDATOR;
         mOnTimeTickListener = DUMMY_ON_TIME_TICK_LISTENER;
         mOnReachTimeListener = DUMMY_ON_REACH_MAX_TIME_LISTENER;
+        mOnReachSilenceListener = DUMMY_ON_REACH_SILENCE_LISTENER;
+        mOnAmplitudeListener = DUMMY_ON_AMPLITUDE_LISTENER;
+        mOnPauseListener = DUMMY_ON_PAUSE_LISTENER;
+        mOnLockListener = DUMMY_ON_LOCK_LISTENER;
+        mOnInMemoryRecordingListener = DUMMY_ON_IN_MEMORY_RECORDING_LISTENER;
+        mOnPeakSummaryListener = DUMMY_ON_PEAK_SUMMARY_LISTENER;
+        mOnRecordingErrorListener = DUMMY_ON_RECORDING_ERROR_LISTENER;
 
         mContext = context;
 
-        mControlContainer = (RelativeLayout) LayoutInflater.from(context).inflate(R.layout.recording_audio_layout, null);
-        mMicrophoneImageView = mControlContainer.findViewById(R.id.microphone_icon);
-        mDestroyImageView = mControlContainer.findViewById(R.id.destroy_icon);
-        mRevealView = mControlContainer.findViewById(R.id.reveal_view);
-        mRevealViewWrapper = mControlContainer.findViewById(R.id.reveal_view_wrapper);
+        // Merge inflation, the children are added to this View without an intermediate container
+        LayoutInflater.from(context).inflate(R.layout.recording_audio_layout, this, true);
+        mMicrophoneImageView = findViewById(R.id.microphone_icon);
+        mDestroyImageView = findViewById(R.id.destroy_icon);
+        mWaveformView = findViewById(R.id.waveform_view);
 
         mMicrophoneImageView.setColorFilter(mIconsColor);
         mMicrophoneImageView.setOnTouchListener(this);
 
-        mControlContainer.post(new Runnable() {
+        mDestroyImageView.setOnClickListener(new OnClickListener() {
             @Override
-            public void run() {
-                mViewCenter = mControlContainer.getWidth() / 2 - mMicrophoneImageView.getWidth() / 2;
+            public void onClick(View view) {
+                if (mIsLocked && !mLockTouchActive) {
+                    finishRecording(true);
+                }
             }
         });
+
+        mLockDistancePx = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, LOCK_DISTANCE_DP,
+                getResources().getDisplayMetrics());
+
         mDestroyImageView.setColorFilter(mIconsColor);
-        mDestroyImageView.animate().scaleX(0.0f).scaleY(0.0f).setDuration(0).start();
+        mDestroyImageView.setScaleX(0.0f);
+        mDestroyImageView.setScaleY(0.0f);
 
-        mRevealColor = fetchPrimaryColor();
+        setupShakeForErrorAnimator();
 
         TypedArray typedArray = context.obtainStyledAttributes(attrs, R.styleable.RecordingAudioView);
 
         int iconsColor = typedArray.getColor(R.styleable.RecordingAudioView_recAudioViewIconsColor, mIconsColor);
         boolean revealEnabled = typedArray.getBoolean(R.styleable.RecordingAudioView_recAudioViewRevealAnimEnabled, mEnableRevealAnimation);
-        int revealColor = typedArray.getColor(R.styleable.RecordingAudioView_recAudioViewRevealColor, mRevealColor);
+        // The theme is only looked up when the reveal color is not set
+        int revealColor = typedArray.hasValue(R.styleable.RecordingAudioView_recAudioViewRevealColor)
+                ? typedArray.getColor(R.styleable.RecordingAudioView_recAudioViewRevealColor, mRevealColor)
+                : fetchPrimaryColor();
         int revealDestroyColor = typedArray.getColor(R.styleable.RecordingAudioView_recAudioViewRevealDestroyColor, mRevealDestroyColor);
         Drawable micIconDrawable = typedArray.getDrawable(R.styleable.RecordingAudioView_recAudioViewMicImage);
+        Drawable stopIconDrawable = typedArray.getDrawable(R.styleable.RecordingAudioView_recAudioViewStopImage);
+        boolean lockEnabled = typedArray.getBoolean(R.styleable.RecordingAudioView_recAudioViewLockEnabled, mLockEnabled);
         Drawable destroyIconDrawable = typedArray.getDrawable(R.styleable.RecordingAudioView_recAudioViewDestroyImage);
         String fileName = typedArray.getString(R.styleable.RecordingAudioView_recAudioViewFileName);
         int maxRecordingTimeMs = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewMaxRecordingMs, -1);
+        boolean trimSilenceEnabled = typedArray.getBoolean(R.styleable.RecordingAudioView_recAudioViewTrimSilence, mTrimSilenceEnabled);
+        int silenceAutoStopMs = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewSilenceAutoStopMs, mSilenceAutoStopMs);
+        int highPassCutoffHz = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewHighPassHz, DspChain.OFF);
+        int noiseGateThresholdDbfs = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewNoiseGateDbfs, DspChain.OFF);
+        int normalizerTargetDbfs = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewNormalizeDbfs, DspChain.OFF);
+        int resampleRate = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewResampleRate, DspChain.OFF);
+        int peakSummaryBucketCount = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewPeakSummaryBuckets, mPeakSummaryBucketCount);
+        boolean peakSummarySidecarEnabled = typedArray.getBoolean(R.styleable.RecordingAudioView_recAudioViewPeakSummarySidecar, mPeakSummarySidecarEnabled);
+        boolean warmStandbyEnabled = typedArray.getBoolean(R.styleable.RecordingAudioView_recAudioViewWarmStandby, mWarmStandbyEnabled);
+        int recordingBackend = typedArray.getInt(R.styleable.RecordingAudioView_recAudioViewBackend, BACKEND_MEDIA_RECORDER);
+        int pcmEncoder = typedArray.getInt(R.styleable.RecordingAudioView_recAudioViewPcmEncoder, PCM_ENCODER_WAV);
+        int container = typedArray.getInt(R.styleable.RecordingAudioView_recAudioViewContainer, -1);
+        int sampleRate = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewSampleRate, -1);
+        int channelCount = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewChannelCount, -1);
+        int bitRate = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewBitRate, -1);
+        int inMemoryMaxSize = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewInMemoryMaxBytes, mInMemoryMaxSize);
+        boolean dragPredictionEnabled = typedArray.getBoolean(R.styleable.RecordingAudioView_recAudioViewDragPrediction, mDragPredictionEnabled);
+        boolean retainRecordingEnabled = typedArray.getBoolean(R.styleable.RecordingAudioView_recAudioViewRetainRecording, mRetainRecordingEnabled);
+        int amplitudeIntervalMs = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewAmplitudeIntervalMs, mAmplitudeIntervalMs);
+        int timeTickIntervalMs = typedArray.getInteger(R.styleable.RecordingAudioView_recAudioViewTimeTickIntervalMs, mTimeTickIntervalMs);
+        boolean waveformEnabled = typedArray.getBoolean(R.styleable.RecordingAudioView_recAudioViewWaveformEnabled, mWaveformEnabled);
+        int waveformColor = typedArray.getColor(R.styleable.RecordingAudioView_recAudioViewWaveformColor, mWaveformView.getColor());
 
         setIconsColor(iconsColor);
         setEnableRevealAnimation(revealEnabled);
         setRevealColor(revealColor);
         setRevealDestroyColor(revealDestroyColor);
         if (micIconDrawable != null) setMicImage(micIconDrawable);
+        if (stopIconDrawable != null) setStopImage(stopIconDrawable);
+        setLockEnabled(lockEnabled);
         if (destroyIconDrawable != null) setDestroyImage(destroyIconDrawable);
         if (fileName != null) setFileName(fileName);
         setMaxRecordingTime(maxRecordingTimeMs);
-
+        setTrimSilenceEnabled(trimSilenceEnabled);
+        setSilenceAutoStop(silenceAutoStopMs);
+        if (highPassCutoffHz != DspChain.OFF || noiseGateThresholdDbfs != DspChain.OFF
+                || normalizerTargetDbfs != DspChain.OFF || resampleRate != DspChain.OFF) {
+            setDspChain(new DspChain(highPassCutoffHz, noiseGateThresholdDbfs, normalizerTargetDbfs, resampleRate));
+        }
+        setPeakSummary(peakSummaryBucketCount, peakSummarySidecarEnabled);
+        setTimeTickInterval(timeTickIntervalMs);
+        setWarmStandbyEnabled(warmStandbyEnabled);
+        if (container == -1) {
+            // recAudioViewBackend and recAudioViewPcmEncoder predate recAudioViewContainer
+            if (recordingBackend == BACKEND_PCM) {
+                container = pcmEncoder == PCM_ENCODER_AAC ? AudioFormatSpec.CONTAINER_AAC : AudioFormatSpec.CONTAINER_WAV;
+            } else {
+                container = AudioFormatSpec.CONTAINER_THREE_GPP;
+            }
+        }
+        setAudioFormat(createAudioFormat(container, sampleRate, channelCount, bitRate));
+        setInMemoryRecording(inMemoryMaxSize);
+        setDragPredictionEnabled(dragPredictionEnabled);
+        setRetainRecordingEnabled(retainRecordingEnabled);
+        setAmplitudeInterval(amplitudeIntervalMs);
+        setWaveformEnabled(waveformEnabled);
+        setWaveformColor(waveformColor);
+
         typedArray.recycle();
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        super.onLayout(changed, left, top, right, bottom);
+
+        mViewCenter = getWidth() / 2 - mMicrophoneImageView.getWidth() / 2;
+        mDestroyImageView.getDrawingRect(mDestroyIconRect);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        RecordingSessionManager.getInstance().attach(mSession);
+        if (mRestoredState != null) {
+            reattachRecording();
+        }
+        updateWarmStandby();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        mFrameClock.stop();
+        mShakeForErrorAnimator.cancel();
+        if (mRevealRenderer != null) {
+            mRevealRenderer.cancel();
+        }
+
+        removeCallbacks(mShowRecordingRevealRunnable);
+
+        if (mIsRecording && mRetainRecordingEnabled && isChangingConfigurations()) {
+            // Goes on without a View until the recreated one reattaches with the saved state
+            RecordingSessionManager.getInstance().retain(mSession, mRecordingId);
+            mIsRecording = false;
+        }
 
-        addView(mControlContainer);
+        // Cancels the recording, if any, and resets the UI through onSessionCancelled().
+        // The engine is released if no other View is attached
+        RecordingSessionManager.getInstance().detach(mSession);
+        mRecordingEngine = null;
+    }
+
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        SavedState savedState = new SavedState(super.onSaveInstanceState());
+
+        if (mIsRecording && mRetainRecordingEnabled) {
+            savedState.mRecordingId = mRecordingId;
+            savedState.mElapsedMs = mFrameClock.getElapsedMs();
+            savedState.mSavedNanos = SystemClock.elapsedRealtimeNanos();
+            savedState.mPaused = mIsPaused;
+        }
+
+        return savedState;
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+
+        SavedState savedState = (SavedState) state;
+        super.onRestoreInstanceState(savedState.getSuperState());
+
+        if (savedState.mRecordingId != 0) {
+            mRestoredState = savedState;
+
+            if (ViewCompat.isAttachedToWindow(this)) {
+                reattachRecording();
+            }
+        }
     }
 
     @Override
     public boolean onTouch(View view, MotionEvent motionEvent) {
         switch (motionEvent.getAction()) {
             case MotionEvent.ACTION_DOWN:
-                if (mIsShakingForError) {
+                if (isShakingForError()) {
                     return false;
                 }
 
-                if (!mCanRecordValidator.canRecord()) {
+                // A locked recording, or one reattached after a configuration change,
+                // goes on without a finger, this press finishes it
+                boolean alreadyRecording = mIsRecording;
+
+                if (!alreadyRecording && !mCanRecordValidator.canRecord()) {
                     shakeForError();
                     return false;
                 }
 
-                if (!checkPermissions()) {
-                    ActivityCompat.requestPermissions((Activity) mContext, PERMISSIONS, 200);
+                if (!alreadyRecording && !checkPermissions()) {
+                    requestPermissions();
                     return false;
                 }
 
+                if (!alreadyRecording && getOutputSink() == null) {
+                    // Checked here, the engine thread would only find it when starting
+                    throw new IllegalStateException("No output, call setFileName() or setOutputSink() before recording");
+                }
+
                 mDeltaMicDragX = view.getX() - motionEvent.getRawX();
+                mTouchDownRawY = motionEvent.getRawY();
+                mTouchDownUptimeMs = motionEvent.getEventTime();
+                mDragMicAlpha = 1.0f;
+                mDragPredictor.reset(motionEvent.getEventTime(), view.getX());
+
+                // The drag sets the position directly, stop the centering animation if still running
+                mMicrophoneImageView.animate().cancel();
 
                 // When the finger is lifted down
                 mMicrophoneImageView.animate().scaleX(1.4f).scaleY(1.4f).setDuration(100).start();
                 mDestroyImageView.animate().scaleX(1.0f).scaleY(1.0f).setDuration(100).start();
 
-                mFinishedRecording = false;
-                mStartRecMs = System.currentTimeMillis();
-
-                mTimeUpdateHandler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (mFinishedRecording) {
-                            mOnTimeTickListener.onTimeTick(0);
+                if (!alreadyRecording) {
+                    mRecordingId = RecordingSessionManager.getInstance().newRecordingId();
+                    mFrameClock.start();
 
-                            mTimeUpdateHandler.removeCallbacks(this);
-                            return;
-                        }
+                    getRecordingEngine().start(getOutputSink());
+                    mResultPending = true;
 
-                        long deltaMs = System.currentTimeMillis() - mStartRecMs;
-                        mOnTimeTickListener.onTimeTick(deltaMs);
-
-                        if (mMaxRecordingTimeMs != -1) {
-                            if (deltaMs >= mMaxRecordingTimeMs) {
-                                resetViewUi();
-
-                                mOnReachTimeListener.onReachMaxTime();
-                            }
-                        }
-
-                        mTimeUpdateHandler.postDelayed(this, 30);
-                    }
-                }, 30);
-
-                startRecording();
-
-                circularReveal(mMicrophoneImageView, mRevealColor, false);
+                    circularReveal(mMicrophoneImageView, mRevealColor, false);
+                }
 
                 mIsRecording = true;
-
-                mOnNewActionListener.onStartRecording();
                 break;
             case MotionEvent.ACTION_MOVE:
+                if (mLockTouchActive) {
+                    // Locked, the finger does not drag the mic anymore
+                    return true;
+                }
+
+                if (mLockEnabled && !mIsLocked && mTouchDownRawY - motionEvent.getRawY() >= mLockDistancePx) {
+                    lockRecording();
+                    return true;
+                }
+
+                // Feed the samples batched since the last event too, the historical
+                // coordinates are relative to the mic as it was when this event was dispatched
+                float rawOffsetX = motionEvent.getRawX() - motionEvent.getX();
+                for (int i = 0, historySize = motionEvent.getHistorySize(); i < historySize; i++) {
+                    mDragPredictor.add(motionEvent.getHistoricalEventTime(i),
+                            motionEvent.getHistoricalX(i) + rawOffsetX + mDeltaMicDragX);
+                }
+
                 float newCalculatedX = motionEvent.getRawX() + mDeltaMicDragX;
+                mDragPredictor.add(motionEvent.getEventTime(), newCalculatedX);
 
                 // Lock slide from left to right
                 if (newCalculatedX > mViewCenter) {
@@ -350,46 +959,156 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
 
                 final float newOffset = newCalculatedX / mViewCenter;
 
-                float newMicAlpha = newOffset - 0.3f;
-                mMicrophoneImageView.animate()
-                        .x(newCalculatedX)
-                        .alpha(newMicAlpha)
-                        .setDuration(0)
-                        .start();
+                // The cancel decision always uses the real position, the prediction is only drawn
+                mDragMicAlpha = newOffset - 0.3f;
+                mDragMicX = newCalculatedX;
+
+                if (mDragPredictionEnabled && newCalculatedX != 0) {
+                    float predictedX = Math.min(mDragPredictor.predict(), mViewCenter);
+                    mDragMicX = checkMicCollision(predictedX) ? 0 : predictedX;
+                }
+
+                if (!mDragUpdatePending) {
+                    mDragUpdatePending = true;
+                    ViewCompat.postOnAnimation(mMicrophoneImageView, mApplyDragRunnable);
+                }
                 break;
             case MotionEvent.ACTION_UP:
-                // When the finger is lifted up, rescale microphone to default width/height
-                // and collapse the destroy View
-                mMicrophoneImageView.animate().scaleX(1.0f).scaleY(1.0f).setDuration(100).start();
-                mDestroyImageView.animate().scaleX(0.0f).scaleY(0.0f).setDuration(100).start();
+                if (mLockTouchActive) {
+                    // The finger which locked the recording is lifted, it goes on
+                    mLockTouchActive = false;
+                    break;
+                }
 
-                stopRecording();
+                // The last drag position may not have been applied yet
+                mMicrophoneImageView.removeCallbacks(mApplyDragRunnable);
+                mDragUpdatePending = false;
 
-                if (mMicrophoneImageView.getAlpha() < 0.15f) {
-                    // Destroy recording
-                    mOnNewActionListener.onCancelRecording();
+                finishRecording(mDragMicAlpha < 0.15f);
+                break;
+        }
 
-                    circularReveal(mDestroyImageView, mRevealDestroyColor, true);
+        return true;
+    }
 
-                    deleteRecordingFile();
-                } else {
-                    // Success
-                    mOnNewActionListener.onDoneRecording(new File(mFileName));
+    /**
+     * Stop or cancel the current recording, and bring the UI back to its idle state
+     */
+    private void finishRecording(boolean cancel) {
+        // Rescale microphone to default width/height and collapse the destroy View
+        mMicrophoneImageView.animate().scaleX(1.0f).scaleY(1.0f).setDuration(100).start();
+        mDestroyImageView.animate().scaleX(0.0f).scaleY(0.0f).setDuration(100).start();
+
+        mWaveformView.setVisibility(INVISIBLE);
+
+        if (mRecordingEngine == null) {
+            // The engine has been taken by another View, which stopped the recording
+            circularHide(mMicrophoneImageView, mRevealColor);
+        } else if (cancel) {
+            // Destroy recording, stopped and discarded in background
+            mRecordingEngine.cancel();
+            mResultPending = false;
+            mOnNewActionListener.onCancelRecording();
+
+            circularReveal(mDestroyImageView, mRevealDestroyColor, true);
+        } else {
+            // Success
+            mRecordingEngine.stop();
+
+            circularHide(mMicrophoneImageView, mRevealColor);
+        }
 
-                    circularHide(mMicrophoneImageView, mRevealColor);
-                }
+        mFrameClock.stop();
+        if (mTimeTickIntervalMs != TIME_TICK_OFF) {
+            mOnTimeTickListener.onTimeTick(0);
+        }
 
-                mFinishedRecording = true;
-                mIsRecording = false;
+        mIsRecording = false;
+        mIsPaused = false;
 
-                centerMicrophone();
-                break;
+        if (mIsLocked) {
+            mIsLocked = false;
+            mLockTouchActive = false;
+            mMicrophoneImageView.setImageDrawable(mMicDrawable);
+            mMicDrawable = null;
         }
 
-        return true;
+        centerMicrophone();
+    }
+
+    /**
+     * Detach the recording from the touch: the mic goes back to the center and becomes
+     * a stop button, the destroy icon stays visible as a cancel button
+     */
+    private void lockRecording() {
+        log("Recording locked");
+
+        mLockTouchActive = true;
+        showLockedUi();
+
+        // The drag is over
+        mMicrophoneImageView.removeCallbacks(mApplyDragRunnable);
+        mDragUpdatePending = false;
+        mDragMicAlpha = 1.0f;
+
+        mMicrophoneImageView.animate().scaleX(1.0f).scaleY(1.0f).setDuration(100).start();
+        centerMicrophone();
+
+        mOnLockListener.onLockRecording();
+    }
+
+    private void showLockedUi() {
+        mIsLocked = true;
+
+        mMicDrawable = mMicrophoneImageView.getDrawable();
+        if (mStopDrawable != null) {
+            mMicrophoneImageView.setImageDrawable(mStopDrawable);
+        } else {
+            mMicrophoneImageView.setImageResource(mStopImageResId);
+        }
+    }
+
+    /**
+     * Pause the current recording, it goes on in the same output with {@link #resumeRecording()}.
+     * The time ticks are paused too, the paused time is not counted.
+     */
+    public void pauseRecording() {
+        if (!isPauseSupported()) {
+            throw new IllegalStateException("Pause needs API 24, API 18 with a file output in MPEG-4, or the PCM backend");
+        }
+
+        if (!mIsRecording || mIsPaused) {
+            return;
+        }
+
+        mIsPaused = true;
+
+        mFrameClock.pause();
+        getRecordingEngine().pause();
+    }
+
+    public void resumeRecording() {
+        if (!mIsRecording || !mIsPaused) {
+            return;
+        }
+
+        mIsPaused = false;
+
+        mFrameClock.resume();
+        getRecordingEngine().resume();
+    }
+
+    /**
+     * @return true if {@link #pauseRecording()} can be used with the current backend
+     */
+    public boolean isPauseSupported() {
+        return getOutputSink() != null && RecordingEngine.isPauseSupported(mAudioFormat.usesPcmRecorder(), mAudioFormat, getOutputSink());
     }
 
     public void resetViewUi() {
+        // Not waiting for the locking finger anymore
+        mLockTouchActive = false;
+
         long downTime = SystemClock.uptimeMillis();
         long eventTime = downTime + 10;
 
@@ -397,128 +1116,53 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
                 MotionEvent.ACTION_UP, 0, 0, 0
         );
 
-        dispatchTouchEvent(motionEvent);
+        // Straight to the mic, the event would not reach it through the View hierarchy
+        onTouch(mMicrophoneImageView, motionEvent);
+        motionEvent.recycle();
     }
 
-    public void shakeForError() {
-        // In total, there are 3 movements/animations,
-        // so divide the total amount of time by three
-        final int singleMovementDuration = SHAKE_ERROR_ANIM_DURATION / 3;
-
-        ValueAnimator anim = new ValueAnimator();
-        anim.setIntValues(mIconsColor, mShakeForErrorIconColor);
-        anim.setEvaluator(new ArgbEvaluator());
-        anim.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(ValueAnimator valueAnimator) {
-                mMicrophoneImageView.setColorFilter((Integer) valueAnimator.getAnimatedValue());
-            }
-        });
-        anim.setDuration(SHAKE_ERROR_ANIM_DURATION / 2);
-        anim.addListener(new Animator.AnimatorListener() {
-            @Override
-            public void onAnimationStart(Animator animator) {
-            }
-
-            @Override
-            public void onAnimationEnd(Animator animator) {
-                ValueAnimator anim = new ValueAnimator();
-                anim.setIntValues(mShakeForErrorIconColor, mIconsColor);
-                anim.setEvaluator(new ArgbEvaluator());
-                anim.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-                    @Override
-                    public void onAnimationUpdate(ValueAnimator valueAnimator) {
-                        mMicrophoneImageView.setColorFilter((Integer) valueAnimator.getAnimatedValue());
-                    }
-                });
-                anim.setDuration(SHAKE_ERROR_ANIM_DURATION / 2);
-                anim.start();
-            }
+    /**
+     * Call it from RecyclerView.Adapter.onViewRecycled(). The recording, if any,
+     * is cancelled, the UI is reset and the shared engine is given back.
+     */
+    public void onViewRecycled() {
+        // Cancels the recording, if any, and resets the UI through onSessionCancelled()
+        RecordingSessionManager.getInstance().release(mSession);
+        mRecordingEngine = null;
+
+        cancelShakeForError();
+        if (mRevealRenderer != null) {
+            mRevealRenderer.cancel();
+        }
+    }
 
-            @Override
-            public void onAnimationCancel(Animator animator) {
-            }
+    /**
+     * Rotate the mic back and forth while flashing the error color.
+     * Calling it again while shaking restarts the animation, nothing piles up.
+     */
+    public void shakeForError() {
+        // Ends the current shake, if any, and resets the mic
+        mShakeForErrorAnimator.cancel();
+        mShakeForErrorAnimator.start();
+    }
 
-            @Override
-            public void onAnimationRepeat(Animator animator) {
-            }
-        });
-        anim.start();
+    /**
+     * Stop the error animation, the mic goes back to its normal state right away
+     */
+    public void cancelShakeForError() {
+        mShakeForErrorAnimator.cancel();
+    }
 
-        mMicrophoneImageView.animate()
-                .rotationBy(-30)
-                .setDuration(singleMovementDuration)
-                .setListener(new Animator.AnimatorListener() {
-                    @Override
-                    public void onAnimationStart(Animator animator) {
-                        mIsShakingForError = true;
-                    }
-
-                    @Override
-                    public void onAnimationEnd(Animator animator) {
-                        mMicrophoneImageView.animate()
-                                .rotationBy(60)
-                                .setDuration(singleMovementDuration)
-                                .setListener(new Animator.AnimatorListener() {
-                                    @Override
-                                    public void onAnimationStart(Animator animator) {
-                                    }
-
-                                    @Override
-                                    public void onAnimationEnd(Animator animator) {
-                                        mMicrophoneImageView.animate()
-                                                .rotationBy(-30)
-                                                .setDuration(singleMovementDuration)
-                                                .setListener(new Animator.AnimatorListener() {
-                                                    @Override
-                                                    public void onAnimationStart(Animator animator) {
-                                                    }
-
-                                                    @Override
-                                                    public void onAnimationEnd(Animator animator) {
-                                                        mIsShakingForError = false;
-
-                                                        // Clear the listener for the future animations
-                                                        mMicrophoneImageView.animate().setListener(null);
-                                                    }
-
-                                                    @Override
-                                                    public void onAnimationCancel(Animator animator) {
-                                                    }
-
-                                                    @Override
-                                                    public void onAnimationRepeat(Animator animator) {
-                                                    }
-                                                })
-                                                .start();
-                                    }
-
-                                    @Override
-                                    public void onAnimationCancel(Animator animator) {
-                                    }
-
-                                    @Override
-                                    public void onAnimationRepeat(Animator animator) {
-                                    }
-                                }).start();
-                    }
-
-                    @Override
-                    public void onAnimationCancel(Animator animator) {
-                    }
-
-                    @Override
-                    public void onAnimationRepeat(Animator animator) {
-                    }
-                }).start();
+    /**
+     * @return true while the error animation is running, the presses are ignored meanwhile
+     */
+    public boolean isShakingForError() {
+        return mShakeForErrorAnimator.isStarted();
     }
 
     private boolean checkMicCollision(float newX) {
-        Rect rect = new Rect();
-        mDestroyImageView.getDrawingRect(rect);
-
-        return rect.contains((int) newX, (int) mMicrophoneImageView.getY())
-                || newX < rect.left;
+        return mDestroyIconRect.contains((int) newX, (int) mMicrophoneImageView.getY())
+                || newX < mDestroyIconRect.left;
     }
 
     private boolean checkPermissions() {
@@ -531,144 +1175,254 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
         return true;
     }
 
-    private void stopRecording() {
-        if (mMediaRecorder != null) {
-            try {
-                mMediaRecorder.stop();
-                mMediaRecorder.reset();
-                mMediaRecorder.release();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    private void requestPermissions() {
+        Activity activity = findActivity();
+        if (activity == null) {
+            Log.w(TAG, "Not in an Activity, the permissions must be requested by the app");
+            return;
         }
+
+        ActivityCompat.requestPermissions(activity, PERMISSIONS, 200);
     }
 
-    private void deleteRecordingFile() {
-        new File(getFileName()).delete();
+    private boolean isChangingConfigurations() {
+        Activity activity = findActivity();
+        return activity != null && activity.isChangingConfigurations();
     }
 
-    private void centerMicrophone() {
-        log("Centering mic, center = " + mViewCenter);
+    /**
+     * @return the Activity the View lives in, through the ContextWrappers like
+     * the themed ones, or null if it is not in an Activity
+     */
+    private Activity findActivity() {
+        Context context = getContext();
+        while (context instanceof ContextWrapper) {
+            if (context instanceof Activity) {
+                return (Activity) context;
+            }
 
-        mDestroyImageView.setColorFilter(mIconsColor);
+            context = ((ContextWrapper) context).getBaseContext();
+        }
 
-        mMicrophoneImageView.animate()
-                .x(mViewCenter)
-                .alpha(1.0f)
-                .setDuration(100)
-                .start();
+        return null;
     }
 
-    private void startRecording() {
-        mMediaRecorder = new MediaRecorder();
-        mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-        mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.THREE_GPP);
-        mMediaRecorder.setOutputFile(getFileName());
-        mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
-        try {
-            mMediaRecorder.prepare();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Take back the recording retained by the previous instance of this View,
+     * and go on with its elapsed time
+     */
+    private void reattachRecording() {
+        SavedState state = mRestoredState;
+        mRestoredState = null;
+
+        RecordingSessionManager.RetainedRecording retained =
+                RecordingSessionManager.getInstance().reattach(mSession, state.mRecordingId);
+        if (retained == null) {
+            log("The retained recording is gone");
+            return;
         }
-        mMediaRecorder.start();
-    }
 
-    private void circularReveal(View originView, int revealViewColor, final boolean fadeAfter) {
-        if (!mEnableRevealAnimation) {
+        // Owned since reattach(), only the configuration is set
+        getRecordingEngine();
+        mRecordingId = state.mRecordingId;
+
+        if (retained.isStopped()) {
+            // Stopped by itself while retained, already delivered
             return;
         }
 
-        if (mRevealColor != revealViewColor) {
-            mRevealViewWrapper.setBackgroundColor(mRevealColor);
+        mIsRecording = true;
+        mIsPaused = state.mPaused;
+        mResultPending = true;
+
+        // Nobody holds the mic, it works like a locked recording
+        showLockedUi();
+        mDestroyImageView.setScaleX(1.0f);
+        mDestroyImageView.setScaleY(1.0f);
+
+        long elapsedNanos = state.mElapsedMs * 1000000L;
+        if (mIsPaused) {
+            mFrameClock.start(SystemClock.elapsedRealtimeNanos() - elapsedNanos);
+            mFrameClock.pause();
+        } else {
+            // The time spent recreating the View counts
+            mFrameClock.start(state.mSavedNanos - elapsedNanos);
+        }
+
+        if (mWaveformEnabled) {
+            mWaveformView.clear();
+            mWaveformView.setVisibility(VISIBLE);
         }
 
-        mRevealView.setVisibility(VISIBLE);
-        mRevealView.setBackgroundColor(revealViewColor);
+        post(mShowRecordingRevealRunnable);
+    }
 
-        int cx = (originView.getLeft() + originView.getRight()) / 2;
-        int cy = (originView.getTop() + originView.getBottom()) / 2;
+    private RecordingEngine getRecordingEngine() {
+        if (mRecordingEngine == null) {
+            setupRecordingEngine(RecordingSessionManager.getInstance().acquire(mSession));
+        }
 
-        int dx = Math.max(cx, originView.getWidth() - cx);
-        int dy = Math.max(cy, originView.getHeight() - cy);
+        return mRecordingEngine;
+    }
 
-        float finalRadius = (float) Math.hypot(dx, dy) * 2;
+    /**
+     * Take the shared engine and set the configuration of this View on it
+     */
+    private void setupRecordingEngine(RecordingEngine recordingEngine) {
+        mRecordingEngine = recordingEngine;
+        updateRecordingEngineBackend();
+        updateRecordingEngineAmplitudeInterval();
+        updateRecordingEngineMaxDuration();
+        updateRecordingEngineVoiceActivityDetection();
+        updateRecordingEngineDspChain();
+        updateRecordingEnginePeakSummary();
+        updateRecordingEngineChunkListener();
+    }
 
-        Animator animator =
-                ViewAnimationUtils.createCircularReveal(mRevealView, cx, cy, 0, finalRadius);
-        animator.setInterpolator(new AccelerateDecelerateInterpolator());
-        animator.setDuration(250);
-        animator.addListener(new Animator.AnimatorListener() {
-            @Override
-            public void onAnimationStart(Animator animator) {
+    private void updateRecordingEngineBackend() {
+        if (mRecordingEngine != null) {
+            PcmEncoder pcmEncoder = null;
+            if (mAudioFormat.usesPcmRecorder()) {
+                pcmEncoder = mPcmEncoder != null ? mPcmEncoder : mAudioFormat.createPcmEncoder();
             }
 
-            @Override
-            public void onAnimationEnd(Animator animator) {
-                if (fadeAfter) {
-                    mRevealView.animate()
-                            .alpha(0.0f)
-                            .setDuration(200)
-                            .setListener(new Animator.AnimatorListener() {
-                                @Override
-                                public void onAnimationStart(Animator animator) {
-                                    mRevealViewWrapper.setBackgroundColor(Color.TRANSPARENT);
-                                }
-
-                                @Override
-                                public void onAnimationEnd(Animator animator) {
-                                    mRevealView.setAlpha(1.0f);
-                                    mRevealView.setVisibility(INVISIBLE);
-                                }
-
-                                @Override
-                                public void onAnimationCancel(Animator animator) {
-                                }
-
-                                @Override
-                                public void onAnimationRepeat(Animator animator) {
-                                }
-                            }).start();
-                }
-            }
+            mRecordingEngine.setAudioFormat(mAudioFormat);
+            mRecordingEngine.setPcmEncoder(pcmEncoder);
+        }
+    }
 
-            @Override
-            public void onAnimationCancel(Animator animator) {
-            }
+    /**
+     * Build the format set in XML, falling back to MPEG-4/AAC when the container is not supported
+     *
+     * @param sampleRate   the sample rate, -1 for the default one of the container
+     * @param channelCount the channel count, -1 for the default one of the container
+     * @param bitRate      the bitrate, -1 for the default one of the container
+     */
+    private AudioFormatSpec createAudioFormat(int container, int sampleRate, int channelCount, int bitRate) {
+        AudioFormatSpec defaults = AudioFormatSpec.forContainer(container);
+        AudioFormatSpec audioFormat = new AudioFormatSpec(container,
+                sampleRate != -1 ? sampleRate : defaults.getSampleRate(),
+                channelCount != -1 ? channelCount : defaults.getChannelCount(),
+                bitRate != -1 ? bitRate : defaults.getBitRate());
+
+        if (!audioFormat.isSupported()) {
+            Log.w(TAG, audioFormat + " is not supported on this device, falling back to MPEG-4/AAC");
+
+            audioFormat = new AudioFormatSpec(AudioFormatSpec.CONTAINER_MPEG_4,
+                    audioFormat.getSampleRate(), audioFormat.getChannelCount(), audioFormat.getBitRate());
+        }
 
-            @Override
-            public void onAnimationRepeat(Animator animator) {
+        return audioFormat;
+    }
+
+    private static String stripAudioFileExtension(String fileName) {
+        String lowerCaseFileName = fileName.toLowerCase(Locale.US);
+        for (String extension : AUDIO_FILE_EXTENSIONS) {
+            if (lowerCaseFileName.endsWith(extension)) {
+                return fileName.substring(0, fileName.length() - extension.length());
             }
-        });
-        animator.start();
+        }
+
+        return fileName;
     }
 
-    private void circularHide(View originView, int revealViewColor) {
-        if (!mEnableRevealAnimation) {
+    private void updateRecordingEngineChunkListener() {
+        if (mRecordingEngine != null) {
+            mRecordingEngine.setChunkListener(mRecordingChunkListener, mChunkSize);
+        }
+    }
+
+    private void updateRecordingEngineMaxDuration() {
+        if (mRecordingEngine != null) {
+            mRecordingEngine.setMaxDuration(mMaxRecordingTimeMs != -1 ? mMaxRecordingTimeMs : 0);
+        }
+    }
+
+    private void updateRecordingEngineVoiceActivityDetection() {
+        if (mRecordingEngine != null) {
+            mRecordingEngine.setVoiceActivityDetection(mTrimSilenceEnabled, mSilenceAutoStopMs);
+        }
+    }
+
+    private void updateRecordingEngineDspChain() {
+        if (mRecordingEngine != null) {
+            mRecordingEngine.setDspChain(mDspChain);
+        }
+    }
+
+    private void updateRecordingEnginePeakSummary() {
+        if (mRecordingEngine != null) {
+            mRecordingEngine.setPeakSummary(mPeakSummaryBucketCount, mPeakSummarySidecarEnabled);
+        }
+    }
+
+    private void updateRecordingEngineAmplitudeInterval() {
+        if (mRecordingEngine != null) {
+            boolean needsAmplitude = mWaveformEnabled || mOnAmplitudeListener != DUMMY_ON_AMPLITUDE_LISTENER;
+            mRecordingEngine.setAmplitudeInterval(needsAmplitude ? mAmplitudeIntervalMs : 0);
+        }
+    }
+
+    private void updateWarmStandby() {
+        if (!mWarmStandbyEnabled) {
+            if (mRecordingEngine != null) {
+                mRecordingEngine.discardStandby();
+            }
             return;
         }
 
-        mRevealView.setVisibility(VISIBLE);
-        mRevealView.setBackgroundColor(revealViewColor);
+        if (getOutputSink() != null && ViewCompat.isAttachedToWindow(this) && checkPermissions()) {
+            if (mRecordingEngine == null) {
+                // Never interrupt the recording of another View for a standby
+                RecordingEngine recordingEngine = RecordingSessionManager.getInstance().acquireIfIdle(mSession);
+                if (recordingEngine == null) {
+                    return;
+                }
+
+                setupRecordingEngine(recordingEngine);
+            }
 
-        int cx = (originView.getLeft() + originView.getRight()) / 2;
-        int cy = (originView.getTop() + originView.getBottom()) / 2;
+            mRecordingEngine.prepareStandby(getOutputSink());
+        }
+    }
 
-        // get the final radius for the clipping circle
-        int finalRadius = Math.max(mRevealView.getWidth(), mRevealView.getHeight());
+    private void setupShakeForErrorAnimator() {
+        // The easing is applied to each movement in the update listener
+        mShakeForErrorAnimator.setInterpolator(new LinearInterpolator());
+        mShakeForErrorAnimator.setDuration(SHAKE_ERROR_ANIM_DURATION);
+        mShakeForErrorAnimator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+            @Override
+            public void onAnimationUpdate(ValueAnimator valueAnimator) {
+                float fraction = valueAnimator.getAnimatedFraction();
+
+                // 3 movements: -30 degrees, +60 degrees, -30 degrees
+                float rotation;
+                if (fraction < 1.0f / 3) {
+                    rotation = -30 * ease(fraction * 3);
+                } else if (fraction < 2.0f / 3) {
+                    rotation = -30 + 60 * ease(fraction * 3 - 1);
+                } else {
+                    rotation = 30 - 30 * ease(fraction * 3 - 2);
+                }
+                mMicrophoneImageView.setRotation(rotation);
 
-        Animator animator =
-                ViewAnimationUtils.createCircularReveal(mRevealView, cx, cy, finalRadius, 0);
-        animator.setInterpolator(new AccelerateDecelerateInterpolator());
-        animator.setDuration(250);
-        animator.addListener(new Animator.AnimatorListener() {
+                // To the error color in the first half, back in the second one
+                int color = fraction < 0.5f
+                        ? blendColors(mIconsColor, mShakeForErrorIconColor, ease(fraction * 2))
+                        : blendColors(mShakeForErrorIconColor, mIconsColor, ease(fraction * 2 - 1));
+                mMicrophoneImageView.setColorFilter(color);
+            }
+        });
+        mShakeForErrorAnimator.addListener(new Animator.AnimatorListener() {
             @Override
             public void onAnimationStart(Animator animator) {
             }
 
             @Override
             public void onAnimationEnd(Animator animator) {
-                mRevealView.setVisibility(INVISIBLE);
-                mRevealViewWrapper.setBackgroundColor(Color.TRANSPARENT);
+                // Called when cancelled too
+                mMicrophoneImageView.setRotation(0);
+                mMicrophoneImageView.setColorFilter(mIconsColor);
             }
 
             @Override
@@ -679,39 +1433,212 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
             public void onAnimationRepeat(Animator animator) {
             }
         });
-        animator.start();
+    }
+
+    /**
+     * Same curve as {@link android.view.animation.AccelerateDecelerateInterpolator}, the default one of the View animations
+     */
+    private static float ease(float input) {
+        return (float) (Math.cos((input + 1) * Math.PI) / 2.0f) + 0.5f;
+    }
+
+    /**
+     * Interpolate the ARGB channels separately, without boxing the colors like ArgbEvaluator
+     */
+    private static int blendColors(int from, int to, float fraction) {
+        int a = (from >>> 24) + (int) (((to >>> 24) - (from >>> 24)) * fraction);
+        int r = ((from >> 16) & 0xff) + (int) ((((to >> 16) & 0xff) - ((from >> 16) & 0xff)) * fraction);
+        int g = ((from >> 8) & 0xff) + (int) ((((to >> 8) & 0xff) - ((from >> 8) & 0xff)) * fraction);
+        int b = (from & 0xff) + (int) (((to & 0xff) - (from & 0xff)) * fraction);
+
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private void centerMicrophone() {
+        log("Centering mic, center = " + mViewCenter);
+
+        mDestroyImageView.setColorFilter(mIconsColor);
+
+        mMicrophoneImageView.animate()
+                .x(mViewCenter)
+                .alpha(1.0f)
+                .setDuration(100)
+                .start();
+    }
+
+    private void circularReveal(View originView, int revealViewColor, boolean fadeAfter) {
+        if (!mEnableRevealAnimation) {
+            return;
+        }
+
+        // Destroying shows the recording color behind the reveal
+        int backgroundColor = mRevealColor != revealViewColor ? mRevealColor : Color.TRANSPARENT;
+        getRevealRenderer().reveal(originView, revealViewColor, backgroundColor, fadeAfter);
+    }
+
+    private void circularHide(View originView, int revealViewColor) {
+        if (!mEnableRevealAnimation || mRevealRenderer == null) {
+            // Nothing has been revealed
+            return;
+        }
+
+        mRevealRenderer.hide(originView, revealViewColor);
     }
 
     private void log(Object what) {
         if (DEBUG) {
             Log.d(TAG, what != null ? String.valueOf(what) : "null");
         }
-    }
-
-    private int fetchPrimaryColor() {
-        TypedValue typedValue = new TypedValue();
-        TypedArray typedArray = mContext.obtainStyledAttributes(typedValue.data, new int[]{R.attr.colorPrimary});
-        int color = typedArray.getColor(0, 0);
+    }
+
+    private int fetchPrimaryColor() {
+        TypedValue typedValue = new TypedValue();
+        if (!mContext.getTheme().resolveAttribute(R.attr.colorPrimary, typedValue, true)) {
+            return 0;
+        }
+
+        if (typedValue.type >= TypedValue.TYPE_FIRST_COLOR_INT && typedValue.type <= TypedValue.TYPE_LAST_COLOR_INT) {
+            return typedValue.data;
+        }
+
+        return typedValue.resourceId != 0 ? ContextCompat.getColor(mContext, typedValue.resourceId) : 0;
+    }
+
+    /**
+     * The reveal Views are only needed by the reveal animations, so they are added behind the others
+     * on the first reveal. They are laid out by the next layout pass, where the renderer starts the reveal,
+     * the press starting the recording does not lay them out itself.
+     */
+    RevealRenderer getRevealRenderer() {
+        if (mRevealRenderer != null) {
+            return mRevealRenderer;
+        }
+
+        FrameLayout revealViewWrapper = new FrameLayout(mContext);
+        View revealView = new View(mContext);
+        revealView.setVisibility(INVISIBLE);
+        revealViewWrapper.addView(revealView, new FrameLayout.LayoutParams(
+                LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+
+        addView(revealViewWrapper, 0, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+
+        mRevealRenderer = new RevealRenderer(revealView, revealViewWrapper);
+        return mRevealRenderer;
+    }
+
+    /**
+     * @return true once the reveal Views have been added
+     */
+    boolean hasRevealViews() {
+        return mRevealRenderer != null;
+    }
+
+    public void setNewActionListener(OnNewActionListener onNewActionListener) {
+        mOnNewActionListener = onNewActionListener;
+    }
+
+    public void setCanRecordValidator(CanRecordValidator canRecordValidator) {
+        mCanRecordValidator = canRecordValidator;
+    }
+
+    public void setOnTimeTickListener(OnTimeTickListener onTimeTickListener) {
+        mOnTimeTickListener = onTimeTickListener;
+    }
+
+    public void setMaxRecordingTimeReachListener(OnReachMaxTimeListener onReachMaxTimeListener) {
+        mOnReachTimeListener = onReachMaxTimeListener;
+    }
+
+    public void setSilenceReachListener(OnReachSilenceListener onReachSilenceListener) {
+        mOnReachSilenceListener = onReachSilenceListener;
+    }
+
+    /**
+     * Stream the encoded output in chunks while recording, to upload it before the user lets go.
+     * Needs the {@link #BACKEND_PCM} backend with a built-in encoder.
+     *
+     * @param recordingChunkListener the listener, called on a background thread,
+     *                               or null to disable chunked output
+     */
+    public void setRecordingChunkListener(RecordingChunkListener recordingChunkListener) {
+        setRecordingChunkListener(recordingChunkListener, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the size of the chunks in bytes
+     * @see #setRecordingChunkListener(RecordingChunkListener)
+     */
+    public void setRecordingChunkListener(RecordingChunkListener recordingChunkListener, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("The chunk size must be positive");
+        }
+
+        mRecordingChunkListener = recordingChunkListener;
+        mChunkSize = chunkSize;
+
+        updateRecordingEngineChunkListener();
+    }
+
+    public void setOnPauseListener(OnPauseListener onPauseListener) {
+        mOnPauseListener = onPauseListener;
+    }
+
+    public void setOnLockListener(OnLockListener onLockListener) {
+        mOnLockListener = onLockListener;
+    }
+
+    public void setOnInMemoryRecordingListener(OnInMemoryRecordingListener onInMemoryRecordingListener) {
+        mOnInMemoryRecordingListener = onInMemoryRecordingListener != null
+                ? onInMemoryRecordingListener : DUMMY_ON_IN_MEMORY_RECORDING_LISTENER;
+    }
+
+    public void setOnPeakSummaryListener(OnPeakSummaryListener onPeakSummaryListener) {
+        mOnPeakSummaryListener = onPeakSummaryListener != null ? onPeakSummaryListener : DUMMY_ON_PEAK_SUMMARY_LISTENER;
+    }
+
+    /**
+     * Get the failures of the recordings. Without a Listener a failed take ends
+     * with {@link OnNewActionListener#onCancelRecording()} instead.
+     */
+    public void setOnRecordingErrorListener(OnRecordingErrorListener onRecordingErrorListener) {
+        mOnRecordingErrorListener = onRecordingErrorListener != null
+                ? onRecordingErrorListener : DUMMY_ON_RECORDING_ERROR_LISTENER;
+    }
+
+    public void setOnAmplitudeListener(OnAmplitudeListener onAmplitudeListener) {
+        mOnAmplitudeListener = onAmplitudeListener != null ? onAmplitudeListener : DUMMY_ON_AMPLITUDE_LISTENER;
+
+        updateRecordingEngineAmplitudeInterval();
+    }
+
+    /**
+     * @param intervalMs how often the {@link OnAmplitudeListener} is called while recording
+     */
+    public void setAmplitudeInterval(int intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("The amplitude interval must be positive");
+        }
 
-        typedArray.recycle();
+        mAmplitudeIntervalMs = intervalMs;
 
-        return color;
+        updateRecordingEngineAmplitudeInterval();
     }
 
-    public void setNewActionListener(OnNewActionListener onNewActionListener) {
-        mOnNewActionListener = onNewActionListener;
-    }
+    /**
+     * Draw a scrolling waveform of the levels behind the mic while recording
+     */
+    public void setWaveformEnabled(boolean waveformEnabled) {
+        mWaveformEnabled = waveformEnabled;
 
-    public void setCanRecordValidator(CanRecordValidator canRecordValidator) {
-        mCanRecordValidator = canRecordValidator;
-    }
+        if (!mWaveformEnabled) {
+            mWaveformView.setVisibility(INVISIBLE);
+        }
 
-    public void setOnTimeTickListener(OnTimeTickListener onTimeTickListener) {
-        mOnTimeTickListener = onTimeTickListener;
+        updateRecordingEngineAmplitudeInterval();
     }
 
-    public void setMaxRecordingTimeReachListener(OnReachMaxTimeListener onReachMaxTimeListener) {
-        mOnReachTimeListener = onReachMaxTimeListener;
+    public void setWaveformColor(int color) {
+        mWaveformView.setColor(color);
     }
 
     public void setIconsColor(int color) {
@@ -753,6 +1680,18 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
         mMicrophoneImageView.setImageBitmap(bitmap);
     }
 
+    /**
+     * @param resId shown on the mic while the recording is locked
+     */
+    public void setStopImage(@DrawableRes int resId) {
+        mStopImageResId = resId;
+        mStopDrawable = null;
+    }
+
+    public void setStopImage(Drawable drawable) {
+        mStopDrawable = drawable;
+    }
+
     public void setDestroyImage(@DrawableRes int resId) {
         mDestroyImageView.setImageResource(resId);
     }
@@ -770,23 +1709,243 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
             throw new IllegalStateException("You cannot set output File name while recording");
         }
 
-        if (!fileName.startsWith("/sdcard/")) {
-            fileName = "/sdcard/" + fileName;
+        // Relative names go to the app-private storage, fast and without permissions
+        File file = new File(fileName);
+        if (!file.isAbsolute()) {
+            file = new File(mContext.getFilesDir(), fileName);
+        }
+
+        // The extension follows the output format
+        mFileName = stripAudioFileExtension(file.getPath());
+        mOutputSink = null;
+        mInMemoryOutputSink = null;
+
+        updateWarmStandby();
+    }
+
+    /**
+     * Keep the takes in a pooled direct buffer instead of writing them to the file name,
+     * for short clips uploaded right away. {@link OnInMemoryRecordingListener} gets a read-only
+     * view of them. Takes bigger than the max size, and the ones of the MediaRecorder backend,
+     * go to the file name as usual. Cancelled takes kept in memory never touch the storage.
+     *
+     * @param maxSizeBytes the max size of the takes kept in memory, 0 to disable
+     */
+    public void setInMemoryRecording(int maxSizeBytes) {
+        if (mIsRecording) {
+            throw new IllegalStateException("You cannot change the output while recording");
+        }
+
+        if (maxSizeBytes < 0) {
+            throw new IllegalArgumentException("Invalid max size: " + maxSizeBytes);
         }
 
-        if (!fileName.endsWith(".3gp")) {
-            fileName += ".3gp";
+        mInMemoryMaxSize = maxSizeBytes;
+        mInMemoryOutputSink = null;
+
+        updateWarmStandby();
+    }
+
+    /**
+     * Write the recordings to a FileDescriptor, a MediaStore ParcelFileDescriptor,
+     * a file or memory instead of the file name. The buffering and the sync of the
+     * output are configured on the {@link OutputSink}.
+     * {@link OnNewActionListener#onDoneRecording(File)} gets a null file when the output is not a file.
+     *
+     * @param outputSink the output, or null to write to the file name again
+     */
+    public void setOutputSink(OutputSink outputSink) {
+        if (mIsRecording) {
+            throw new IllegalStateException("You cannot set the output while recording");
         }
 
-        mFileName = fileName;
+        mOutputSink = outputSink;
+
+        updateWarmStandby();
+    }
+
+    /**
+     * Swipe up from the mic to lock the recording: it goes on without holding the mic,
+     * which becomes a stop button, and the destroy icon becomes a cancel button.
+     * The time ticks and the max duration work the same way.
+     */
+    public void setLockEnabled(boolean lockEnabled) {
+        mLockEnabled = lockEnabled;
     }
 
     public void setMaxRecordingTime(int maxRecordingTimeMs) {
         mMaxRecordingTimeMs = maxRecordingTimeMs;
+
+        updateRecordingEngineMaxDuration();
+    }
+
+    /**
+     * Drop the silence before and after the speech while recording, nothing is done
+     * on the output afterwards. A short pre-roll is kept before the speech.
+     * Only supported by the PCM backend.
+     */
+    public void setTrimSilenceEnabled(boolean trimSilenceEnabled) {
+        mTrimSilenceEnabled = trimSilenceEnabled;
+
+        updateRecordingEngineVoiceActivityDetection();
+    }
+
+    /**
+     * Stop the recording by itself after a silence following speech, then
+     * {@link OnReachSilenceListener} is called. Only supported by the PCM backend.
+     *
+     * @param silenceMs the duration of the silence in ms, 0 to never stop
+     */
+    public void setSilenceAutoStop(int silenceMs) {
+        if (silenceMs < 0) {
+            throw new IllegalArgumentException("Invalid silence duration: " + silenceMs);
+        }
+
+        mSilenceAutoStopMs = silenceMs;
+
+        updateRecordingEngineVoiceActivityDetection();
+    }
+
+    /**
+     * Process the audio while recording, so it needs no post-processing:
+     * high-pass filter, noise gate, gain normalizer and resampler, on a thread of their own.
+     * Only supported by the PCM backend.
+     *
+     * @param dspChain the processing, or null to encode the audio as captured
+     */
+    public void setDspChain(DspChain dspChain) {
+        mDspChain = dspChain;
+
+        updateRecordingEngineDspChain();
+    }
+
+    /**
+     * Build a downsampled peak array of the recordings while recording, to draw their waveform
+     * without decoding them. It is delivered to the {@link OnPeakSummaryListener} right before
+     * {@link OnNewActionListener#onDoneRecording(File)}, and can be read later
+     * with {@link PeakSummary#readSidecar(File)} when written next to the output file.
+     *
+     * @param bucketCount  the number of peaks, like 64 or 128, 0 to disable
+     * @param writeSidecar true to write it next to the output file, with the {@link PeakSummary#SIDECAR_EXTENSION}
+     */
+    public void setPeakSummary(int bucketCount, boolean writeSidecar) {
+        if (bucketCount < 0 || bucketCount > PeakSummary.MAX_BUCKET_COUNT) {
+            throw new IllegalArgumentException("Invalid bucket count: " + bucketCount);
+        }
+
+        mPeakSummaryBucketCount = bucketCount;
+        mPeakSummarySidecarEnabled = writeSidecar;
+
+        updateRecordingEnginePeakSummary();
+    }
+
+    /**
+     * @param timeTickIntervalMs how often the {@link OnTimeTickListener} is called while recording,
+     *                           {@link #TIME_TICK_EVERY_FRAME} to call it on every frame,
+     *                           {@link #TIME_TICK_OFF} to never call it
+     */
+    public void setTimeTickInterval(int timeTickIntervalMs) {
+        if (timeTickIntervalMs < TIME_TICK_OFF) {
+            throw new IllegalArgumentException("Invalid time tick interval: " + timeTickIntervalMs);
+        }
+
+        mTimeTickIntervalMs = timeTickIntervalMs;
+
+        mFrameClock.setTickInterval(mTimeTickIntervalMs);
+    }
+
+    /**
+     * Set the container, codec, sample rate, channels and bitrate of the recordings,
+     * 3gp/AMR-NB by default. The extension of the file name follows the container.
+     * WAV and AAC (ADTS) use the {@link #BACKEND_PCM} backend and reset the encoder
+     * to the built-in one, the other containers use the {@link #BACKEND_MEDIA_RECORDER} backend.
+     *
+     * @throws IllegalArgumentException if the container is not supported on this device,
+     *                                  see {@link AudioFormatSpec#isSupported()}
+     */
+    public void setAudioFormat(AudioFormatSpec audioFormat) {
+        if (mIsRecording) {
+            throw new IllegalStateException("You cannot change the audio format while recording");
+        }
+
+        if (!audioFormat.isSupported()) {
+            throw new IllegalArgumentException(audioFormat + " is not supported on this device");
+        }
+
+        mAudioFormat = audioFormat;
+        mPcmEncoder = null;
+        // The extension of the fallback file changed
+        mInMemoryOutputSink = null;
+
+        updateRecordingEngineBackend();
+        // The output file name changed
+        updateWarmStandby();
+    }
+
+    /**
+     * @param recordingBackend {@link #BACKEND_MEDIA_RECORDER} to record with MediaRecorder,
+     *                         {@link #BACKEND_PCM} to capture PCM samples with AudioRecord and
+     *                         send them through the {@link PcmEncoder}.
+     *                         Switching backend switches to its default format, 3gp/AMR-NB or WAV
+     */
+    public void setRecordingBackend(int recordingBackend) {
+        if (recordingBackend == BACKEND_PCM && !mAudioFormat.usesPcmRecorder()) {
+            setAudioFormat(AudioFormatSpec.forContainer(AudioFormatSpec.CONTAINER_WAV));
+        } else if (recordingBackend == BACKEND_MEDIA_RECORDER && mAudioFormat.usesPcmRecorder()) {
+            setAudioFormat(AudioFormatSpec.DEFAULT);
+        }
+    }
+
+    /**
+     * Set the encoder used by the {@link #BACKEND_PCM} backend, the built-in one
+     * of the output format by default. Use your own implementation to stream or
+     * post-process the audio, set it after {@link #setAudioFormat(AudioFormatSpec)}.
+     *
+     * @param pcmEncoder the encoder, or null to use the built-in one
+     */
+    public void setPcmEncoder(PcmEncoder pcmEncoder) {
+        if (mIsRecording) {
+            throw new IllegalStateException("You cannot change the encoder while recording");
+        }
+
+        mPcmEncoder = pcmEncoder;
+
+        updateRecordingEngineBackend();
+    }
+
+    /**
+     * Draw the mic where the finger is expected to be on the next frame, estimated
+     * from all the touch samples, to hide the touch latency while sliding to cancel.
+     * The cancel threshold still uses the real finger position.
+     */
+    public void setDragPredictionEnabled(boolean dragPredictionEnabled) {
+        mDragPredictionEnabled = dragPredictionEnabled;
+    }
+
+    /**
+     * Keep recording while the Activity is recreated for a configuration change, like a rotation.
+     * The recreated View takes the recording back with its elapsed time, a press finishes it.
+     * The View needs an id for its state to be saved.
+     */
+    public void setRetainRecordingEnabled(boolean retainRecordingEnabled) {
+        mRetainRecordingEnabled = retainRecordingEnabled;
+    }
+
+    /**
+     * Keep a prepared recorder ready as soon as the View is attached and the
+     * permissions are granted, so that a press only has to start it.
+     * The recorder holds the output resources while waiting, so this is opt-in.
+     */
+    public void setWarmStandbyEnabled(boolean warmStandbyEnabled) {
+        mWarmStandbyEnabled = warmStandbyEnabled;
+
+        updateWarmStandby();
     }
 
     public void disableMaxRecordingTime() {
         mMaxRecordingTimeMs = -1;
+
+        updateRecordingEngineMaxDuration();
     }
 
     public OnNewActionListener getOnNewActionListener() {
@@ -805,6 +1964,70 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
         return mOnReachTimeListener;
     }
 
+    public OnReachSilenceListener getOnReachSilenceListener() {
+        return mOnReachSilenceListener;
+    }
+
+    public boolean isTrimSilenceEnabled() {
+        return mTrimSilenceEnabled;
+    }
+
+    public int getSilenceAutoStop() {
+        return mSilenceAutoStopMs;
+    }
+
+    public RecordingChunkListener getRecordingChunkListener() {
+        return mRecordingChunkListener;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public OnPauseListener getOnPauseListener() {
+        return mOnPauseListener;
+    }
+
+    public OnInMemoryRecordingListener getOnInMemoryRecordingListener() {
+        return mOnInMemoryRecordingListener;
+    }
+
+    public OnPeakSummaryListener getOnPeakSummaryListener() {
+        return mOnPeakSummaryListener;
+    }
+
+    public DspChain getDspChain() {
+        return mDspChain;
+    }
+
+    public int getPeakSummaryBucketCount() {
+        return mPeakSummaryBucketCount;
+    }
+
+    public boolean isPeakSummarySidecarEnabled() {
+        return mPeakSummarySidecarEnabled;
+    }
+
+    public int getInMemoryMaxSize() {
+        return mInMemoryMaxSize;
+    }
+
+    public OnAmplitudeListener getOnAmplitudeListener() {
+        return mOnAmplitudeListener;
+    }
+
+    public int getAmplitudeIntervalMs() {
+        return mAmplitudeIntervalMs;
+    }
+
+    public boolean isWaveformEnabled() {
+        return mWaveformEnabled;
+    }
+
+    public int getWaveformColor() {
+        return mWaveformView.getColor();
+    }
+
     public int getIconsColor() {
         return mIconsColor;
     }
@@ -826,17 +2049,149 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
             return null;
         }
 
-        return mFileName.endsWith(".3gp") ? mFileName : mFileName.concat(".3gp");
+        return mFileName.concat(mAudioFormat.getFileExtension());
+    }
+
+    /**
+     * @return the output of the recordings, the one set with {@link #setOutputSink(OutputSink)}
+     * or the file name, null if none has been set
+     */
+    public OutputSink getOutputSink() {
+        if (mOutputSink != null) {
+            return mOutputSink;
+        }
+
+        File file = mFileName != null ? new File(getFileName()) : null;
+
+        if (mInMemoryMaxSize > 0) {
+            if (mInMemoryOutputSink == null) {
+                mInMemoryOutputSink = OutputSink.inMemory(mInMemoryMaxSize, file);
+            }
+            return mInMemoryOutputSink;
+        }
+
+        return file != null ? OutputSink.toFile(file) : null;
+    }
+
+    public int getTimeTickIntervalMs() {
+        return mTimeTickIntervalMs;
     }
 
     public int getMaxRecordingTimeMs() {
         return mMaxRecordingTimeMs;
     }
 
+    public int getRecordingBackend() {
+        return mAudioFormat.usesPcmRecorder() ? BACKEND_PCM : BACKEND_MEDIA_RECORDER;
+    }
+
+    public AudioFormatSpec getAudioFormat() {
+        return mAudioFormat;
+    }
+
+    /**
+     * @return the encoder set with {@link #setPcmEncoder(PcmEncoder)}, null if the built-in one is used
+     */
+    public PcmEncoder getPcmEncoder() {
+        return mPcmEncoder;
+    }
+
+    public boolean isDragPredictionEnabled() {
+        return mDragPredictionEnabled;
+    }
+
+    public boolean isRetainRecordingEnabled() {
+        return mRetainRecordingEnabled;
+    }
+
+    public boolean isWarmStandbyEnabled() {
+        return mWarmStandbyEnabled;
+    }
+
+    /**
+     * @return the ms from the touch to the recorder capturing the first samples,
+     * for the last recording, or -1 if nothing has been recorded yet
+     */
+    public long getLastStartLatencyMs() {
+        return mLastStartLatencyMs;
+    }
+
     public boolean isRecording() {
         return mIsRecording;
     }
 
+    public boolean isPaused() {
+        return mIsPaused;
+    }
+
+    public boolean isLockEnabled() {
+        return mLockEnabled;
+    }
+
+    /**
+     * @return true if the current recording goes on without holding the mic
+     */
+    public boolean isLocked() {
+        return mIsLocked;
+    }
+
+    public OnLockListener getOnLockListener() {
+        return mOnLockListener;
+    }
+
+    /**
+     * The state of a retained recording, see {@link #setRetainRecordingEnabled(boolean)}
+     */
+    static class SavedState extends BaseSavedState {
+
+        /**
+         * Id of the retained recording, 0 if none
+         */
+        private int mRecordingId;
+
+        /**
+         * Elapsed time of the recording, and the {@link SystemClock#elapsedRealtimeNanos()} at which it was saved
+         */
+        private long mElapsedMs;
+        private long mSavedNanos;
+        private boolean mPaused;
+
+        SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        private SavedState(Parcel in) {
+            super(in);
+
+            mRecordingId = in.readInt();
+            mElapsedMs = in.readLong();
+            mSavedNanos = in.readLong();
+            mPaused = in.readInt() == 1;
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+
+            out.writeInt(mRecordingId);
+            out.writeLong(mElapsedMs);
+            out.writeLong(mSavedNanos);
+            out.writeInt(mPaused ? 1 : 0);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
+    }
+
     public interface OnNewActionListener {
 
         /**
@@ -846,6 +2201,8 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
 
         /**
          * When the user has finished the recording
+         *
+         * @param outputFile the output file, null when the {@link OutputSink} is not a file
          */
         void onDoneRecording(File outputFile);
 
@@ -868,8 +2225,8 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
     public interface OnTimeTickListener {
 
         /**
-         * Update your views or handle time with this listener,
-         * refreshed every 30ms
+         * Update your views or handle time with this listener, refreshed in sync
+         * with the display every {@link #getTimeTickIntervalMs()}, 30ms by default
          *
          * @param durationOfRecording the ms passed from the start of the recording
          */
@@ -879,8 +2236,92 @@ public class RecordingAudioView extends RelativeLayout implements View.OnTouchLi
     public interface OnReachMaxTimeListener {
 
         /**
-         * Called only if the Max recording time is set
+         * Called only if the Max recording time is set, after
+         * {@link OnNewActionListener#onDoneRecording(File)}.
+         * The recorder itself stops at the max time, so the output is cut exactly there.
+         *
+         * @param durationOfRecording the duration of the captured audio in ms
+         */
+        void onReachMaxTime(long durationOfRecording);
+    }
+
+    public interface OnReachSilenceListener {
+
+        /**
+         * Called only if the silence auto-stop is set, after
+         * {@link OnNewActionListener#onDoneRecording(File)}.
+         *
+         * @param durationOfRecording the duration of the recorded audio in ms, without the trimmed silence
+         */
+        void onReachSilence(long durationOfRecording);
+    }
+
+    public interface OnPauseListener {
+
+        /**
+         * When the recorder has really been paused
+         */
+        void onPauseRecording();
+
+        /**
+         * When the recorder has really been resumed
+         */
+        void onResumeRecording();
+    }
+
+    public interface OnLockListener {
+
+        /**
+         * When the recording has been locked by swiping up, it goes on after the finger is lifted
+         */
+        void onLockRecording();
+    }
+
+    public interface OnInMemoryRecordingListener {
+
+        /**
+         * When a take kept in memory is done, see {@link #setInMemoryRecording(int)}.
+         * {@link OnNewActionListener#onDoneRecording(File)} is called right after with a null file.
+         *
+         * @param data a read-only view of the take, valid until the next one starts
+         */
+        void onDoneRecording(ByteBuffer data);
+    }
+
+    public interface OnPeakSummaryListener {
+
+        /**
+         * When a take is done, right before {@link OnNewActionListener#onDoneRecording(File)},
+         * see {@link #setPeakSummary(int, boolean)}
+         *
+         * @param peaks the peaks of the take from start to end, between 0 and 1
+         */
+        void onPeakSummary(float[] peaks);
+    }
+
+    public interface OnRecordingErrorListener {
+
+        /**
+         * When the recorder could not be started, or failed while recording. This ends the take:
+         * no output is delivered, and neither {@link OnNewActionListener#onDoneRecording(File)}
+         * nor {@link OnNewActionListener#onCancelRecording()} is called for it.
+         * Not called for a take the user has already dismissed.
+         *
+         * @param e the cause of the failure
+         */
+        void onRecordingError(Exception e);
+    }
+
+    public interface OnAmplitudeListener {
+
+        /**
+         * Update your level meter with this listener,
+         * refreshed every {@link #getAmplitudeIntervalMs()} while recording
+         *
+         * @param peak the peak level, between 0 and 1
+         * @param rms  the RMS level, between 0 and 1. With the MediaRecorder backend
+         *             only the peak is available, so it is reported here too
          */
-        void onReachMaxTime();
+        void onAmplitude(float peak, float rms);
     }
 }
@@ -0,0 +1,28 @@
+package ml.matteolobello.recordingaudioview;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the encoded output in fixed size chunks while recording,
+ * to upload it before the recording is over.
+ * <p>
+ * All the methods are called on a background delivery thread, in order.
+ * A slow listener holds back the encoder once the chunks pool is full.
+ */
+public interface RecordingChunkListener {
+
+    /**
+     * Called for every chunk of encoded output, the last one can be smaller
+     *
+     * @param chunk the bytes between its position and limit. It is reused
+     *              after this call returns, so copy what you need to keep.
+     */
+    void onRecordingChunk(ByteBuffer chunk);
+
+    /**
+     * Called after the last chunk of a recording
+     *
+     * @param cancelled true if the recording has been cancelled, the chunks have to be discarded
+     */
+    void onRecordingChunksEnd(boolean cancelled);
+}
@@ -0,0 +1,1272 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.annotation.TargetApi;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the recorder on its own background Looper, so that
+ * prepare(), start(), stop() and release() never block the UI thread.
+ * <p>
+ * The recorder is a MediaRecorder, or an AudioRecord based {@link PcmRecorder}
+ * when a {@link PcmEncoder} is set. Both record in the {@link AudioFormatSpec}
+ * set with {@link #setAudioFormat(AudioFormatSpec)}.
+ * <p>
+ * Commands are queued and executed in order, state changes are
+ * posted back to the main thread through the {@link Callback}.
+ * <p>
+ * The max duration is enforced by the recorder itself, with
+ * {@link MediaRecorder#setMaxDuration(int)} or by counting the PCM samples,
+ * so the output is cut exactly at the limit.
+ * <p>
+ * A recording can be paused and resumed in the same output. The PCM recorder
+ * and the MediaRecorder on API 24+ keep their encoder session open, older
+ * MediaRecorders record segments which are joined without re-encoding at the end.
+ * <p>
+ * The PCM recorder can detect the voice, to trim the silence around it and
+ * to stop after a silence, see {@link #setVoiceActivityDetection(boolean, int)}.
+ * <p>
+ * The PCM samples can be processed on their way to the encoder, see {@link #setDspChain(DspChain)}.
+ * <p>
+ * Both recorders can build a downsampled peak array while recording, delivered with the output,
+ * see {@link #setPeakSummary(int, boolean)}.
+ * <p>
+ * With a {@link RecordingChunkListener} the output of the built-in PCM encoders
+ * is streamed in chunks while recording, see {@link ChunkDispatcher}.
+ * <p>
+ * Recordings are written to an {@link OutputSink}. In warm standby mode the engine
+ * keeps a prepared recorder writing to a temp file next to the output file, so that a start only has to call start().
+ * The temp file is renamed to the output when the recording is done and
+ * the next recorder is prepared right after. Only the MediaRecorder with a file output
+ * uses the standby, the PCM recorder keeps its AudioRecord across recordings anyway.
+ */
+public class RecordingEngine {
+
+    /**
+     * Why a recording stopped, see {@link Callback#onRecordingStopped(OutputSink, long, int)}
+     */
+    public static final int STOP_REASON_REQUESTED = 0;
+    public static final int STOP_REASON_MAX_DURATION = 1;
+    public static final int STOP_REASON_SILENCE = 2;
+
+    /**
+     * Log TAG
+     */
+    private static final String TAG = "RecordingEngine";
+
+    /**
+     * How often the MediaRecorder is polled for the peak summary
+     */
+    private static final int PEAK_SUMMARY_POLL_MS = 50;
+
+    /**
+     * Commands, handled on the engine thread
+     */
+    private static final int MSG_START = 1;
+    private static final int MSG_STOP = 2;
+    private static final int MSG_CANCEL = 3;
+    private static final int MSG_RELEASE = 4;
+    private static final int MSG_PREPARE_STANDBY = 5;
+    private static final int MSG_DISCARD_STANDBY = 6;
+    private static final int MSG_SET_PCM_ENCODER = 7;
+    private static final int MSG_SET_AMPLITUDE_INTERVAL = 8;
+    private static final int MSG_POLL_AMPLITUDE = 9;
+    private static final int MSG_SET_MAX_DURATION = 10;
+    private static final int MSG_MAX_DURATION_REACHED = 11;
+    private static final int MSG_PAUSE = 12;
+    private static final int MSG_RESUME = 13;
+    private static final int MSG_SET_CHUNK_LISTENER = 14;
+    private static final int MSG_SET_AUDIO_FORMAT = 15;
+    private static final int MSG_SET_CALLBACK = 16;
+    private static final int MSG_SET_VOICE_ACTIVITY_DETECTION = 17;
+    private static final int MSG_SILENCE_REACHED = 18;
+    private static final int MSG_SET_PEAK_SUMMARY = 19;
+    private static final int MSG_SET_DSP_CHAIN = 20;
+    private static final int MSG_CAPTURE_ERROR = 21;
+
+    /**
+     * Events, delivered on the main thread
+     */
+    private static final int EVENT_STARTED = 1;
+    private static final int EVENT_STOPPED = 2;
+    private static final int EVENT_CANCELLED = 3;
+    private static final int EVENT_ERROR = 4;
+    private static final int EVENT_AMPLITUDE = 5;
+    private static final int EVENT_PAUSED = 6;
+    private static final int EVENT_RESUMED = 7;
+    private static final int EVENT_SET_CALLBACK = 8;
+
+    /**
+     * The thread owning the recorder
+     */
+    private final HandlerThread mEngineThread;
+
+    /**
+     * The Handler used to send commands to the engine thread
+     */
+    private final Handler mEngineHandler;
+
+    /**
+     * The Handler used to deliver events on the main thread
+     */
+    private final Handler mMainHandler;
+
+    /**
+     * The Callback, only touched on the main thread
+     */
+    private Callback mCallback;
+
+    /**
+     * Boolean value to check if the engine has been released, only touched on the main thread
+     */
+    private boolean mReleased;
+
+    /**
+     * The MediaRecorder object, only touched on the engine thread
+     */
+    private MediaRecorder mMediaRecorder;
+
+    /**
+     * The AudioRecord based recorder and its encoder, used instead of the
+     * MediaRecorder when the encoder is set. Only touched on the engine thread
+     */
+    private final PcmRecorder mPcmRecorder;
+    private PcmEncoder mPcmEncoder;
+
+    /**
+     * Format of the recordings, only touched on the engine thread
+     */
+    private AudioFormatSpec mAudioFormat = AudioFormatSpec.DEFAULT;
+
+    /**
+     * Max duration of a recording in ms, 0 for no limit. Only touched on the engine thread
+     */
+    private int mMaxDurationMs;
+
+    /**
+     * Voice activity detection of the PCM recorder, only touched on the engine thread
+     */
+    private boolean mTrimSilence;
+    private int mAutoStopSilenceMs;
+
+    /**
+     * Processing of the PCM samples, null if none. Only touched on the engine thread
+     */
+    private DspChain mDspChain;
+
+    /**
+     * Uptime ms at which the current recording started, only touched on the engine thread
+     */
+    private long mStartedUptimeMs;
+
+    /**
+     * How often the levels are reported while recording, 0 to disable.
+     * Only touched on the engine thread
+     */
+    private int mAmplitudeIntervalMs;
+
+    /**
+     * The peak polled from the MediaRecorder since the last reported levels,
+     * and when they were reported. Only touched on the engine thread
+     */
+    private int mPendingPeak;
+    private long mLastAmplitudeUptimeMs;
+
+    /**
+     * Peak summary of the recordings, null if disabled, and the one of the current recording.
+     * Only touched on the engine thread
+     */
+    private PeakSummary mPeakSummary;
+    private PeakSummary mRecordingPeakSummary;
+
+    /**
+     * Boolean value to check if the peak summary is written next to the output file
+     */
+    private boolean mWritePeakSidecar;
+
+    /**
+     * Receives the output chunks of the next recordings, null if chunked output is disabled,
+     * and the size of the chunks. Only touched on the engine thread
+     */
+    private RecordingChunkListener mChunkListener;
+    private int mChunkSize;
+
+    /**
+     * Delivers the output chunks of all the recordings, created with the first listener,
+     * and whether the current recording uses it. Only touched on the engine thread
+     */
+    private ChunkDispatcher mChunkDispatcher;
+    private boolean mDispatchingChunks;
+
+    /**
+     * Boolean value to check if the current recording is paused, only touched on the engine thread
+     */
+    private boolean mPaused;
+
+    /**
+     * Uptime ms at which the current pause started, and the total paused time
+     * of the current recording. Only touched on the engine thread
+     */
+    private long mPausedUptimeMs;
+    private long mPausedDurationMs;
+
+    /**
+     * Boolean value to check if the current recording is made of segments, because the MediaRecorder
+     * cannot pause, and the valid segments already recorded, in order. Only touched on the engine thread
+     */
+    private boolean mRecordingSegments;
+    private final List<File> mSegmentFiles = new ArrayList<>();
+
+    /**
+     * Output of the current recording, only touched on the engine thread
+     */
+    private OutputSink mOutput;
+
+    /**
+     * The file the current recorder is writing to, differs from
+     * the output when the recorder was taken from the standby or records segments.
+     * Null when the output is not a file
+     */
+    private File mRecordingFile;
+
+    /**
+     * The prepared recorder kept in standby and the temp file it writes to,
+     * only touched on the engine thread
+     */
+    private MediaRecorder mStandbyRecorder;
+    private File mStandbyFile;
+
+    /**
+     * The output the standby recorder is prepared for, null if standby is disabled
+     */
+    private OutputSink mStandbyOutput;
+
+    /**
+     * Receives the MediaRecorder infos, on the engine thread which created the recorder
+     */
+    private final MediaRecorder.OnInfoListener mOnInfoListener = new MediaRecorder.OnInfoListener() {
+        @Override
+        public void onInfo(MediaRecorder mediaRecorder, int what, int extra) {
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED && mediaRecorder == mMediaRecorder) {
+                handleStop(EVENT_STOPPED, STOP_REASON_MAX_DURATION);
+            }
+        }
+    };
+
+    public RecordingEngine(Callback callback) {
+        mCallback = callback;
+
+        mPcmRecorder = new PcmRecorder(new PcmRecorder.Listener() {
+            @Override
+            public void onMaxDurationReached() {
+                // Called on the capture thread, stop on the engine thread
+                mEngineHandler.sendEmptyMessage(MSG_MAX_DURATION_REACHED);
+            }
+
+            @Override
+            public void onSilenceReached() {
+                mEngineHandler.sendEmptyMessage(MSG_SILENCE_REACHED);
+            }
+
+            @Override
+            public void onCaptureError() {
+                mEngineHandler.sendEmptyMessage(MSG_CAPTURE_ERROR);
+            }
+        });
+
+        mEngineThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_URGENT_AUDIO);
+        mEngineThread.start();
+
+        mEngineHandler = new Handler(mEngineThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                switch (message.what) {
+                    case MSG_START:
+                        handleStart((OutputSink) message.obj);
+                        return true;
+                    case MSG_STOP:
+                        handleStop(EVENT_STOPPED, STOP_REASON_REQUESTED);
+                        return true;
+                    case MSG_CANCEL:
+                        handleStop(EVENT_CANCELLED, STOP_REASON_REQUESTED);
+                        return true;
+                    case MSG_RELEASE:
+                        handleRelease();
+                        return true;
+                    case MSG_PREPARE_STANDBY:
+                        mStandbyOutput = (OutputSink) message.obj;
+                        handlePrepareStandby();
+                        return true;
+                    case MSG_DISCARD_STANDBY:
+                        mStandbyOutput = null;
+                        releaseStandby();
+                        return true;
+                    case MSG_SET_PCM_ENCODER:
+                        mPcmEncoder = (PcmEncoder) message.obj;
+                        if (mPcmEncoder == null && !mPcmRecorder.isStarted()) {
+                            // Free the AudioRecord for the MediaRecorder
+                            mPcmRecorder.release();
+                        }
+                        handlePrepareStandby();
+                        return true;
+                    case MSG_SET_AMPLITUDE_INTERVAL:
+                        mAmplitudeIntervalMs = message.arg1;
+                        scheduleAmplitudePoll();
+                        return true;
+                    case MSG_POLL_AMPLITUDE:
+                        handlePollAmplitude();
+                        return true;
+                    case MSG_SET_MAX_DURATION:
+                        mMaxDurationMs = message.arg1;
+                        // The standby recorder has been prepared with the old limit
+                        handlePrepareStandby();
+                        return true;
+                    case MSG_MAX_DURATION_REACHED:
+                        handleStop(EVENT_STOPPED, STOP_REASON_MAX_DURATION);
+                        return true;
+                    case MSG_PAUSE:
+                        handlePause();
+                        return true;
+                    case MSG_RESUME:
+                        handleResume();
+                        return true;
+                    case MSG_SET_CHUNK_LISTENER:
+                        handleSetChunkListener((RecordingChunkListener) message.obj, message.arg1);
+                        return true;
+                    case MSG_SET_AUDIO_FORMAT:
+                        mAudioFormat = (AudioFormatSpec) message.obj;
+                        // The standby recorder has been prepared with the old format
+                        handlePrepareStandby();
+                        return true;
+                    case MSG_SET_VOICE_ACTIVITY_DETECTION:
+                        mTrimSilence = message.arg1 == 1;
+                        mAutoStopSilenceMs = message.arg2;
+                        return true;
+                    case MSG_SILENCE_REACHED:
+                        handleStop(EVENT_STOPPED, STOP_REASON_SILENCE);
+                        return true;
+                    case MSG_CAPTURE_ERROR:
+                        // The error is reported by handleStop()
+                        handleStop(EVENT_STOPPED, STOP_REASON_REQUESTED);
+                        return true;
+                    case MSG_SET_DSP_CHAIN:
+                        mDspChain = (DspChain) message.obj;
+                        return true;
+                    case MSG_SET_PEAK_SUMMARY:
+                        handleSetPeakSummary(message.arg1, message.arg2 == 1);
+                        return true;
+                    case MSG_SET_CALLBACK:
+                        // Sent back through the main thread queue, after the events of the previous commands
+                        mMainHandler.obtainMessage(EVENT_SET_CALLBACK, message.obj).sendToTarget();
+                        return true;
+                }
+
+                return false;
+            }
+        });
+
+        mMainHandler = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                if (message.what == EVENT_SET_CALLBACK) {
+                    if (!mReleased) {
+                        mCallback = (Callback) message.obj;
+                    }
+                    return true;
+                }
+
+                if (mCallback == null) {
+                    return true;
+                }
+
+                switch (message.what) {
+                    case EVENT_STARTED:
+                        mCallback.onRecordingStarted((Long) message.obj);
+                        return true;
+                    case EVENT_STOPPED:
+                        mCallback.onRecordingStopped((OutputSink) message.obj, message.arg1, message.arg2);
+                        return true;
+                    case EVENT_CANCELLED:
+                        mCallback.onRecordingCancelled((OutputSink) message.obj);
+                        return true;
+                    case EVENT_ERROR:
+                        mCallback.onRecordingError((Exception) message.obj);
+                        return true;
+                    case EVENT_AMPLITUDE:
+                        mCallback.onAmplitude(message.arg1, message.arg2);
+                        return true;
+                    case EVENT_PAUSED:
+                        mCallback.onRecordingPaused();
+                        return true;
+                    case EVENT_RESUMED:
+                        mCallback.onRecordingResumed();
+                        return true;
+                }
+
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Hand the engine over to a new Callback. The events of the commands queued
+     * before this call still go to the previous Callback, the following ones to the new one.
+     *
+     * @param callback the new Callback, or null to drop the next events
+     */
+    public void setCallback(Callback callback) {
+        mEngineHandler.obtainMessage(MSG_SET_CALLBACK, callback).sendToTarget();
+    }
+
+    /**
+     * Queue the start of a new recording, returns immediately
+     *
+     * @param output where the recording is written
+     */
+    public void start(OutputSink output) {
+        if (output == null) {
+            throw new IllegalArgumentException("The output cannot be null");
+        }
+
+        mEngineHandler.obtainMessage(MSG_START, output).sendToTarget();
+    }
+
+    /**
+     * Keep a prepared recorder for the given output, so that the next start
+     * has almost no latency. The standby recorder is prepared again after each take.
+     * Only file outputs can be prepared.
+     *
+     * @param output the output of the next recording
+     */
+    public void prepareStandby(OutputSink output) {
+        if (output == null) {
+            throw new IllegalArgumentException("The output cannot be null");
+        }
+
+        mEngineHandler.obtainMessage(MSG_PREPARE_STANDBY, output).sendToTarget();
+    }
+
+    /**
+     * Release the standby recorder and stop preparing new ones
+     */
+    public void discardStandby() {
+        mEngineHandler.sendEmptyMessage(MSG_DISCARD_STANDBY);
+    }
+
+    /**
+     * Capture PCM samples with AudioRecord and send them through the given encoder,
+     * instead of using the MediaRecorder. Applies from the next recording.
+     *
+     * @param pcmEncoder the encoder, or null to use the MediaRecorder
+     */
+    public void setPcmEncoder(PcmEncoder pcmEncoder) {
+        mEngineHandler.obtainMessage(MSG_SET_PCM_ENCODER, pcmEncoder).sendToTarget();
+    }
+
+    /**
+     * Record in the given format. The MediaRecorder uses its container, codec, sample rate,
+     * channels and bitrate, the PCM recorder its sample rate and channels. Applies from the next recording.
+     *
+     * @param audioFormat the format, it must be supported by this device
+     */
+    public void setAudioFormat(AudioFormatSpec audioFormat) {
+        if (!audioFormat.isSupported()) {
+            throw new IllegalArgumentException(audioFormat + " is not supported on this device");
+        }
+
+        mEngineHandler.obtainMessage(MSG_SET_AUDIO_FORMAT, audioFormat).sendToTarget();
+    }
+
+    /**
+     * Report the levels through {@link Callback#onAmplitude(int, int)} while recording
+     *
+     * @param intervalMs how often the levels are reported, 0 to disable
+     */
+    public void setAmplitudeInterval(int intervalMs) {
+        mEngineHandler.obtainMessage(MSG_SET_AMPLITUDE_INTERVAL, intervalMs, 0).sendToTarget();
+    }
+
+    /**
+     * Stop the recordings when they reach the given duration. Applies from the next recording.
+     *
+     * @param maxDurationMs the max duration in ms, 0 for no limit
+     */
+    public void setMaxDuration(int maxDurationMs) {
+        mEngineHandler.obtainMessage(MSG_SET_MAX_DURATION, maxDurationMs, 0).sendToTarget();
+    }
+
+    /**
+     * Detect the voice in the PCM samples, from their energy and zero-crossing rate.
+     * Only supported by the PCM recorder. Applies from the next recording.
+     *
+     * @param trimSilence       true to drop the silence before and after the speech while recording
+     * @param autoStopSilenceMs stop by itself after this much silence following speech,
+     *                          with {@link #STOP_REASON_SILENCE}. 0 to never stop
+     */
+    public void setVoiceActivityDetection(boolean trimSilence, int autoStopSilenceMs) {
+        if (autoStopSilenceMs < 0) {
+            throw new IllegalArgumentException("Invalid silence duration: " + autoStopSilenceMs);
+        }
+
+        mEngineHandler.obtainMessage(MSG_SET_VOICE_ACTIVITY_DETECTION, trimSilence ? 1 : 0, autoStopSilenceMs).sendToTarget();
+    }
+
+    /**
+     * Process the PCM samples between the capture and the encoder: high-pass filter, noise gate,
+     * gain normalizer and resampler, on a thread of their own. Only supported by the PCM recorder.
+     * Applies from the next recording.
+     *
+     * @param dspChain the processing, or null to encode the samples as captured
+     */
+    public void setDspChain(DspChain dspChain) {
+        mEngineHandler.obtainMessage(MSG_SET_DSP_CHAIN, dspChain).sendToTarget();
+    }
+
+    /**
+     * Build a downsampled peak array of the recordings while recording, to draw their waveform
+     * without decoding them. Read it with {@link OutputSink#getPeaks()} when a recording is stopped.
+     * The MediaRecorder is polled for it, the PCM recorder sees every sample. Applies from the next recording.
+     *
+     * @param bucketCount  the number of peaks, 0 to disable, at most {@link PeakSummary#MAX_BUCKET_COUNT}
+     * @param writeSidecar true to also write it next to the output file, see {@link PeakSummary#readSidecar(File)}
+     */
+    public void setPeakSummary(int bucketCount, boolean writeSidecar) {
+        if (bucketCount < 0 || bucketCount > PeakSummary.MAX_BUCKET_COUNT) {
+            throw new IllegalArgumentException("Invalid bucket count: " + bucketCount);
+        }
+
+        mEngineHandler.obtainMessage(MSG_SET_PEAK_SUMMARY, bucketCount, writeSidecar ? 1 : 0).sendToTarget();
+    }
+
+    /**
+     * Stream the encoded output in chunks while recording. Only the built-in
+     * {@link FilePcmEncoder}s support it. Applies from the next recording.
+     *
+     * @param chunkListener the listener, or null to disable chunked output
+     * @param chunkSize     the size of the chunks in bytes
+     */
+    public void setChunkListener(RecordingChunkListener chunkListener, int chunkSize) {
+        mEngineHandler.obtainMessage(MSG_SET_CHUNK_LISTENER, chunkSize, 0, chunkListener).sendToTarget();
+    }
+
+    /**
+     * @return true if the recorder can be paused when writing to the given output, see {@link #pause()}.
+     * Before API 24 the MediaRecorder records segments, which need a file output
+     * and an MPEG-4 container, the only one they can be joined in.
+     */
+    public static boolean isPauseSupported(boolean pcmRecorder, AudioFormatSpec audioFormat, OutputSink output) {
+        return pcmRecorder
+                || Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                || (output.getFile() != null && audioFormat.getContainer() == AudioFormatSpec.CONTAINER_MPEG_4
+                && SegmentConcatenator.isSupported());
+    }
+
+    /**
+     * Queue the pause of the current recording, returns immediately
+     */
+    public void pause() {
+        mEngineHandler.sendEmptyMessage(MSG_PAUSE);
+    }
+
+    /**
+     * Queue the resume of the current recording, returns immediately
+     */
+    public void resume() {
+        mEngineHandler.sendEmptyMessage(MSG_RESUME);
+    }
+
+    /**
+     * Queue the stop of the current recording, returns immediately
+     */
+    public void stop() {
+        mEngineHandler.sendEmptyMessage(MSG_STOP);
+    }
+
+    /**
+     * Queue the stop of the current recording and the discard of its output,
+     * both done on the engine thread. Returns immediately.
+     */
+    public void cancel() {
+        mEngineHandler.sendEmptyMessage(MSG_CANCEL);
+    }
+
+    /**
+     * Stop any recording, release the recorder and quit the engine thread.
+     * No event will be delivered after this call.
+     */
+    public void release() {
+        mReleased = true;
+        mCallback = null;
+        mMainHandler.removeCallbacksAndMessages(null);
+
+        mEngineHandler.sendEmptyMessage(MSG_RELEASE);
+    }
+
+    private void handleStart(OutputSink output) {
+        if (isRecording()) {
+            Log.w(TAG, "Already recording, ignoring start");
+            return;
+        }
+
+        if (mPcmEncoder != null) {
+            handleStartPcm(output);
+            return;
+        }
+
+        if (mTrimSilence || mAutoStopSilenceMs > 0) {
+            Log.w(TAG, "Voice activity detection is only supported by the PCM recorder");
+        }
+
+        if (mDspChain != null) {
+            Log.w(TAG, "The DSP chain is only supported by the PCM recorder");
+        }
+
+        MediaRecorder mediaRecorder = null;
+        File recordingFile = null;
+        try {
+            if (output.getFile() == null && output.getFileDescriptor() == null) {
+                throw new IOException("In-memory outputs without a fallback file are only supported by the PCM backend");
+            }
+            output.openForMediaRecorder();
+
+            if (mStandbyRecorder != null && output.equals(mStandbyOutput)) {
+                // Warm path, the recorder is already prepared
+                mediaRecorder = mStandbyRecorder;
+                recordingFile = mStandbyFile;
+
+                mStandbyRecorder = null;
+                mStandbyFile = null;
+            } else {
+                recordingFile = output.getFile();
+                mediaRecorder = createPreparedRecorder(recordingFile, output.getFileDescriptor(), mMaxDurationMs);
+            }
+
+            mediaRecorder.start();
+        } catch (Exception e) {
+            if (mediaRecorder != null) {
+                mediaRecorder.release();
+            }
+
+            if (recordingFile != null && !recordingFile.equals(output.getFile())) {
+                // The temp file taken from the standby
+                recordingFile.delete();
+            }
+
+            mMainHandler.obtainMessage(EVENT_ERROR, e).sendToTarget();
+
+            handlePrepareStandby();
+            return;
+        }
+
+        mMediaRecorder = mediaRecorder;
+        mRecordingFile = recordingFile;
+        mOutput = output;
+        mStartedUptimeMs = SystemClock.uptimeMillis();
+
+        mRecordingPeakSummary = mPeakSummary;
+        if (mRecordingPeakSummary != null) {
+            // A slot is a poll at first, in ms
+            mRecordingPeakSummary.reset(getPollIntervalMs());
+        }
+
+        mMainHandler.obtainMessage(EVENT_STARTED, mStartedUptimeMs).sendToTarget();
+
+        scheduleAmplitudePoll();
+    }
+
+    private void handleStartPcm(OutputSink output) {
+        if (mChunkListener != null) {
+            if (mPcmEncoder instanceof FilePcmEncoder) {
+                if (mChunkDispatcher == null) {
+                    mChunkDispatcher = new ChunkDispatcher();
+                }
+                mChunkDispatcher.start(mChunkListener, mChunkSize);
+
+                ((FilePcmEncoder) mPcmEncoder).setChunkDispatcher(mChunkDispatcher);
+                mDispatchingChunks = true;
+            } else {
+                Log.w(TAG, "Chunked output is only supported by the built-in encoders");
+            }
+        }
+
+        mPcmRecorder.setVoiceActivityDetection(mTrimSilence, mAutoStopSilenceMs);
+        mPcmRecorder.setDspChain(mDspChain);
+        mPcmRecorder.setPeakSummary(mPeakSummary);
+        mRecordingPeakSummary = mPeakSummary;
+
+        try {
+            mPcmRecorder.start(mPcmEncoder, output,
+                    mAudioFormat.getSampleRate(), mAudioFormat.getChannelCount(), mMaxDurationMs);
+        } catch (Exception e) {
+            if (mDispatchingChunks) {
+                // Nothing has been written, the listener only gets the end
+                mChunkDispatcher.finish(true);
+                mDispatchingChunks = false;
+            }
+            mRecordingPeakSummary = null;
+
+            mMainHandler.obtainMessage(EVENT_ERROR, e).sendToTarget();
+            return;
+        }
+
+        mRecordingFile = output.getFile();
+        mOutput = output;
+        mStartedUptimeMs = SystemClock.uptimeMillis();
+
+        mMainHandler.obtainMessage(EVENT_STARTED, mStartedUptimeMs).sendToTarget();
+
+        scheduleAmplitudePoll();
+    }
+
+    private void handleStop(int event, int stopReason) {
+        if (!isRecording()) {
+            return;
+        }
+
+        mEngineHandler.removeMessages(MSG_POLL_AMPLITUDE);
+
+        PeakSummary peakSummary = mRecordingPeakSummary;
+        mRecordingPeakSummary = null;
+
+        long durationMs;
+        Exception error = null;
+        boolean mediaRecorderOutput = !mPcmRecorder.isStarted();
+        if (mPcmRecorder.isStarted()) {
+            // A cancelled or failed output is discarded by the recorder, before reaching the storage if possible
+            mPcmRecorder.stop(event == EVENT_CANCELLED);
+            durationMs = mPcmRecorder.getEncodedDurationMs();
+            if (event == EVENT_STOPPED) {
+                error = mPcmRecorder.getError();
+            }
+
+            if (mDispatchingChunks) {
+                mChunkDispatcher.finish(event == EVENT_CANCELLED || error != null);
+                mDispatchingChunks = false;
+            }
+        } else {
+            durationMs = getRecordedDurationMs();
+            if (mMaxDurationMs > 0) {
+                // The recorder stopped at the limit, its info arrives a little later
+                durationMs = Math.min(durationMs, mMaxDurationMs);
+            }
+
+            // Null when paused between two segments
+            boolean valid = mMediaRecorder == null || releaseRecorder();
+
+            if (mRecordingSegments) {
+                addSegment(valid);
+                mRecordingSegments = false;
+
+                if (event == EVENT_STOPPED) {
+                    try {
+                        mRecordingFile = joinSegments();
+                    } catch (Exception e) {
+                        // Reported instead of delivering part of the take
+                        error = e;
+                    }
+                }
+
+                for (File segmentFile : mSegmentFiles) {
+                    if (!segmentFile.equals(mRecordingFile)) {
+                        segmentFile.delete();
+                    }
+                }
+                mSegmentFiles.clear();
+            }
+        }
+
+        mPaused = false;
+        mPausedDurationMs = 0;
+
+        OutputSink output = mOutput;
+        mOutput = null;
+
+        File recordingFile = mRecordingFile;
+        mRecordingFile = null;
+
+        if (error != null) {
+            mMainHandler.obtainMessage(EVENT_ERROR, error).sendToTarget();
+
+            handlePrepareStandby();
+            return;
+        }
+
+        if (event == EVENT_CANCELLED) {
+            // Discarded here, on the engine thread, the UI does not wait for the storage
+            if (recordingFile != null && !recordingFile.equals(output.getFile())) {
+                // Taken from the standby or joined from segments
+                recordingFile.delete();
+            } else if (mediaRecorderOutput) {
+                output.discard();
+            }
+        } else if (recordingFile != null && !recordingFile.equals(output.getFile())) {
+            // Taken from the standby or joined from segments
+            if (!recordingFile.renameTo(output.getFile())) {
+                IOException e = new IOException("Unable to move " + recordingFile + " to " + output.getFile());
+                mMainHandler.obtainMessage(EVENT_ERROR, e).sendToTarget();
+
+                handlePrepareStandby();
+                return;
+            }
+        }
+
+        if (event == EVENT_STOPPED && mediaRecorderOutput && output.isSyncOnFinish()) {
+            // The PCM encoders sync their output themselves
+            try {
+                output.sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to sync the output", e);
+            }
+        }
+
+        // Built after the PCM recorder has been stopped, nothing is added anymore
+        output.setPeaks(event == EVENT_STOPPED && peakSummary != null ? peakSummary.build() : null);
+        if (output.getPeaks() != null && mWritePeakSidecar && output.getFile() != null && output.getData() == null) {
+            try {
+                PeakSummary.writeSidecar(output.getFile(), output.getPeaks());
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write the peak summary", e);
+            }
+        }
+
+        mMainHandler.obtainMessage(event, (int) durationMs, stopReason, output).sendToTarget();
+
+        // Get ready for the next take
+        handlePrepareStandby();
+    }
+
+    private void handleSetChunkListener(RecordingChunkListener chunkListener, int chunkSize) {
+        // The current recording keeps its listener, the dispatcher is kept for the next ones
+        mChunkListener = chunkListener;
+        mChunkSize = chunkSize;
+
+        if (mChunkListener != null && mPcmEncoder == null) {
+            Log.w(TAG, "Chunked output is only supported by the PCM recorder");
+        }
+    }
+
+    private void handleSetPeakSummary(int bucketCount, boolean writeSidecar) {
+        mWritePeakSidecar = writeSidecar;
+
+        if (bucketCount == 0) {
+            mPeakSummary = null;
+        } else if (mPeakSummary == null || mPeakSummary.getBucketCount() != bucketCount) {
+            // The current recording keeps its own summary
+            mPeakSummary = new PeakSummary(bucketCount);
+        }
+    }
+
+    private void handlePause() {
+        if (!isRecording() || mPaused) {
+            return;
+        }
+
+        if (!mPcmRecorder.isStarted() && !isPauseSupported(false, mAudioFormat, mOutput)) {
+            Log.w(TAG, "Pause is not supported by the MediaRecorder on this device and output");
+            return;
+        }
+
+        mEngineHandler.removeMessages(MSG_POLL_AMPLITUDE);
+
+        if (mPcmRecorder.isStarted()) {
+            mPcmRecorder.pause();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            pauseMediaRecorder();
+        } else {
+            // Close the segment, a new one is started on resume
+            addSegment(releaseRecorder());
+            mRecordingSegments = true;
+        }
+
+        mPaused = true;
+        mPausedUptimeMs = SystemClock.uptimeMillis();
+
+        mMainHandler.sendEmptyMessage(EVENT_PAUSED);
+    }
+
+    private void handleResume() {
+        if (!mPaused) {
+            return;
+        }
+
+        try {
+            if (mPcmRecorder.isStarted()) {
+                mPcmRecorder.resume();
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                resumeMediaRecorder();
+            } else if (!startSegment()) {
+                // Nothing left before the max duration
+                handleStop(EVENT_STOPPED, STOP_REASON_MAX_DURATION);
+                return;
+            }
+        } catch (Exception e) {
+            mMainHandler.obtainMessage(EVENT_ERROR, e).sendToTarget();
+            return;
+        }
+
+        mPausedDurationMs += SystemClock.uptimeMillis() - mPausedUptimeMs;
+        mPaused = false;
+
+        mMainHandler.sendEmptyMessage(EVENT_RESUMED);
+
+        scheduleAmplitudePoll();
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private void pauseMediaRecorder() {
+        mMediaRecorder.pause();
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private void resumeMediaRecorder() {
+        mMediaRecorder.resume();
+    }
+
+    /**
+     * Start recording a new segment, next to the output
+     *
+     * @return false if the max duration has already been reached
+     */
+    private boolean startSegment() throws IOException {
+        int maxDurationMs = 0;
+        if (mMaxDurationMs > 0) {
+            maxDurationMs = (int) (mMaxDurationMs - getRecordedDurationMs());
+            if (maxDurationMs <= 0) {
+                return false;
+            }
+        }
+
+        File outputFile = mOutput.getFile();
+        File segmentFile = File.createTempFile(outputFile.getName(), ".segment", outputFile.getParentFile());
+
+        MediaRecorder mediaRecorder = null;
+        try {
+            mediaRecorder = createPreparedRecorder(segmentFile, null, maxDurationMs);
+            mediaRecorder.start();
+        } catch (IOException | RuntimeException e) {
+            if (mediaRecorder != null) {
+                mediaRecorder.release();
+            }
+            segmentFile.delete();
+            throw e;
+        }
+
+        mMediaRecorder = mediaRecorder;
+        mRecordingFile = segmentFile;
+        return true;
+    }
+
+    /**
+     * Close the segment being recorded, if any
+     *
+     * @param valid false if the recorder did not write a valid output, because it was stopped
+     *              right after being started. The segment is dropped
+     */
+    private void addSegment(boolean valid) {
+        if (mRecordingFile == null) {
+            return;
+        }
+
+        if (valid) {
+            mSegmentFiles.add(mRecordingFile);
+        } else {
+            mRecordingFile.delete();
+        }
+        mRecordingFile = null;
+    }
+
+    /**
+     * Join the valid segments in a temp file next to the output
+     *
+     * @return the joined file, or the only segment
+     */
+    private File joinSegments() throws IOException {
+        if (mSegmentFiles.isEmpty()) {
+            throw new IOException("Nothing has been recorded");
+        }
+
+        if (mSegmentFiles.size() == 1) {
+            return mSegmentFiles.get(0);
+        }
+
+        File outputFile = mOutput.getFile();
+        File joinedFile = File.createTempFile(outputFile.getName(), ".tmp", outputFile.getParentFile());
+        try {
+            SegmentConcatenator.concatenate(mSegmentFiles, joinedFile);
+        } catch (IOException | RuntimeException e) {
+            joinedFile.delete();
+            throw e;
+        }
+
+        return joinedFile;
+    }
+
+    /**
+     * @return the ms recorded by the MediaRecorder so far, pauses excluded
+     */
+    private long getRecordedDurationMs() {
+        long nowUptimeMs = mPaused ? mPausedUptimeMs : SystemClock.uptimeMillis();
+
+        return nowUptimeMs - mStartedUptimeMs - mPausedDurationMs;
+    }
+
+    /**
+     * @return how often the recorder is polled, 0 for never.
+     * The MediaRecorder is polled for the peak summary too.
+     */
+    private int getPollIntervalMs() {
+        if (mRecordingPeakSummary == null || mPcmRecorder.isStarted()) {
+            return mAmplitudeIntervalMs;
+        }
+
+        return mAmplitudeIntervalMs > 0 ? Math.min(mAmplitudeIntervalMs, PEAK_SUMMARY_POLL_MS) : PEAK_SUMMARY_POLL_MS;
+    }
+
+    private void scheduleAmplitudePoll() {
+        mEngineHandler.removeMessages(MSG_POLL_AMPLITUDE);
+
+        mPendingPeak = 0;
+        mLastAmplitudeUptimeMs = 0;
+
+        int pollIntervalMs = getPollIntervalMs();
+        if (pollIntervalMs > 0 && isRecording() && !mPaused) {
+            mEngineHandler.sendEmptyMessageDelayed(MSG_POLL_AMPLITUDE, pollIntervalMs);
+        }
+    }
+
+    private void handlePollAmplitude() {
+        if (!isRecording() || mPaused) {
+            return;
+        }
+
+        int pollIntervalMs = getPollIntervalMs();
+
+        int peak;
+        int rms;
+        if (mPcmRecorder.isStarted()) {
+            peak = mPcmRecorder.getPeakAmplitude();
+            rms = mPcmRecorder.getRmsAmplitude();
+        } else {
+            // MediaRecorder only exposes the peak since the last call
+            int polledPeak = mMediaRecorder.getMaxAmplitude();
+            if (mRecordingPeakSummary != null) {
+                mRecordingPeakSummary.add(polledPeak / (float) Short.MAX_VALUE, pollIntervalMs);
+            }
+
+            // Polled faster than the levels are reported when building the peak summary
+            mPendingPeak = Math.max(mPendingPeak, polledPeak);
+            peak = mPendingPeak;
+            rms = peak;
+        }
+
+        long nowUptimeMs = SystemClock.uptimeMillis();
+        if (mAmplitudeIntervalMs > 0 && nowUptimeMs - mLastAmplitudeUptimeMs >= mAmplitudeIntervalMs - pollIntervalMs / 2) {
+            // Messages are pooled, nothing is allocated per poll
+            mMainHandler.obtainMessage(EVENT_AMPLITUDE, peak, rms).sendToTarget();
+
+            mPendingPeak = 0;
+            mLastAmplitudeUptimeMs = nowUptimeMs;
+        }
+
+        mEngineHandler.sendEmptyMessageDelayed(MSG_POLL_AMPLITUDE, pollIntervalMs);
+    }
+
+    private void handlePrepareStandby() {
+        releaseStandby();
+
+        if (mStandbyOutput == null || mStandbyOutput.getFile() == null || mPcmEncoder != null || isRecording()) {
+            return;
+        }
+
+        File outputFile = mStandbyOutput.getFile();
+        try {
+            mStandbyFile = File.createTempFile(outputFile.getName(), ".tmp", outputFile.getParentFile());
+            mStandbyRecorder = createPreparedRecorder(mStandbyFile, null, mMaxDurationMs);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to prepare the standby recorder", e);
+
+            releaseStandby();
+        }
+    }
+
+    private void releaseStandby() {
+        if (mStandbyRecorder != null) {
+            mStandbyRecorder.release();
+            mStandbyRecorder = null;
+        }
+
+        if (mStandbyFile != null) {
+            mStandbyFile.delete();
+            mStandbyFile = null;
+        }
+    }
+
+    private void handleRelease() {
+        if (mMediaRecorder != null) {
+            releaseRecorder();
+        }
+
+        mPcmRecorder.release();
+
+        if (mDispatchingChunks) {
+            // The recording has been interrupted
+            mChunkDispatcher.finish(true);
+            mDispatchingChunks = false;
+        }
+
+        if (mChunkDispatcher != null) {
+            mChunkDispatcher.quit();
+            mChunkDispatcher = null;
+        }
+
+        for (File segmentFile : mSegmentFiles) {
+            segmentFile.delete();
+        }
+        mSegmentFiles.clear();
+        mRecordingSegments = false;
+        mPaused = false;
+
+        mStandbyOutput = null;
+        releaseStandby();
+
+        mEngineThread.quit();
+    }
+
+    private boolean isRecording() {
+        return mMediaRecorder != null || mPcmRecorder.isStarted() || mPaused;
+    }
+
+    /**
+     * @param outputFile           the file to record to, or null to record to the FileDescriptor
+     * @param outputFileDescriptor the FileDescriptor to record to, when there is no file
+     * @param maxDurationMs        the max duration of the recorder, 0 for no limit
+     */
+    private MediaRecorder createPreparedRecorder(File outputFile, FileDescriptor outputFileDescriptor,
+                                                 int maxDurationMs) throws IOException {
+        MediaRecorder mediaRecorder = new MediaRecorder();
+        try {
+            mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+            switch (mAudioFormat.getContainer()) {
+                case AudioFormatSpec.CONTAINER_MPEG_4:
+                    mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+                    break;
+                case AudioFormatSpec.CONTAINER_OGG:
+                    mediaRecorder.setOutputFormat(AudioFormatSpec.MEDIA_RECORDER_OUTPUT_FORMAT_OGG);
+                    break;
+                default:
+                    mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.THREE_GPP);
+                    break;
+            }
+            if (outputFile != null) {
+                mediaRecorder.setOutputFile(outputFile.getPath());
+            } else {
+                mediaRecorder.setOutputFile(outputFileDescriptor);
+            }
+            switch (mAudioFormat.getContainer()) {
+                case AudioFormatSpec.CONTAINER_MPEG_4:
+                    mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+                    break;
+                case AudioFormatSpec.CONTAINER_OGG:
+                    mediaRecorder.setAudioEncoder(AudioFormatSpec.MEDIA_RECORDER_AUDIO_ENCODER_OPUS);
+                    break;
+                default:
+                    mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
+                    break;
+            }
+            mediaRecorder.setAudioSamplingRate(mAudioFormat.getSampleRate());
+            mediaRecorder.setAudioChannels(mAudioFormat.getChannelCount());
+            mediaRecorder.setAudioEncodingBitRate(mAudioFormat.getBitRate());
+            if (maxDurationMs > 0) {
+                mediaRecorder.setMaxDuration(maxDurationMs);
+                mediaRecorder.setOnInfoListener(mOnInfoListener);
+            }
+            mediaRecorder.prepare();
+        } catch (IOException | RuntimeException e) {
+            mediaRecorder.release();
+            throw e;
+        }
+
+        return mediaRecorder;
+    }
+
+    /**
+     * @return false if the output is not valid
+     */
+    private boolean releaseRecorder() {
+        boolean valid = true;
+        try {
+            mMediaRecorder.stop();
+        } catch (Exception e) {
+            // Thrown when stop() is called right after start(), the output is not valid
+            e.printStackTrace();
+            valid = false;
+        }
+
+        mMediaRecorder.reset();
+        mMediaRecorder.release();
+        mMediaRecorder = null;
+        return valid;
+    }
+
+    public interface Callback {
+
+        /**
+         * When the recorder has really started capturing audio
+         *
+         * @param startedUptimeMs the {@link SystemClock#uptimeMillis()} at which start() returned
+         */
+        void onRecordingStarted(long startedUptimeMs);
+
+        /**
+         * When the recorder has been stopped and the output file is complete
+         *
+         * @param durationMs the duration of the recorded audio, without the trimmed silence
+         * @param stopReason {@link #STOP_REASON_REQUESTED}, or {@link #STOP_REASON_MAX_DURATION}
+         *                   and {@link #STOP_REASON_SILENCE} if the recorder stopped by itself
+         */
+        void onRecordingStopped(OutputSink output, long durationMs, int stopReason);
+
+        /**
+         * When the recorder has been stopped and the output has been discarded
+         */
+        void onRecordingCancelled(OutputSink output);
+
+        /**
+         * When the recorder could not be started, or failed while recording.
+         * The output of a failed recording is not delivered.
+         */
+        void onRecordingError(Exception e);
+
+        /**
+         * Called periodically while recording, see {@link #setAmplitudeInterval(int)}
+         *
+         * @param peak the peak level, between 0 and {@link Short#MAX_VALUE}
+         * @param rms  the RMS level, between 0 and {@link Short#MAX_VALUE}.
+         *             The MediaRecorder only exposes the peak, which is reported here too
+         */
+        void onAmplitude(int peak, int rms);
+
+        /**
+         * When the recorder has really been paused
+         */
+        void onRecordingPaused();
+
+        /**
+         * When the recorder has really been resumed
+         */
+        void onRecordingResumed();
+    }
+}
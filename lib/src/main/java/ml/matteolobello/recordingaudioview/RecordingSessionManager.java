@@ -0,0 +1,398 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Shares one {@link RecordingEngine} between all the {@link RecordingAudioView}s of the process.
+ * Only one mic records at a time, so lists with many views keep a single
+ * recorder, engine thread and Handler instead of one per row.
+ * <p>
+ * The engine is handed to the view which is pressed. If another view was recording,
+ * its recording is stopped and delivered to it as usual before the handover.
+ * The engine is released when the last view is detached.
+ * <p>
+ * A recording can be retained while its view is recreated for a configuration change,
+ * it keeps going without a view until the new one reattaches, see {@link #retain(Session, int)}.
+ * <p>
+ * Only used on the main thread.
+ */
+public final class RecordingSessionManager {
+
+    /**
+     * How long a retained recording waits for its new view before being cancelled
+     */
+    private static final int RETAIN_TIMEOUT_MS = 5000;
+
+    private static RecordingSessionManager sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The shared engine, null while no view is attached
+     */
+    private RecordingEngine mEngine;
+
+    /**
+     * The Session owning the engine, null if none
+     */
+    private Session mOwner;
+
+    /**
+     * Number of attached Sessions
+     */
+    private int mAttachedCount;
+
+    /**
+     * The recording waiting for its new view, null if none
+     */
+    private RetainedRecording mRetained;
+
+    /**
+     * Last id given to a recording
+     */
+    private int mLastRecordingId;
+
+    /**
+     * Cancel the retained recording nobody reattached to
+     */
+    private final Runnable mDropRetainedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dropRetained();
+            releaseEngineIfUnused();
+        }
+    };
+
+    private RecordingSessionManager() {
+    }
+
+    public static RecordingSessionManager getInstance() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("RecordingSessionManager must be used on the main thread");
+        }
+
+        if (sInstance == null) {
+            sInstance = new RecordingSessionManager();
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Stop the current recording, if any. It is delivered to its view as usual.
+     */
+    public void stopSession() {
+        if (mEngine != null) {
+            mEngine.stop();
+        }
+    }
+
+    /**
+     * @return true if a view is recording
+     */
+    public boolean isRecording() {
+        return mOwner != null && mOwner.isRecording();
+    }
+
+    void attach(Session session) {
+        mAttachedCount++;
+    }
+
+    /**
+     * Release the engine if the Session owns it, and the engine itself when no Session is left
+     */
+    void detach(Session session) {
+        release(session);
+
+        if (mAttachedCount > 0) {
+            mAttachedCount--;
+        }
+
+        releaseEngineIfUnused();
+    }
+
+    /**
+     * @return a new id, saved by the views to find their retained recordings
+     */
+    int newRecordingId() {
+        return ++mLastRecordingId;
+    }
+
+    /**
+     * Keep the recording of the Session going after it is detached,
+     * until a new Session reattaches to it with {@link #reattach(Session, int)}
+     *
+     * @param recordingId the id saved by the Session
+     */
+    void retain(Session session, int recordingId) {
+        if (mOwner != session || mEngine == null) {
+            return;
+        }
+
+        dropRetained();
+
+        mOwner = null;
+        mRetained = new RetainedRecording(recordingId);
+        mEngine.setCallback(mRetained);
+
+        mHandler.postDelayed(mDropRetainedRunnable, RETAIN_TIMEOUT_MS);
+    }
+
+    /**
+     * Hand the retained recording with the given id to the Session
+     *
+     * @return the retained recording, or null if there is none with this id
+     */
+    RetainedRecording reattach(Session session, int recordingId) {
+        if (mRetained == null || mRetained.getId() != recordingId) {
+            return null;
+        }
+
+        RetainedRecording retained = mRetained;
+        mRetained = null;
+        mHandler.removeCallbacks(mDropRetainedRunnable);
+
+        acquire(session);
+        retained.claim(session);
+
+        return retained;
+    }
+
+    /**
+     * Hand the engine to the given Session, stopping the recording of the previous owner
+     *
+     * @return the engine, the Session must set its configuration on it
+     */
+    RecordingEngine acquire(Session session) {
+        if (mEngine == null) {
+            mEngine = new RecordingEngine(null);
+        }
+
+        if (mOwner == session) {
+            return mEngine;
+        }
+
+        dropRetained();
+
+        if (mOwner != null) {
+            Session previousOwner = mOwner;
+            mOwner = null;
+
+            // Queued before the handover, the previous owner still gets the stopped event
+            mEngine.stop();
+            mEngine.discardStandby();
+            previousOwner.onSessionLost();
+        }
+
+        mOwner = session;
+        mEngine.setCallback(session.getCallback());
+
+        return mEngine;
+    }
+
+    /**
+     * Like {@link #acquire(Session)}, but only if no other Session is recording
+     *
+     * @return the engine, or null if another Session is recording
+     */
+    RecordingEngine acquireIfIdle(Session session) {
+        if (mRetained != null || (mOwner != null && mOwner != session && mOwner.isRecording())) {
+            return null;
+        }
+
+        return acquire(session);
+    }
+
+    /**
+     * Cancel the recording of the Session, if it owns the engine, and take the engine back
+     */
+    void release(Session session) {
+        if (mOwner != session || mEngine == null) {
+            return;
+        }
+
+        mOwner = null;
+
+        mEngine.cancel();
+        mEngine.discardStandby();
+
+        if (session.isRecording()) {
+            // Told now, the engine may be released before its cancelled event is delivered
+            session.onSessionCancelled();
+        }
+        mEngine.setCallback(null);
+    }
+
+    private void dropRetained() {
+        if (mRetained == null) {
+            return;
+        }
+
+        mRetained = null;
+        mHandler.removeCallbacks(mDropRetainedRunnable);
+
+        mEngine.cancel();
+        mEngine.setCallback(null);
+    }
+
+    private void releaseEngineIfUnused() {
+        if (mAttachedCount == 0 && mRetained == null && mEngine != null) {
+            mEngine.release();
+            mEngine = null;
+        }
+    }
+
+    /**
+     * A recording going on without a view. It keeps the events which end it
+     * until a Session claims it, then forwards them to the Session.
+     */
+    static final class RetainedRecording implements RecordingEngine.Callback {
+
+        private final int mId;
+
+        /**
+         * The Session which reattached, null until then
+         */
+        private Session mSession;
+
+        /**
+         * The end of the recording, if it ended before being claimed: stopped, cancelled or failed
+         */
+        private OutputSink mStoppedOutput;
+        private long mStoppedDurationMs;
+        private int mStopReason;
+        private OutputSink mCancelledOutput;
+        private Exception mError;
+
+        /**
+         * Boolean value to check if the recording ended, before or after being claimed
+         */
+        private boolean mStopped;
+
+        RetainedRecording(int id) {
+            mId = id;
+        }
+
+        int getId() {
+            return mId;
+        }
+
+        void claim(Session session) {
+            mSession = session;
+
+            if (mStoppedOutput != null) {
+                session.getCallback().onRecordingStopped(mStoppedOutput, mStoppedDurationMs, mStopReason);
+                mStoppedOutput = null;
+            } else if (mCancelledOutput != null) {
+                session.getCallback().onRecordingCancelled(mCancelledOutput);
+                mCancelledOutput = null;
+            } else if (mError != null) {
+                session.getCallback().onRecordingError(mError);
+                mError = null;
+            }
+        }
+
+        /**
+         * @return true if the recording is over, stopped, cancelled or failed.
+         * Its end has been delivered to the Session.
+         */
+        boolean isStopped() {
+            return mStopped;
+        }
+
+        @Override
+        public void onRecordingStarted(long startedUptimeMs) {
+            if (mSession != null) {
+                mSession.getCallback().onRecordingStarted(startedUptimeMs);
+            }
+        }
+
+        @Override
+        public void onRecordingStopped(OutputSink output, long durationMs, int stopReason) {
+            mStopped = true;
+
+            if (mSession != null) {
+                mSession.getCallback().onRecordingStopped(output, durationMs, stopReason);
+                return;
+            }
+
+            mStoppedOutput = output;
+            mStoppedDurationMs = durationMs;
+            mStopReason = stopReason;
+        }
+
+        @Override
+        public void onRecordingCancelled(OutputSink output) {
+            mStopped = true;
+
+            if (mSession != null) {
+                mSession.getCallback().onRecordingCancelled(output);
+                return;
+            }
+
+            mCancelledOutput = output;
+        }
+
+        @Override
+        public void onRecordingError(Exception e) {
+            mStopped = true;
+
+            if (mSession != null) {
+                mSession.getCallback().onRecordingError(e);
+                return;
+            }
+
+            mError = e;
+        }
+
+        @Override
+        public void onAmplitude(int peak, int rms) {
+            if (mSession != null) {
+                mSession.getCallback().onAmplitude(peak, rms);
+            }
+        }
+
+        @Override
+        public void onRecordingPaused() {
+            if (mSession != null) {
+                mSession.getCallback().onRecordingPaused();
+            }
+        }
+
+        @Override
+        public void onRecordingResumed() {
+            if (mSession != null) {
+                mSession.getCallback().onRecordingResumed();
+            }
+        }
+    }
+
+    /**
+     * A user of the shared engine, a {@link RecordingAudioView}
+     */
+    interface Session {
+
+        /**
+         * @return the Callback receiving the events while the Session owns the engine
+         */
+        RecordingEngine.Callback getCallback();
+
+        /**
+         * @return true if the Session is recording
+         */
+        boolean isRecording();
+
+        /**
+         * When another Session took the engine. The recording, if any,
+         * has been stopped and its events are still delivered.
+         */
+        void onSessionLost();
+
+        /**
+         * When the Session gave the engine back while recording. The recording
+         * has been cancelled, its events may not be delivered.
+         */
+        void onSessionCancelled();
+    }
+}
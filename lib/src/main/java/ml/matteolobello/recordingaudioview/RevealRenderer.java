@@ -0,0 +1,287 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.animation.Animator;
+import android.animation.TimeInterpolator;
+import android.annotation.TargetApi;
+import android.graphics.Color;
+import android.os.Build;
+import android.support.v4.view.ViewCompat;
+import android.view.View;
+import android.view.ViewAnimationUtils;
+import android.view.animation.AccelerateDecelerateInterpolator;
+
+/**
+ * Draws the reveal behind the mic when a recording starts, is done or is destroyed.
+ * <p>
+ * On API 21+ it uses the platform circular reveal, rendered by the RenderThread,
+ * with the reveal View on a hardware layer for the duration of the animation.
+ * Older APIs would have to clip in software on every frame, so they get a
+ * hardware layer fade instead. The interpolator and the listeners are created once,
+ * and nothing is allocated per animation on the fallback path.
+ * <p>
+ * The Views can be added right before the first reveal: the platform reveal needs their size,
+ * so it starts in the next layout pass instead of laying them out on the spot.
+ */
+class RevealRenderer {
+
+    static final int REVEAL_DURATION_MS = 250;
+    static final int FADE_DURATION_MS = 200;
+
+    private final TimeInterpolator mInterpolator = new AccelerateDecelerateInterpolator();
+
+    /**
+     * The View revealed, and the one behind it showing the previous reveal color
+     */
+    private final View mRevealView;
+    private final View mBackgroundView;
+
+    /**
+     * Reusable arrays for the positions of the origin and of the reveal View
+     */
+    private final int[] mOriginLocation = new int[2];
+    private final int[] mRevealLocation = new int[2];
+
+    /**
+     * The running platform reveal, null if none
+     */
+    private Animator mRunningAnimator;
+
+    /**
+     * Color of the background View, to avoid setting it again
+     */
+    private int mBackgroundColor = Color.TRANSPARENT;
+
+    /**
+     * Boolean value to check if the current reveal fades out when done
+     */
+    private boolean mFadeAfter;
+
+    /**
+     * Origin of the reveal waiting for the first layout of the reveal View, null if none
+     */
+    private View mPendingOrigin;
+
+    /**
+     * Starts the pending reveal once the reveal View has its size
+     */
+    private final View.OnLayoutChangeListener mFirstLayoutListener = new View.OnLayoutChangeListener() {
+        @Override
+        public void onLayoutChange(View view, int left, int top, int right, int bottom,
+                                   int oldLeft, int oldTop, int oldRight, int oldBottom) {
+            mRevealView.removeOnLayoutChangeListener(this);
+
+            View origin = mPendingOrigin;
+            mPendingOrigin = null;
+            startReveal(origin);
+        }
+    };
+
+    /**
+     * End of a reveal, fades out if requested
+     */
+    private final Animator.AnimatorListener mRevealListener = new Animator.AnimatorListener() {
+        @Override
+        public void onAnimationStart(Animator animator) {
+        }
+
+        @Override
+        public void onAnimationEnd(Animator animator) {
+            onAnimatorEnd(animator);
+
+            if (mFadeAfter) {
+                mFadeAfter = false;
+
+                mRevealView.animate()
+                        .alpha(0.0f)
+                        .setDuration(FADE_DURATION_MS)
+                        .setInterpolator(mInterpolator)
+                        .withLayer()
+                        .setListener(mFadeOutListener)
+                        .start();
+            }
+        }
+
+        @Override
+        public void onAnimationCancel(Animator animator) {
+            mFadeAfter = false;
+        }
+
+        @Override
+        public void onAnimationRepeat(Animator animator) {
+        }
+    };
+
+    /**
+     * End of a hide or of a fade out, the reveal View is hidden
+     */
+    private final Animator.AnimatorListener mFadeOutListener = new Animator.AnimatorListener() {
+        @Override
+        public void onAnimationStart(Animator animator) {
+            setBackgroundColor(Color.TRANSPARENT);
+        }
+
+        @Override
+        public void onAnimationEnd(Animator animator) {
+            onAnimatorEnd(animator);
+
+            mRevealView.setVisibility(View.INVISIBLE);
+            mRevealView.setAlpha(1.0f);
+        }
+
+        @Override
+        public void onAnimationCancel(Animator animator) {
+        }
+
+        @Override
+        public void onAnimationRepeat(Animator animator) {
+        }
+    };
+
+    RevealRenderer(View revealView, View backgroundView) {
+        mRevealView = revealView;
+        mBackgroundView = backgroundView;
+    }
+
+    /**
+     * Reveal the given color from the center of the origin
+     *
+     * @param backgroundColor the color shown behind the reveal
+     * @param fadeAfter       true to fade out the reveal when done
+     */
+    void reveal(View origin, int color, int backgroundColor, boolean fadeAfter) {
+        cancel();
+
+        setBackgroundColor(backgroundColor);
+
+        mFadeAfter = fadeAfter;
+        mRevealView.setBackgroundColor(color);
+        mRevealView.setVisibility(View.VISIBLE);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (ViewCompat.isLaidOut(mRevealView)) {
+                startReveal(origin);
+            } else {
+                mPendingOrigin = origin;
+                mRevealView.addOnLayoutChangeListener(mFirstLayoutListener);
+            }
+        } else {
+            mRevealView.setAlpha(0.0f);
+            mRevealView.animate()
+                    .alpha(1.0f)
+                    .setDuration(REVEAL_DURATION_MS)
+                    .setInterpolator(mInterpolator)
+                    .withLayer()
+                    .setListener(mRevealListener)
+                    .start();
+        }
+    }
+
+    /**
+     * Shrink the given color to the center of the origin, then hide the reveal
+     */
+    void hide(View origin, int color) {
+        cancel();
+
+        if (!ViewCompat.isAttachedToWindow(mRevealView)) {
+            // A detached View cannot be animated, the recording was cancelled by its removal
+            mRevealView.setVisibility(View.INVISIBLE);
+            return;
+        }
+
+        mRevealView.setBackgroundColor(color);
+        mRevealView.setVisibility(View.VISIBLE);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            computeOrigin(origin);
+
+            float startRadius = Math.max(mRevealView.getWidth(), mRevealView.getHeight());
+            startCircularReveal(startRadius, 0, mFadeOutListener);
+        } else {
+            mRevealView.animate()
+                    .alpha(0.0f)
+                    .setDuration(REVEAL_DURATION_MS)
+                    .setInterpolator(mInterpolator)
+                    .withLayer()
+                    .setListener(mFadeOutListener)
+                    .start();
+        }
+    }
+
+    /**
+     * Show the given color right away, without animation
+     */
+    void show(int color) {
+        cancel();
+
+        setBackgroundColor(Color.TRANSPARENT);
+        mRevealView.setBackgroundColor(color);
+        mRevealView.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Stop the running animation, its end listener is called
+     */
+    void cancel() {
+        if (mPendingOrigin != null) {
+            mPendingOrigin = null;
+            mRevealView.removeOnLayoutChangeListener(mFirstLayoutListener);
+        }
+
+        if (mRunningAnimator != null) {
+            mRunningAnimator.cancel();
+        }
+
+        mRevealView.animate().cancel();
+        mRevealView.setAlpha(1.0f);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void startReveal(View origin) {
+        computeOrigin(origin);
+
+        int dx = Math.max(mOriginLocation[0], mRevealView.getWidth() - mOriginLocation[0]);
+        int dy = Math.max(mOriginLocation[1], mRevealView.getHeight() - mOriginLocation[1]);
+
+        startCircularReveal(0, (float) Math.hypot(dx, dy), mRevealListener);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void startCircularReveal(float startRadius, float endRadius, Animator.AnimatorListener listener) {
+        // The platform reveal animators cannot be restarted with new values, only the listener is reused
+        Animator animator = ViewAnimationUtils.createCircularReveal(mRevealView,
+                mOriginLocation[0], mOriginLocation[1], startRadius, endRadius);
+        animator.setInterpolator(mInterpolator);
+        animator.setDuration(REVEAL_DURATION_MS);
+        animator.addListener(listener);
+
+        mRevealView.setLayerType(View.LAYER_TYPE_HARDWARE, null);
+
+        mRunningAnimator = animator;
+        animator.start();
+    }
+
+    private void onAnimatorEnd(Animator animator) {
+        if (animator == mRunningAnimator) {
+            mRunningAnimator = null;
+            mRevealView.setLayerType(View.LAYER_TYPE_NONE, null);
+        }
+    }
+
+    /**
+     * Store the center of the origin, relative to the reveal View, in {@link #mOriginLocation}
+     */
+    private void computeOrigin(View origin) {
+        origin.getLocationInWindow(mOriginLocation);
+        mRevealView.getLocationInWindow(mRevealLocation);
+
+        mOriginLocation[0] += origin.getWidth() / 2 - mRevealLocation[0];
+        mOriginLocation[1] += origin.getHeight() / 2 - mRevealLocation[1];
+    }
+
+    private void setBackgroundColor(int color) {
+        if (mBackgroundColor != color) {
+            mBackgroundColor = color;
+            mBackgroundView.setBackgroundColor(color);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Joins recorded segments into a single file without re-encoding,
+ * the encoded samples are copied as they are with shifted timestamps.
+ * Used to pause the MediaRecorder before {@link android.media.MediaRecorder#pause()} exists.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class SegmentConcatenator {
+
+    /**
+     * Big enough for any compressed audio frame
+     */
+    private static final int MAX_SAMPLE_SIZE = 64 * 1024;
+
+    private SegmentConcatenator() {
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    /**
+     * @param segments the segments, in order, all MPEG-4 files with the same single audio track
+     * @param output   the file to write, must not be one of the segments
+     */
+    static void concatenate(List<File> segments, File output) throws IOException {
+        MediaMuxer mediaMuxer = new MediaMuxer(output.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_SAMPLE_SIZE);
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+        int trackIndex = -1;
+        long offsetUs = 0;
+        try {
+            for (File segment : segments) {
+                if (segment.length() == 0) {
+                    // Nothing was written in this segment
+                    continue;
+                }
+
+                MediaExtractor mediaExtractor = new MediaExtractor();
+                try {
+                    mediaExtractor.setDataSource(segment.getPath());
+                    if (mediaExtractor.getTrackCount() == 0) {
+                        // Nothing was captured in this segment
+                        continue;
+                    }
+                    mediaExtractor.selectTrack(0);
+
+                    if (trackIndex == -1) {
+                        MediaFormat format = mediaExtractor.getTrackFormat(0);
+                        trackIndex = mediaMuxer.addTrack(format);
+                        mediaMuxer.start();
+                    }
+
+                    long lastSampleTimeUs = 0;
+                    long lastSampleDurationUs = 0;
+                    while (true) {
+                        int size = mediaExtractor.readSampleData(buffer, 0);
+                        if (size < 0) {
+                            break;
+                        }
+
+                        long sampleTimeUs = mediaExtractor.getSampleTime();
+                        lastSampleDurationUs = sampleTimeUs - lastSampleTimeUs;
+                        lastSampleTimeUs = sampleTimeUs;
+
+                        bufferInfo.set(0, size, offsetUs + sampleTimeUs, MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+                        mediaMuxer.writeSampleData(trackIndex, buffer, bufferInfo);
+
+                        mediaExtractor.advance();
+                    }
+
+                    // The next segment starts right after the last sample of this one
+                    offsetUs += lastSampleTimeUs + lastSampleDurationUs;
+                } finally {
+                    mediaExtractor.release();
+                }
+            }
+
+            if (trackIndex == -1) {
+                throw new IOException("No audio in the segments");
+            }
+
+            mediaMuxer.stop();
+        } finally {
+            mediaMuxer.release();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package ml.matteolobello.recordingaudioview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Classifies the blocks read by the {@link PcmRecorder} as speech or silence,
+ * from their energy and zero-crossing rate, and sits between the capture and the encoder.
+ * <p>
+ * When trimming, the silence before the first speech is dropped, except a short pre-roll
+ * so the first syllable is not cut, and the silence after speech is held back: it reaches
+ * the encoder only if speech comes back, so the trailing silence never does, however long it is.
+ * Only the end of a long pause is held, the pauses in the middle of a take are shortened to it.
+ * Everything is done while capturing, there is no second pass over the output.
+ * <p>
+ * The buffers are allocated at start only when the format grows, nothing is allocated per block.
+ * Used on the capture thread, configured on the engine thread before a recording.
+ */
+class VoiceActivityDetector {
+
+    /**
+     * Silence kept before the first speech
+     */
+    private static final int PRE_ROLL_MS = 300;
+
+    /**
+     * Blocks still considered speech after the last loud one, so the tails of the words are kept
+     */
+    private static final int HANGOVER_MS = 200;
+
+    /**
+     * Silence held back while trimming when there is no auto-stop, the longer pauses
+     * in the middle of a take are shortened to it
+     */
+    private static final int DEFAULT_HELD_SILENCE_MS = 2000;
+
+    /**
+     * RMS below which a block is never speech, about -45dBFS
+     */
+    private static final int MIN_SPEECH_RMS = 180;
+
+    /**
+     * How far above the noise floor speech has to be, for voiced and unvoiced sounds.
+     * Unvoiced sounds like "s" and "f" are quiet but cross zero often.
+     */
+    private static final int VOICED_FLOOR_RATIO = 4;
+    private static final int UNVOICED_FLOOR_RATIO = 2;
+    private static final float UNVOICED_MIN_ZERO_CROSSING_RATE = 0.3f;
+
+    /**
+     * How fast the noise floor follows a louder background, per block
+     */
+    private static final float NOISE_FLOOR_RISE = 0.02f;
+
+    private boolean mTrimSilence;
+    private int mAutoStopSilenceMs;
+
+    private PcmEncoder mEncoder;
+    private int mChannelCount;
+    private int mBytesPerMs;
+
+    /**
+     * The last {@link #PRE_ROLL_MS} of silence before the first speech
+     */
+    private final SilenceRing mPreRoll = new SilenceRing();
+
+    /**
+     * The end of the silence after the last speech, written if speech comes back
+     */
+    private final SilenceRing mHeld = new SilenceRing();
+
+    private float mNoiseFloor;
+    private boolean mSpeechStarted;
+    private long mLastSpeechBytes;
+    private long mProcessedBytes;
+    private long mWrittenBytes;
+
+    /**
+     * @param trimSilence       true to drop the leading and trailing silence
+     * @param autoStopSilenceMs stop after this much silence following speech, 0 to never stop
+     */
+    void configure(boolean trimSilence, int autoStopSilenceMs) {
+        mTrimSilence = trimSilence;
+        mAutoStopSilenceMs = autoStopSilenceMs;
+    }
+
+    boolean isEnabled() {
+        return mTrimSilence || mAutoStopSilenceMs > 0;
+    }
+
+    void start(PcmEncoder encoder, int sampleRate, int channelCount) {
+        mEncoder = encoder;
+        mChannelCount = channelCount;
+        mBytesPerMs = sampleRate * channelCount * 2 / 1000;
+
+        if (mTrimSilence) {
+            mPreRoll.reset(PRE_ROLL_MS * mBytesPerMs);
+
+            int heldSilenceMs = mAutoStopSilenceMs > 0 ? mAutoStopSilenceMs : DEFAULT_HELD_SILENCE_MS;
+            mHeld.reset(heldSilenceMs * mBytesPerMs);
+        }
+
+        mNoiseFloor = -1;
+        mSpeechStarted = false;
+        mLastSpeechBytes = 0;
+        mProcessedBytes = 0;
+        mWrittenBytes = 0;
+    }
+
+    /**
+     * Classify the block and pass it to the encoder, now, later or never
+     *
+     * @param block the samples between the position and the limit, unchanged by this call
+     * @param rms   the RMS level of the block
+     * @return true if the auto-stop silence has been reached
+     */
+    boolean process(ByteBuffer block, int rms) throws IOException {
+        int size = block.remaining();
+        boolean speech = isSpeech(block, rms);
+
+        mProcessedBytes += size;
+        if (speech) {
+            mLastSpeechBytes = mProcessedBytes;
+        }
+        // The hangover keeps the end of the words
+        boolean inSpeech = mSpeechStarted && mProcessedBytes - mLastSpeechBytes <= HANGOVER_MS * mBytesPerMs;
+
+        if (!mTrimSilence) {
+            write(block);
+        } else if (speech) {
+            if (!mSpeechStarted) {
+                mPreRoll.flush(this);
+            } else {
+                mHeld.flush(this);
+            }
+            write(block);
+        } else if (!mSpeechStarted) {
+            mPreRoll.keep(block);
+        } else if (inSpeech) {
+            write(block);
+        } else {
+            // The oldest silence is dropped when the pause is longer than what is held
+            mHeld.keep(block);
+        }
+
+        if (speech) {
+            mSpeechStarted = true;
+        }
+
+        return mSpeechStarted && mAutoStopSilenceMs > 0
+                && mProcessedBytes - mLastSpeechBytes >= (long) mAutoStopSilenceMs * mBytesPerMs;
+    }
+
+    /**
+     * The recording is over, the held silence is dropped
+     */
+    void finish() {
+        mHeld.clear();
+        mEncoder = null;
+    }
+
+    /**
+     * @return the bytes passed to the encoder in the current or last recording
+     */
+    long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    private boolean isSpeech(ByteBuffer block, int rms) {
+        if (mNoiseFloor < 0) {
+            // The first block gives the background level
+            mNoiseFloor = Math.max(rms, 1);
+        } else if (rms < mNoiseFloor) {
+            mNoiseFloor = Math.max(rms, 1);
+        } else {
+            mNoiseFloor += (rms - mNoiseFloor) * NOISE_FLOOR_RISE;
+        }
+
+        if (rms < MIN_SPEECH_RMS) {
+            return false;
+        }
+
+        if (rms >= mNoiseFloor * VOICED_FLOOR_RATIO) {
+            return true;
+        }
+
+        return rms >= mNoiseFloor * UNVOICED_FLOOR_RATIO
+                && zeroCrossingRate(block, mChannelCount) >= UNVOICED_MIN_ZERO_CROSSING_RATE;
+    }
+
+    /**
+     * @return the zero crossings per sample of the first channel
+     */
+    private static float zeroCrossingRate(ByteBuffer block, int channelCount) {
+        int frameSize = channelCount * 2;
+        int start = block.position();
+        int frames = block.remaining() / frameSize;
+        if (frames < 2) {
+            return 0;
+        }
+
+        int crossings = 0;
+        boolean previousNegative = block.getShort(start) < 0;
+        for (int i = 1; i < frames; i++) {
+            boolean negative = block.getShort(start + i * frameSize) < 0;
+            if (negative != previousNegative) {
+                crossings++;
+            }
+            previousNegative = negative;
+        }
+
+        return crossings / (float) (frames - 1);
+    }
+
+    private void write(ByteBuffer block) throws IOException {
+        int position = block.position();
+        int size = block.remaining();
+
+        mEncoder.encode(block);
+        mWrittenBytes += size;
+
+        block.position(position);
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+        if (buffer != null && buffer.capacity() >= capacity) {
+            return buffer;
+        }
+
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * The last bytes of silence kept, circular: when it is full the oldest bytes are overwritten
+     */
+    private static final class SilenceRing {
+
+        private ByteBuffer mBuffer;
+        private int mSize;
+        private int mPosition;
+        private boolean mFull;
+
+        /**
+         * Get ready for a new recording, allocates only when the size grows
+         */
+        void reset(int size) {
+            mSize = size;
+            mBuffer = ensureCapacity(mBuffer, size);
+            clear();
+        }
+
+        void clear() {
+            mPosition = 0;
+            mFull = false;
+        }
+
+        /**
+         * Keep the samples between the position and the limit of the block, unchanged by this call
+         */
+        void keep(ByteBuffer block) {
+            int position = block.position();
+            int limit = block.limit();
+
+            // Only the end of a block bigger than the ring matters
+            int start = Math.max(position, limit - mSize);
+            while (start < limit) {
+                int count = Math.min(limit - start, mSize - mPosition);
+
+                block.limit(start + count);
+                block.position(start);
+                mBuffer.limit(mPosition + count);
+                mBuffer.position(mPosition);
+                mBuffer.put(block);
+
+                start += count;
+                mPosition += count;
+                if (mPosition == mSize) {
+                    mPosition = 0;
+                    mFull = true;
+                }
+            }
+
+            block.limit(limit);
+            block.position(position);
+        }
+
+        /**
+         * Write what is kept, oldest first, and clear the ring
+         */
+        void flush(VoiceActivityDetector detector) throws IOException {
+            if (mFull) {
+                // Oldest part first, from the write position to the end
+                mBuffer.limit(mSize);
+                mBuffer.position(mPosition);
+                detector.write(mBuffer);
+            }
+
+            if (mPosition > 0) {
+                mBuffer.limit(mPosition);
+                mBuffer.position(0);
+                detector.write(mBuffer);
+            }
+
+            clear();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ml.matteolobello.recordingaudioview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes the samples as they are into a WAV file.
+ * Streamed chunks start with a header without the sizes, as usual for WAV streams.
+ */
+public class WavPcmEncoder extends FilePcmEncoder {
+
+    /**
+     * Size of the canonical WAV header
+     */
+    private static final int HEADER_SIZE = 44;
+
+    /**
+     * Reusable header, written again with the right sizes on stop
+     */
+    private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private int mSampleRate;
+    private int mChannelCount;
+    private long mDataSize;
+
+    @Override
+    protected void onStart(int sampleRate, int channelCount) throws IOException {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mDataSize = 0;
+
+        // Placeholder, the sizes are known only at the end
+        fillHeader();
+        write(mHeader);
+    }
+
+    @Override
+    public void encode(ByteBuffer pcm) throws IOException {
+        mDataSize += pcm.remaining();
+
+        write(pcm);
+    }
+
+    @Override
+    protected void onStop() throws IOException {
+        fillHeader();
+        writeAt(mHeader, 0);
+    }
+
+    private void fillHeader() {
+        int bytesPerFrame = mChannelCount * 2;
+
+        mHeader.clear();
+        mHeader.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+        mHeader.putInt((int) (mDataSize + HEADER_SIZE - 8));
+        mHeader.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+        mHeader.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+        mHeader.putInt(16);
+        mHeader.putShort((short) 1);
+        mHeader.putShort((short) mChannelCount);
+        mHeader.putInt(mSampleRate);
+        mHeader.putInt(mSampleRate * bytesPerFrame);
+        mHeader.putShort((short) bytesPerFrame);
+        mHeader.putShort((short) 16);
+        mHeader.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        mHeader.putInt((int) mDataSize);
+        mHeader.flip();
+    }
+}
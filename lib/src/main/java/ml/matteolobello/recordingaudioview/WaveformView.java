@@ -0,0 +1,132 @@
+package ml.matteolobello.recordingaudioview;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.View;
+
+/**
+ * Draws a scrolling waveform of the amplitude samples, newest on the right.
+ * <p>
+ * Samples are kept in a {@link AmplitudeRingBuffer}, the Path and the Paint are
+ * allocated once, and the View is invalidated at most once per vsync.
+ */
+public class WaveformView extends View implements Choreographer.FrameCallback {
+
+    /**
+     * Number of samples visible at once
+     */
+    private static final int SAMPLES_CAPACITY = 100;
+
+    /**
+     * Fraction of the height used by the loudest sample
+     */
+    private static final float MAX_HEIGHT_FRACTION = 0.9f;
+
+    private final AmplitudeRingBuffer mSamples = new AmplitudeRingBuffer(SAMPLES_CAPACITY);
+
+    private final Path mPath = new Path();
+    private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    /**
+     * Boolean value to check if an invalidation is already scheduled for the next frame
+     */
+    private boolean mFrameScheduled;
+
+    public WaveformView(Context context) {
+        this(context, null);
+    }
+
+    public WaveformView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public WaveformView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setStrokeCap(Paint.Cap.ROUND);
+        mPaint.setColor(Color.WHITE);
+    }
+
+    /**
+     * Add a new sample, the View is redrawn on the next frame
+     *
+     * @param amplitude between 0 and 1
+     */
+    public void addSample(float amplitude) {
+        mSamples.add(amplitude);
+
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    public void clear() {
+        mSamples.clear();
+
+        invalidate();
+    }
+
+    public void setColor(int color) {
+        mPaint.setColor(color);
+
+        invalidate();
+    }
+
+    public int getColor() {
+        return mPaint.getColor();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameScheduled = false;
+
+        invalidate();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        if (mFrameScheduled) {
+            mFrameScheduled = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        mPaint.setStrokeWidth(w / (float) mSamples.capacity() * 0.6f);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        int size = mSamples.size();
+        if (size == 0) {
+            return;
+        }
+
+        float step = getWidth() / (float) mSamples.capacity();
+        float centerY = getHeight() / 2f;
+        float maxHalfHeight = centerY * MAX_HEIGHT_FRACTION;
+
+        mPath.rewind();
+        for (int i = 0; i < size; i++) {
+            float x = getWidth() - (size - i - 0.5f) * step;
+            float halfHeight = Math.max(mSamples.get(i) * maxHalfHeight, 1f);
+
+            mPath.moveTo(x, centerY - halfHeight);
+            mPath.lineTo(x, centerY + halfHeight);
+        }
+
+        canvas.drawPath(mPath, mPaint);
+    }
+}
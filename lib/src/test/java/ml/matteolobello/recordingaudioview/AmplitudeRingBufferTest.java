@@ -0,0 +1,48 @@
+package ml.matteolobello.recordingaudioview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AmplitudeRingBufferTest {
+
+    @Test
+    public void get_beforeFull_returnsOldestFirst() throws Exception {
+        AmplitudeRingBuffer buffer = new AmplitudeRingBuffer(4);
+        buffer.add(1);
+        buffer.add(2);
+
+        assertEquals(2, buffer.size());
+        assertEquals(1, buffer.get(0), 0);
+        assertEquals(2, buffer.get(1), 0);
+    }
+
+    @Test
+    public void add_whenFull_overwritesOldest() throws Exception {
+        AmplitudeRingBuffer buffer = new AmplitudeRingBuffer(3);
+        for (int i = 1; i <= 5; i++) {
+            buffer.add(i);
+        }
+
+        assertEquals(3, buffer.size());
+        assertEquals(3, buffer.capacity());
+        assertEquals(3, buffer.get(0), 0);
+        assertEquals(4, buffer.get(1), 0);
+        assertEquals(5, buffer.get(2), 0);
+    }
+
+    @Test
+    public void clear_emptiesAndRestartsFromZero() throws Exception {
+        AmplitudeRingBuffer buffer = new AmplitudeRingBuffer(3);
+        for (int i = 1; i <= 4; i++) {
+            buffer.add(i);
+        }
+
+        buffer.clear();
+        assertEquals(0, buffer.size());
+
+        buffer.add(7);
+        assertEquals(1, buffer.size());
+        assertEquals(7, buffer.get(0), 0);
+    }
+}
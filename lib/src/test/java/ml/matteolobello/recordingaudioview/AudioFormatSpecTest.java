@@ -0,0 +1,76 @@
+package ml.matteolobello.recordingaudioview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AudioFormatSpecTest {
+
+    @Test
+    public void forContainer_threeGpp_isAmrNbAt8kHz() throws Exception {
+        AudioFormatSpec spec = AudioFormatSpec.forContainer(AudioFormatSpec.CONTAINER_THREE_GPP);
+
+        assertEquals(8000, spec.getSampleRate());
+        assertEquals(1, spec.getChannelCount());
+        assertEquals(".3gp", spec.getFileExtension());
+        assertFalse(spec.usesPcmRecorder());
+        assertEquals(spec, AudioFormatSpec.DEFAULT);
+    }
+
+    @Test
+    public void forContainer_pcmContainers_useThePcmRecorder() throws Exception {
+        AudioFormatSpec wav = AudioFormatSpec.forContainer(AudioFormatSpec.CONTAINER_WAV);
+        AudioFormatSpec aac = AudioFormatSpec.forContainer(AudioFormatSpec.CONTAINER_AAC);
+
+        assertTrue(wav.usesPcmRecorder());
+        assertTrue(aac.usesPcmRecorder());
+        assertEquals(".wav", wav.getFileExtension());
+        assertEquals(".aac", aac.getFileExtension());
+        assertEquals(16000 * 16, wav.getBitRate());
+    }
+
+    @Test
+    public void forContainer_mediaRecorderContainers() throws Exception {
+        AudioFormatSpec mpeg4 = AudioFormatSpec.forContainer(AudioFormatSpec.CONTAINER_MPEG_4);
+        AudioFormatSpec ogg = AudioFormatSpec.forContainer(AudioFormatSpec.CONTAINER_OGG);
+
+        assertFalse(mpeg4.usesPcmRecorder());
+        assertFalse(ogg.usesPcmRecorder());
+        assertEquals(".m4a", mpeg4.getFileExtension());
+        assertEquals(".ogg", ogg.getFileExtension());
+    }
+
+    @Test
+    public void isSupported_oggNeedsApi29() throws Exception {
+        AudioFormatSpec ogg = AudioFormatSpec.forContainer(AudioFormatSpec.CONTAINER_OGG);
+
+        assertFalse(ogg.isSupported(28));
+        assertTrue(ogg.isSupported(29));
+    }
+
+    @Test
+    public void isSupported_otherContainers_onEveryApi() throws Exception {
+        for (int container = AudioFormatSpec.CONTAINER_THREE_GPP; container <= AudioFormatSpec.CONTAINER_AAC; container++) {
+            if (container != AudioFormatSpec.CONTAINER_OGG) {
+                assertTrue(AudioFormatSpec.forContainer(container).isSupported(17));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_unknownContainer_throws() throws Exception {
+        new AudioFormatSpec(AudioFormatSpec.CONTAINER_AAC + 1, 16000, 1, 32000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_threeChannels_throws() throws Exception {
+        new AudioFormatSpec(AudioFormatSpec.CONTAINER_WAV, 16000, 3, 32000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_zeroSampleRate_throws() throws Exception {
+        new AudioFormatSpec(AudioFormatSpec.CONTAINER_WAV, 0, 1, 32000);
+    }
+}
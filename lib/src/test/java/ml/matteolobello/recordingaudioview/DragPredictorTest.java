@@ -0,0 +1,55 @@
+package ml.matteolobello.recordingaudioview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DragPredictorTest {
+
+    @Test
+    public void reset_startsStill() throws Exception {
+        DragPredictor predictor = new DragPredictor();
+        predictor.reset(100, 50);
+
+        assertEquals(50, predictor.getPosition(), 0);
+        assertEquals(50, predictor.predict(), 0);
+    }
+
+    @Test
+    public void add_constantVelocity_convergesAndPredictsAhead() throws Exception {
+        DragPredictor predictor = new DragPredictor();
+        predictor.reset(0, 0);
+
+        // 1px per ms, sampled at 250Hz
+        for (long time = 4; time <= 400; time += 4) {
+            predictor.add(time, time);
+        }
+
+        assertEquals(400, predictor.getPosition(), 0.5f);
+        // One frame ahead
+        assertEquals(416, predictor.predict(), 1f);
+    }
+
+    @Test
+    public void add_jitter_isSmoothed() throws Exception {
+        DragPredictor predictor = new DragPredictor();
+        predictor.reset(0, 100);
+
+        predictor.add(8, 120);
+
+        float position = predictor.getPosition();
+        assertTrue(position > 100 && position < 120);
+    }
+
+    @Test
+    public void add_sameTimestamp_takesNewestPosition() throws Exception {
+        DragPredictor predictor = new DragPredictor();
+        predictor.reset(10, 0);
+
+        predictor.add(10, 30);
+
+        assertEquals(30, predictor.getPosition(), 0);
+        assertEquals(30, predictor.predict(), 0);
+    }
+}
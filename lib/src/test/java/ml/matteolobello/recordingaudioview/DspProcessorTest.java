@@ -0,0 +1,244 @@
+package ml.matteolobello.recordingaudioview;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DspProcessorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    /**
+     * Odd sizes, so the blocks do not line up with the resampling steps.
+     * The writes hold whole stereo frames, like the reads of the capture.
+     */
+    private static final int BLOCK_SIZE = 2 * 331;
+    private static final int WRITE_SIZE = 4 * 259;
+
+    private static final DspChain NO_PROCESSING = new DspChain(DspChain.OFF, DspChain.OFF, DspChain.OFF, DspChain.OFF);
+
+    @Test
+    public void noProcessing_passesTheSamplesThrough() throws Exception {
+        short[] input = new short[5000];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (short) (i * 7 - 15000);
+        }
+
+        short[] output = process(NO_PROCESSING, SAMPLE_RATE, 1, input);
+
+        assertTrue(Arrays.equals(input, output));
+    }
+
+    @Test
+    public void highPass_removesDcAndKeepsSpeech() throws Exception {
+        DspChain chain = new DspChain(80, DspChain.OFF, DspChain.OFF, DspChain.OFF);
+
+        short[] dc = new short[SAMPLE_RATE];
+        Arrays.fill(dc, (short) 10000);
+        assertEquals(0, peak(process(chain, SAMPLE_RATE, 1, dc), SAMPLE_RATE / 2), 2);
+
+        short[] tone = sine(1000, 10000, SAMPLE_RATE);
+        assertEquals(10000, peak(process(chain, SAMPLE_RATE, 1, tone), SAMPLE_RATE / 2), 100);
+    }
+
+    @Test
+    public void highPass_filtersTheChannelsSeparately() throws Exception {
+        DspChain chain = new DspChain(80, DspChain.OFF, DspChain.OFF, DspChain.OFF);
+
+        // DC on the left, a tone on the right
+        short[] tone = sine(1000, 10000, SAMPLE_RATE);
+        short[] stereo = new short[SAMPLE_RATE * 2];
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            stereo[i * 2] = 10000;
+            stereo[i * 2 + 1] = tone[i];
+        }
+
+        short[] output = process(chain, SAMPLE_RATE, 2, stereo);
+
+        short[] left = new short[SAMPLE_RATE];
+        short[] right = new short[SAMPLE_RATE];
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            left[i] = output[i * 2];
+            right[i] = output[i * 2 + 1];
+        }
+        assertEquals(0, peak(left, SAMPLE_RATE / 2), 2);
+        assertEquals(10000, peak(right, SAMPLE_RATE / 2), 100);
+    }
+
+    @Test
+    public void noiseGate_mutesQuietPartsAndOpensOnLoudOnes() throws Exception {
+        DspChain chain = new DspChain(DspChain.OFF, -50, DspChain.OFF, DspChain.OFF);
+
+        // -60dBFS of noise, then a loud tone
+        short[] input = new short[SAMPLE_RATE * 2];
+        short[] tone = sine(440, 10000, SAMPLE_RATE);
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            input[i] = (short) (i % 2 == 0 ? 32 : -32);
+            input[SAMPLE_RATE + i] = tone[i];
+        }
+
+        short[] output = process(chain, SAMPLE_RATE, 1, input);
+
+        assertEquals(0, peak(Arrays.copyOfRange(output, 0, SAMPLE_RATE), 0), 0);
+        assertEquals(10000, peak(output, SAMPLE_RATE + SAMPLE_RATE / 10), 10);
+    }
+
+    @Test
+    public void noiseGate_holdsAfterTheLastLoudSample() throws Exception {
+        DspChain chain = new DspChain(DspChain.OFF, -50, DspChain.OFF, DspChain.OFF);
+
+        // A loud tone, then -60dBFS of noise
+        short[] input = new short[SAMPLE_RATE * 2];
+        short[] tone = sine(440, 10000, SAMPLE_RATE);
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            input[i] = tone[i];
+            input[SAMPLE_RATE + i] = (short) (i % 2 == 0 ? 32 : -32);
+        }
+
+        short[] output = process(chain, SAMPLE_RATE, 1, input);
+
+        // Open for the 150ms of hold, closed a second later
+        int holdEnd = SAMPLE_RATE + SAMPLE_RATE * 140 / 1000;
+        assertEquals(32, peak(Arrays.copyOfRange(output, SAMPLE_RATE, holdEnd), 0), 1);
+        assertEquals(0, peak(output, SAMPLE_RATE * 2 - SAMPLE_RATE / 10), 0);
+    }
+
+    @Test
+    public void normalizer_raisesQuietSpeechToTheTarget() throws Exception {
+        DspChain chain = new DspChain(DspChain.OFF, DspChain.OFF, -6, DspChain.OFF);
+
+        short[] input = sine(440, 2000, SAMPLE_RATE * 8);
+        short[] output = process(chain, SAMPLE_RATE, 1, input);
+
+        // -6dBFS, after the gain has been raised
+        assertEquals(16423, peak(output, SAMPLE_RATE * 7), 500);
+    }
+
+    @Test
+    public void upsampling_interpolatesAcrossTheBlocks() throws Exception {
+        DspChain chain = new DspChain(DspChain.OFF, DspChain.OFF, DspChain.OFF, 12000);
+
+        // A ramp of 3 per input frame, 2 per output frame at 1.5 times the rate
+        short[] input = new short[8000];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (short) (i * 3 - 12000);
+        }
+
+        short[] output = process(chain, 8000, 1, input);
+
+        assertEquals(input.length * 3 / 2, output.length, 2);
+        for (int i = 0; i < output.length; i++) {
+            assertEquals("Output frame " + i, i * 2 - 12000, output[i], 1);
+        }
+    }
+
+    @Test
+    public void downsampling_keepsTheRateAndTheTone() throws Exception {
+        DspChain chain = new DspChain(DspChain.OFF, DspChain.OFF, DspChain.OFF, 8000);
+
+        short[] input = sine(300, 10000, SAMPLE_RATE * 2);
+        short[] output = process(chain, SAMPLE_RATE, 1, input);
+
+        assertEquals(input.length / 2, output.length, 1);
+        assertEquals(10000, peak(output, 8000), 300);
+
+        // Above the output Nyquist frequency, filtered out
+        short[] aliasing = sine(6000, 10000, SAMPLE_RATE * 2);
+        assertTrue(peak(process(chain, SAMPLE_RATE, 1, aliasing), 8000) < 1000);
+    }
+
+    @Test
+    public void start_resetsTheResamplerBetweenRecordings() throws Exception {
+        DspChain chain = new DspChain(DspChain.OFF, DspChain.OFF, DspChain.OFF, 12000);
+        DspProcessor processor = new DspProcessor();
+
+        short[] input = new short[1001];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (short) (i * 3);
+        }
+
+        short[] first = process(processor, chain, 8000, 1, input);
+        short[] second = process(processor, chain, 8000, 1, input);
+
+        assertTrue(Arrays.equals(first, second));
+    }
+
+    private static short[] process(DspChain chain, int sampleRate, int channelCount, short[] input) throws Exception {
+        return process(new DspProcessor(), chain, sampleRate, channelCount, input);
+    }
+
+    private static short[] process(DspProcessor processor, DspChain chain, int sampleRate, int channelCount,
+                                   short[] input) throws Exception {
+        CollectingEncoder encoder = new CollectingEncoder(input.length * 4);
+        processor.start(chain, encoder, sampleRate, channelCount, BLOCK_SIZE);
+
+        ByteBuffer pcm = ByteBuffer.allocateDirect(WRITE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int written = 0;
+        while (written < input.length) {
+            pcm.clear();
+            while (pcm.hasRemaining() && written < input.length) {
+                pcm.putShort(input[written++]);
+            }
+            pcm.flip();
+
+            processor.write(pcm);
+            assertEquals(pcm.limit(), pcm.position());
+        }
+
+        processor.finish();
+        return encoder.getSamples();
+    }
+
+    private static short[] sine(int frequencyHz, int amplitude, int length) {
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequencyHz * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    /**
+     * @return the peak from the given sample to the end, once the filters have settled
+     */
+    private static int peak(short[] samples, int from) {
+        int peak = 0;
+        for (int i = from; i < samples.length; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        return peak;
+    }
+
+    private static class CollectingEncoder implements PcmEncoder {
+
+        private final short[] mSamples;
+        private int mCount;
+
+        CollectingEncoder(int capacity) {
+            mSamples = new short[capacity];
+        }
+
+        @Override
+        public void start(OutputSink output, int sampleRate, int channelCount) {
+        }
+
+        @Override
+        public void encode(ByteBuffer pcm) {
+            while (pcm.remaining() >= 2) {
+                mSamples[mCount++] = pcm.getShort();
+            }
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        short[] getSamples() {
+            return Arrays.copyOf(mSamples, mCount);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ml.matteolobello.recordingaudioview;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PeakSummaryTest {
+
+    @Test
+    public void build_empty_returnsSilentBuckets() throws Exception {
+        PeakSummary summary = new PeakSummary(4);
+        summary.reset(1);
+
+        assertArrayEquals(new float[4], summary.build(), 0);
+    }
+
+    @Test
+    public void build_fewerSlotsThanBuckets_spreadsEachSlot() throws Exception {
+        PeakSummary summary = new PeakSummary(4);
+        summary.reset(10);
+        summary.add(0.5f, 10);
+        summary.add(1.0f, 10);
+
+        assertArrayEquals(new float[]{0.5f, 0.5f, 1.0f, 1.0f}, summary.build(), 0);
+    }
+
+    @Test
+    public void add_fullSlots_mergesPairs() throws Exception {
+        PeakSummary summary = new PeakSummary(2);
+        summary.reset(1);
+
+        // Four slots, merged in two when the fourth one closes
+        summary.add(0.1f, 1);
+        summary.add(0.4f, 1);
+        summary.add(0.3f, 1);
+        summary.add(0.2f, 1);
+        assertArrayEquals(new float[]{0.4f, 0.3f}, summary.build(), 0);
+
+        // A slot now covers two units
+        summary.add(0.9f, 1);
+        summary.add(0.0f, 1);
+        summary.add(0.6f, 2);
+        assertArrayEquals(new float[]{0.4f, 0.9f}, summary.build(), 0);
+    }
+
+    @Test
+    public void add_longTake_keepsTheLoudestPart() throws Exception {
+        PeakSummary summary = new PeakSummary(8);
+        summary.reset(1);
+
+        for (int i = 0; i < 100000; i++) {
+            summary.add(i == 75000 ? 1.0f : 0.1f, 1);
+        }
+
+        float[] peaks = summary.build();
+        assertEquals(8, peaks.length);
+        for (int bucket = 0; bucket < peaks.length; bucket++) {
+            assertEquals(bucket == 6 ? 1.0f : 0.1f, peaks[bucket], 0);
+        }
+    }
+
+    @Test
+    public void add_partSpanningSlots_fillsEach() throws Exception {
+        PeakSummary summary = new PeakSummary(2);
+        summary.reset(10);
+        summary.add(0.7f, 25);
+
+        // Two closed slots and the one being filled
+        float[] peaks = summary.build();
+        assertEquals(0.7f, peaks[0], 0);
+        assertEquals(0.7f, peaks[1], 0);
+    }
+
+    @Test
+    public void computePeak_readsSignedSamples() throws Exception {
+        ByteBuffer pcm = ByteBuffer.allocateDirect(6).order(ByteOrder.LITTLE_ENDIAN);
+        pcm.putShort((short) 100).putShort(Short.MIN_VALUE).putShort((short) 200);
+        pcm.flip();
+
+        assertEquals(1.0f, PeakSummary.computePeak(pcm), 0);
+        assertEquals(0, pcm.position());
+
+        pcm.position(4);
+        assertEquals(200f / Short.MAX_VALUE, PeakSummary.computePeak(pcm), 0);
+    }
+
+    @Test
+    public void sidecar_roundTrip() throws Exception {
+        File output = File.createTempFile("peaks", ".wav");
+        File sidecar = PeakSummary.getSidecarFile(output);
+        try {
+            float[] peaks = {0f, 0.25f, 0.5f, 1.0f, 1.5f};
+            PeakSummary.writeSidecar(output, peaks);
+
+            assertEquals(output.getPath() + PeakSummary.SIDECAR_EXTENSION, sidecar.getPath());
+            assertEquals(peaks.length, sidecar.length());
+
+            // One byte per bucket, the peaks above 1 are clamped
+            assertArrayEquals(new float[]{0f, 0.25f, 0.5f, 1.0f, 1.0f}, PeakSummary.readSidecar(output), 1 / 255f);
+        } finally {
+            sidecar.delete();
+            output.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void readSidecar_missing_throws() throws Exception {
+        File output = File.createTempFile("peaks", ".wav");
+        try {
+            PeakSummary.readSidecar(output);
+        } finally {
+            output.delete();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package ml.matteolobello.recordingaudioview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VoiceActivityDetectorTest {
+
+    /**
+     * 1kHz mono, 2 bytes per ms, blocks of 10ms
+     */
+    private static final int SAMPLE_RATE = 1000;
+    private static final int BLOCK_MS = 10;
+    private static final int BLOCK_SIZE = BLOCK_MS * 2;
+
+    /**
+     * The takes start with some background, like real ones, as the first block gives the noise floor
+     */
+    private static final int SILENCE_RMS = 10;
+    private static final int SPEECH_RMS = 5000;
+
+    private final RecordingEncoder mEncoder = new RecordingEncoder();
+    private final ByteBuffer mBlock = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private VoiceActivityDetector mDetector;
+    private int mBlockId;
+
+    @Before
+    public void setUp() throws Exception {
+        mDetector = new VoiceActivityDetector();
+        mBlockId = 0;
+    }
+
+    @Test
+    public void isEnabled_onlyWhenTrimmingOrAutoStopping() throws Exception {
+        mDetector.configure(false, 0);
+        assertFalse(mDetector.isEnabled());
+
+        mDetector.configure(true, 0);
+        assertTrue(mDetector.isEnabled());
+
+        mDetector.configure(false, 1000);
+        assertTrue(mDetector.isEnabled());
+    }
+
+    @Test
+    public void noTrim_writesEverything() throws Exception {
+        start(false, 0);
+        feed(SILENCE_RMS, 50);
+        feed(SPEECH_RMS, 5);
+        feed(SILENCE_RMS, 300);
+        mDetector.finish();
+
+        assertEquals(355 * BLOCK_SIZE, mDetector.getWrittenBytes());
+        assertWrittenIds(0, 355);
+    }
+
+    @Test
+    public void trim_leadingSilence_keepsOnlyThePreRoll() throws Exception {
+        start(true, 0);
+        feed(SILENCE_RMS, 100);
+        assertEquals(0, mDetector.getWrittenBytes());
+
+        feed(SPEECH_RMS, 1);
+
+        // The last 300ms of silence, then the speech
+        assertWrittenIds(70, 101);
+    }
+
+    @Test
+    public void trim_hangover_writesTheEndOfTheWords() throws Exception {
+        start(true, 0);
+        feed(SILENCE_RMS, 10);
+        feed(SPEECH_RMS, 5);
+        feed(SILENCE_RMS, 30);
+
+        // The 200ms of hangover are written right away, the rest is held
+        assertWrittenIds(0, 35);
+    }
+
+    @Test
+    public void trim_trailingSilence_isDropped() throws Exception {
+        start(true, 0);
+        feed(SILENCE_RMS, 10);
+        feed(SPEECH_RMS, 5);
+        feed(SILENCE_RMS, 1000);
+        mDetector.finish();
+
+        assertWrittenIds(0, 35);
+    }
+
+    @Test
+    public void trim_shortPause_isKept() throws Exception {
+        start(true, 0);
+        feed(SILENCE_RMS, 10);
+        feed(SPEECH_RMS, 5);
+        feed(SILENCE_RMS, 100);
+        feed(SPEECH_RMS, 5);
+        mDetector.finish();
+
+        assertWrittenIds(0, 120);
+    }
+
+    @Test
+    public void trim_longPause_keepsItsEnd() throws Exception {
+        start(true, 0);
+        feed(SILENCE_RMS, 10);
+        feed(SPEECH_RMS, 5);
+        feed(SILENCE_RMS, 520);
+        feed(SPEECH_RMS, 5);
+        mDetector.finish();
+
+        // The hangover, then the last 2s of the pause before the speech comes back
+        byte[] written = mEncoder.mWritten.toByteArray();
+        assertEquals((10 + 5 + 20 + 200 + 5) * BLOCK_SIZE, written.length);
+        assertEquals(34, blockId(written, 34));
+        for (int i = 35; i < 240; i++) {
+            assertEquals(i + 300, blockId(written, i));
+        }
+    }
+
+    @Test
+    public void autoStop_afterSilenceFollowingSpeech() throws Exception {
+        start(true, 500);
+        assertFalse(feed(SILENCE_RMS, 100));
+        assertFalse(feed(SPEECH_RMS, 5));
+        assertFalse(feed(SILENCE_RMS, 49));
+        assertTrue(feed(SILENCE_RMS, 1));
+    }
+
+    @Test
+    public void start_resetsThePreviousRecording() throws Exception {
+        start(true, 0);
+        feed(SILENCE_RMS, 10);
+        feed(SPEECH_RMS, 5);
+        feed(SILENCE_RMS, 100);
+        mDetector.finish();
+
+        mEncoder.mWritten.reset();
+        mBlockId = 0;
+        start(true, 0);
+        feed(SILENCE_RMS, 10);
+        feed(SPEECH_RMS, 1);
+
+        // Nothing held from the previous recording
+        assertWrittenIds(0, 11);
+    }
+
+    private void start(boolean trimSilence, int autoStopSilenceMs) {
+        mDetector.configure(trimSilence, autoStopSilenceMs);
+        mDetector.start(mEncoder, SAMPLE_RATE, 1);
+    }
+
+    /**
+     * Feed blocks tagged with increasing ids
+     *
+     * @return true if the auto-stop was reached by the last block
+     */
+    private boolean feed(int rms, int blockCount) throws Exception {
+        boolean stop = false;
+        for (int i = 0; i < blockCount; i++) {
+            mBlock.clear();
+            while (mBlock.hasRemaining()) {
+                mBlock.putShort((short) mBlockId);
+            }
+            mBlock.flip();
+
+            stop = mDetector.process(mBlock, rms);
+            assertEquals(0, mBlock.position());
+            assertEquals(BLOCK_SIZE, mBlock.limit());
+
+            mBlockId++;
+        }
+        return stop;
+    }
+
+    /**
+     * Check that the consecutive blocks from first to end, excluded, were written in order
+     */
+    private void assertWrittenIds(int first, int end) {
+        byte[] written = mEncoder.mWritten.toByteArray();
+        assertEquals((end - first) * BLOCK_SIZE, written.length);
+        assertEquals(written.length, mDetector.getWrittenBytes());
+
+        for (int i = 0; i < end - first; i++) {
+            assertEquals(first + i, blockId(written, i));
+        }
+    }
+
+    private static int blockId(byte[] written, int index) {
+        ByteBuffer buffer = ByteBuffer.wrap(written).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = index * BLOCK_SIZE; i < (index + 1) * BLOCK_SIZE; i += 2) {
+            assertEquals(buffer.getShort(index * BLOCK_SIZE), buffer.getShort(i));
+        }
+        return buffer.getShort(index * BLOCK_SIZE);
+    }
+
+    private static class RecordingEncoder implements PcmEncoder {
+
+        private final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+
+        @Override
+        public void start(OutputSink output, int sampleRate, int channelCount) {
+        }
+
+        @Override
+        public void encode(ByteBuffer pcm) {
+            while (pcm.hasRemaining()) {
+                mWritten.write(pcm.get());
+            }
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+}